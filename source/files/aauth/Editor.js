@@ -2922,6 +2922,8 @@ function doWWWLSave(series) {
 		if (xml) {
 			xml = xml.firstChild;
 			if (xml.tagName == "NOTOK") alert("Unable to save the modified image values.");
+			else if (xml.tagName == "BUSY") alert("Another operation is in progress on this document.\n"
+												 +"Please try again when it is complete.");
 			else alert("The modified image values are\n"
 					  +"being saved in a background process.\n"
 					  +"You may continue to modify this or\n"
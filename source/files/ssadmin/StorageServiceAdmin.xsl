@@ -38,6 +38,7 @@
 				<xsl:sort select="title"/>
 				<xsl:variable name="id" select="@id"/>
 				<xsl:variable name="numdocs" select="$ssparams/ssparams/ss[@id=$id]/@size"/>
+				<xsl:variable name="rebuild" select="$ssparams/ssparams/ss[@id=$id]/rebuild"/>
 
 				<p class="note">
 					The table below controls the library with the context "<b><xsl:value-of select="@id"/></b>".
@@ -56,6 +57,24 @@
 						<td>Indexed documents</td>
 						<td><xsl:value-of select="$numdocs"/></td>
 					</tr>
+					<xsl:if test="$rebuild">
+						<tr>
+							<td>Index rebuild</td>
+							<td>
+								<xsl:choose>
+									<xsl:when test="$rebuild/@status='queued'">Queued</xsl:when>
+									<xsl:when test="$rebuild/@status='running'">
+										In progress: <xsl:value-of select="$rebuild/@count"/> documents
+										(<xsl:value-of select="$rebuild/@rate"/>/sec<xsl:if test="$rebuild/@eta">, about <xsl:value-of select="$rebuild/@eta"/> sec remaining</xsl:if>)
+									</xsl:when>
+									<xsl:otherwise>
+										Complete: <xsl:value-of select="$rebuild/@count"/> documents
+										in <xsl:value-of select="$rebuild/@time"/> sec
+									</xsl:otherwise>
+								</xsl:choose>
+							</td>
+						</tr>
+					</xsl:if>
 					<tr>
 						<td>Title</td>
 						<td><input class="text" type="text" name="{@id}-title" value="{title}"/></td>
@@ -137,8 +156,12 @@
 							<xsl:if test="not($numdocs=0)">
 								<input class="button" type="button" value="List the index" onclick="window.open('/ssadmin/list/{@id}','_self');"/>
 							</xsl:if>
-							<xsl:if test="not($rebuildInProgress='yes') and not($count=1)">
+							<xsl:if test="not($rebuild) or $rebuild/@status='done'">
 								<xsl:if test="not($numdocs=0)">&#160;&#160;&#160;&#160;</xsl:if>
+								<input class="button" type="button" value="Rebuild the index" onclick="window.open('/ssadmin/rebuild/{@id}','_self');"/>
+							</xsl:if>
+							<xsl:if test="not($rebuildInProgress='yes') and not($count=1)">
+								&#160;&#160;&#160;&#160;
 								<input class="button" type="button" value="Remove this Storage Service" onclick="window.open('/ssadmin/remove/{@id}','_self');"/>
 							</xsl:if>
 						</td>
@@ -105,8 +105,56 @@ function exportZipFile(url, target, myEvent) {
 }
 
 //anonymize button handler
+//The DicomObjects are anonymized in a background job on the server.
+//Poll the job and reload the document when the job is done.
+var anonymizeDocURL = "";
+var anonymizeJobURL = "";
 function anonymizeDicomObjects(url, target) {
-	openURL(url, target);
+	var k = url.indexOf("?");
+	anonymizeDocURL = (k >= 0) ? url.substring(0, k) : url;
+	var req = new AJAX();
+	req.GET(anonymizeDocURL, "anonymize&"+req.timeStamp(), null);
+	if (req.success()) {
+		var xml = req.responseXML();
+		if (xml) {
+			xml = xml.firstChild;
+			if (xml.tagName == "job") {
+				anonymizeJobURL = "/storage/jobs/" + xml.getAttribute("id");
+				window.status = "Anonymizing the DICOM objects...";
+				window.setTimeout(checkAnonymizeJob, 1000);
+				return;
+			}
+			if (xml.tagName == "BUSY") {
+				alert("Another operation is in progress on this document.\n"
+					 +"Please try again when it is complete.");
+				return;
+			}
+		}
+	}
+	alert("Unable to anonymize the DICOM objects.");
+}
+
+function checkAnonymizeJob() {
+	var req = new AJAX();
+	req.GET(anonymizeJobURL, req.timeStamp(), null);
+	if (req.success()) {
+		var xml = req.responseXML();
+		if (xml) {
+			xml = xml.firstChild;
+			var status = xml.getAttribute("status");
+			if ((status == "queued") || (status == "running")) {
+				window.status = "Anonymizing the DICOM objects: "
+								+ xml.getAttribute("completed") + " of " + xml.getAttribute("total");
+				window.setTimeout(checkAnonymizeJob, 1000);
+				return;
+			}
+			window.status = "";
+			if (status != "done") alert("Some of the DICOM objects could not be anonymized.");
+			openURL(anonymizeDocURL, "_self");
+			return;
+		}
+	}
+	alert("Unable to obtain the status of the anonymization.");
 }
 
 var deleteURL = "";
@@ -297,8 +297,7 @@ public class MircSiteCopier extends JFrame {
 						else cp.println("   skipping pre-existing user: \""+username+"\"");
 					}
 					if (extraRoles.size() != 0) {
-						Element mircRoot = mircConfig.getXML().getDocumentElement();
-						String[] currentRoles = mircRoot.getAttribute("roles").split(",");
+						String[] currentRoles = mircConfig.getDefinedRoles();
 						for (String role : currentRoles) extraRoles.add(role);
 						currentRoles = extraRoles.toArray( new String[extraRoles.size()] );
 						StringBuffer sb = new StringBuffer();
@@ -306,8 +305,7 @@ public class MircSiteCopier extends JFrame {
 							if (sb.length() != 0) sb.append(",");
 							sb.append(role);
 						}
-						mircRoot.setAttribute("roles", sb.toString());
-						mircConfig.save();
+						mircConfig.setRoles(sb.toString());
 					}
 				}
 				else {
@@ -441,6 +439,7 @@ public class MircSiteCopier extends JFrame {
 
 					Element lib = mircConfig.getLocalLibrary(ssid);
 					if (lib != null) {
+						lib = (Element)lib.cloneNode(true);
 						lib.setAttribute("jpegquality", jpegquality);
 						lib.setAttribute("timeout", timeout);
 						lib.setAttribute("maxsize", maxsize);
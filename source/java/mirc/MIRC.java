@@ -205,9 +205,12 @@ public class MIRC extends AbstractPlugin {
 	 */
 	public void shutdown() {
 		Index.closeAll();
+		DicomHeaderCache.closeAll();
 		RadLexIndex.close();
 		Preferences.close();
 		DownloadDB.close();
+		DownloadIndex.close();
+		ScoredQuizDB.close();
 		ActivityDB.close();
 		stop = true;
 		logger.info("MIRC Plugin stopped");
@@ -27,6 +27,14 @@ import org.rsna.ctp.stdstages.DicomAnonymizer;
 
 /**
  * A class to encapsulate the MIRC configuration.
+ * <p>
+ * The methods which change the configuration all synchronize on the
+ * MircConfig class and operate on the mirc.xml DOM. Each time the
+ * configuration changes, an immutable Snapshot of the values needed by the
+ * rest of MIRC is built from a deep copy of the DOM and published. The
+ * accessor methods read the current Snapshot and never lock. The XML objects
+ * returned by the accessors belong to the Snapshot and must not be modified;
+ * to change a Library element, modify a copy and pass it to insertLibrary.
  */
 public class MircConfig {
 
@@ -48,6 +56,7 @@ public class MircConfig {
 
 	static volatile DicomAnonymizer fsDicomAnonymizer = null;
 	static volatile Hashtable<String,Element> libraries;
+	static volatile Snapshot snapshot = new Snapshot();
 
 	/**
 	 * Private singleton constructor; this class must be
@@ -71,7 +80,7 @@ public class MircConfig {
 	/**
 	 * Get the MircConfig instance.
 	 */
-	public static synchronized MircConfig getInstance() {
+	public static MircConfig getInstance() {
 		return mircConfigInstance;
 	}
 
@@ -88,10 +97,13 @@ public class MircConfig {
 	/**
 	 * Reload the components.
 	 */
-	public synchronized void reload() {
-		loadXML();
-		setMastheadHeight();
-		reloadXMLObjects();
+	public void reload() {
+		synchronized (MircConfig.class) {
+			loadXML();
+			setMastheadHeight();
+			reloadXMLObjects();
+			publish();
+		}
 	}
 
 	//Load the mirc.xml XML document
@@ -136,6 +148,7 @@ public class MircConfig {
 				child = child.getNextSibling();
 			}
 			saveXML();
+			publish();
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to parse the MIRC config file: "+mirc, ex);
@@ -143,6 +156,14 @@ public class MircConfig {
 		}
 	}
 
+	//Build a new Snapshot from the current configuration and publish it.
+	//This method must be called whenever the configuration DOM or the
+	//libraries table changes.
+	private static synchronized void publish() {
+		try { snapshot = new Snapshot(mircXML, libraries, siteurl, timeout); }
+		catch (Exception ex) { logger.warn("Unable to publish the configuration", ex); }
+	}
+
 	//Set the siteurl from the system IP address if dynamic addressing is enabled.
 	private static String findSiteURL() {
 		String siteurl = mircRoot.getAttribute("siteurl");
@@ -217,8 +238,11 @@ public class MircConfig {
 	/**
 	 * Save the MIRC configuration XML object.
 	 */
-	public synchronized void save() {
-		saveXML();
+	public void save() {
+		synchronized (MircConfig.class) {
+			saveXML();
+			publish();
+		}
 	}
 
 	//Static method to save the XML object
@@ -230,7 +254,7 @@ public class MircConfig {
 	 * Get the MIRC plugin root directory.
 	 * @return the MIRC plugin root directory.
 	 */
-	public synchronized File getRootDirectory() {
+	public File getRootDirectory() {
 		return dir;
 	}
 
@@ -247,8 +271,8 @@ public class MircConfig {
 	 * Get the MIRC configuration XML object.
 	 * @return the MIRC configuration XML DOM object.
 	 */
-	public synchronized Document getXML() {
-		return mircXML;
+	public Document getXML() {
+		return snapshot.xml;
 	}
 
 	//Set the masthead height entity in mirc.xml
@@ -262,6 +286,7 @@ public class MircConfig {
 			int height = mh.getHeight();
 			mircRoot.setAttribute("mastheadheight", Integer.toString(height));
 			saveXML();
+			publish();
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to set the masthead height", ex);
@@ -271,16 +296,16 @@ public class MircConfig {
 	/**
 	 * Get the site ID.
 	 */
-	public synchronized String getSiteID() {
-		return mircRoot.getAttribute("siteid");
+	public String getSiteID() {
+		return snapshot.siteid;
 	}
 
 	/**
 	 * Get the local address.
 	 * @return the URL of the site.
 	 */
-	public synchronized static String getLocalAddress() {
-		return siteurl;
+	public static String getLocalAddress() {
+		return snapshot.siteurl;
 	}
 
 	/**
@@ -288,23 +313,22 @@ public class MircConfig {
 	 * This is the number of Libraries known to the MIRC site.
 	 * @return number of Library elements in the MIRC configuration XML object.
 	 */
-	public synchronized int getNumberOfLibraries() {
-		try { return libraries.size(); }
-		catch (Exception ex) { return 0; }
+	public int getNumberOfLibraries() {
+		return snapshot.sortedLibraries.length;
 	}
 
 	/**
 	 * Get the name of the MIRC site.
 	 */
-	public synchronized String getSiteName() {
-		return mircRoot.getAttribute("sitename");
+	public String getSiteName() {
+		return snapshot.sitename;
 	}
 
 	/**
 	 * Get the query timeout in seconds.
 	 */
-	public synchronized int getQueryTimeout() {
-		return timeout;
+	public int getQueryTimeout() {
+		return snapshot.timeout;
 	}
 
 	/**
@@ -313,7 +337,9 @@ public class MircConfig {
 	 * @return true if the URL is on the same server as the query service.
 	 */
 	public static boolean isLocal(String url) {
-		return ((!url.startsWith("http://") && !url.startsWith("https://")) || url.startsWith(siteurl));
+		String siteurl = MircConfig.siteurl;
+		return ((!url.startsWith("http://") && !url.startsWith("https://"))
+					|| ((siteurl != null) && url.startsWith(siteurl)));
 	}
 
 	/**
@@ -329,7 +355,7 @@ public class MircConfig {
 	 * @param timeout the query timeout in seconds.
 	 * @param roles the additional roles defined by the site.
 	 */
-	public synchronized void setPrimarySystemParameters(
+	public void setPrimarySystemParameters(
 			String mode,
 			String sitename,
 			String showsitename,
@@ -346,104 +372,133 @@ public class MircConfig {
 			String email,
 			String sharestats
 			) {
-		mircRoot.setAttribute("mode",mode);
-		mircRoot.setAttribute("sitename",sitename);
-		mircRoot.setAttribute("showsitename",showsitename);
-		mircRoot.setAttribute("masthead",masthead);
-		mircRoot.setAttribute("showptids",showptids);
-		mircRoot.setAttribute("siteurl",siteurl);
-		mircRoot.setAttribute("addresstype",addresstype);
-		mircRoot.setAttribute("disclaimerurl",disclaimerurl);
-		mircRoot.setAttribute("timeout",timeout);
-		mircRoot.setAttribute("roles", roles.trim().replaceAll("[\\s,]+",","));
-		mircRoot.setAttribute("UI", ui);
-		mircRoot.setAttribute("popup", popup);
-		mircRoot.setAttribute("downloadenb", downloadenb);
-		mircRoot.setAttribute("email", email);
-		mircRoot.setAttribute("sharestats", sharestats);
-		saveXML();
-		reload();
+		synchronized (MircConfig.class) {
+			mircRoot.setAttribute("mode",mode);
+			mircRoot.setAttribute("sitename",sitename);
+			mircRoot.setAttribute("showsitename",showsitename);
+			mircRoot.setAttribute("masthead",masthead);
+			mircRoot.setAttribute("showptids",showptids);
+			mircRoot.setAttribute("siteurl",siteurl);
+			mircRoot.setAttribute("addresstype",addresstype);
+			mircRoot.setAttribute("disclaimerurl",disclaimerurl);
+			mircRoot.setAttribute("timeout",timeout);
+			mircRoot.setAttribute("roles", roles.trim().replaceAll("[\\s,]+",","));
+			mircRoot.setAttribute("UI", ui);
+			mircRoot.setAttribute("popup", popup);
+			mircRoot.setAttribute("downloadenb", downloadenb);
+			mircRoot.setAttribute("email", email);
+			mircRoot.setAttribute("sharestats", sharestats);
+			saveXML();
+			reload();
+		}
 	}
 
 	/**
 	 * Get the MIRC plugin version
 	 */
-	public synchronized String getVersion() {
-		return mircRoot.getAttribute("version");
+	public String getVersion() {
+		return snapshot.version;
 	}
 
 	/**
 	 * See if this site is sharing stats with the RSNA
 	 */
-	public synchronized boolean shareStats() {
-		return mircRoot.getAttribute("sharestats").equals("yes");
+	public boolean shareStats() {
+		return snapshot.sharestats;
 	}
 
 	/**
 	 * Get the admin email address
 	 */
-	public synchronized String getAdminEmail() {
-		return mircRoot.getAttribute("email");
+	public String getAdminEmail() {
+		return snapshot.email;
 	}
 
 	/**
 	 * Set the RSNA site's MIRC plugin version
 	 * @param version the version of the RSNA site's MIRC plugin.
 	 */
-	public synchronized void setRSNAVersion(String version) {
-		mircRoot.setAttribute("rsnaVersion", version);
+	public void setRSNAVersion(String version) {
+		synchronized (MircConfig.class) {
+			mircRoot.setAttribute("rsnaVersion", version);
+			publish();
+		}
+	}
+
+	/**
+	 * Set the extra role names defined for the site and save the configuration.
+	 * (Use <code>setDefinedRoles</code> to install the roles.)
+	 * @param roles the role names, separated by commas or whitespace.
+	 */
+	public void setRoles(String roles) {
+		synchronized (MircConfig.class) {
+			mircRoot.setAttribute("roles", roles.trim().replaceAll("[\\s,]+",","));
+			saveXML();
+			publish();
+		}
 	}
 
 	/**
 	 * Get the mode of the site (rad or vet)
 	 */
-	public synchronized String getMode() {
-		return mircRoot.getAttribute("mode");
+	public String getMode() {
+		return snapshot.mode;
 	}
 
 	/**
 	 * Get the default user interface
 	 */
-	public synchronized String getUI() {
-		return mircRoot.getAttribute("UI");
+	public String getUI() {
+		return snapshot.ui;
 	}
 
 	/**
 	 * Get the extra role names defined for the site
 	 */
-	public synchronized String[] getDefinedRoles() {
-		return mircRoot.getAttribute("roles").split(",");
+	public String[] getDefinedRoles() {
+		return snapshot.roles.split(",");
 	}
 
 	/**
 	 * Install the extra roles defined for the site
 	 */
-	public synchronized void setDefinedRoles() {
-		Users users = Users.getInstance();
-		String[] roles = getDefinedRoles();
-		for (String role : roles) {
-			role = role.trim();
-			if (!role.equals("")) users.addRole(role);
+	public void setDefinedRoles() {
+		synchronized (MircConfig.class) {
+			Users users = Users.getInstance();
+			String[] roles = getDefinedRoles();
+			for (String role : roles) {
+				role = role.trim();
+				if (!role.equals("")) users.addRole(role);
+			}
+			users. addRole("department"); //always include the department role
 		}
-		users. addRole("department"); //always include the department role
 	}
 
 	/**
 	 * Get a Libraries element containing all the libraries in sorted
 	 * order, alphabetically by name, with all the local libraries first.
+	 * @return a copy of the sorted Libraries element.
 	 */
-	public synchronized Element getSortedLibraries() {
+	public Element getSortedLibraries() {
 		try {
-			Element[] libs = libraries.values().toArray( new Element[libraries.size()] );
-			Arrays.sort( libs, new ElementComparator() );
 			Document doc = XmlUtil.getDocument();
 			Element root = doc.createElement("Libraries");
-			for (int i=0; i<libs.length; i++) root.appendChild( doc.importNode(libs[i], true) );
+			for (Element lib : snapshot.sortedLibraries) root.appendChild( doc.importNode(lib, true) );
 			return root;
 		}
 		catch (Exception ex) { return null; }
 	}
 
+	/**
+	 * Get the Library elements of all the libraries in sorted
+	 * order, alphabetically by name, with all the local libraries first.
+	 * The elements are shared by all callers and must not be modified.
+	 * @return the sorted Library elements of the current configuration.
+	 */
+	public Element[] getSortedLibraryArray() {
+		return snapshot.sortedLibraries.clone();
+	}
+
 	/**
 	 * Get a Libraries element containing all the Library elements.
 	 * @param resolve true if URLs for local servers are to
@@ -451,16 +506,17 @@ public class MircConfig {
 	 * @return a copy of the Libraries element (with addresses resolved
 	 * if resolve==true), or null if no Libraries element exists in the MircConfig XML.
 	 */
-	public synchronized Element getLibraries(boolean resolve) {
+	public Element getLibraries(boolean resolve) {
 		try {
+			Snapshot snapshot = MircConfig.snapshot;
 			Document doc = XmlUtil.getDocument();
 			Element root = doc.createElement("Libraries");
-			for (Element lib : libraries.values()) {
+			for (Element lib : snapshot.libraries.values()) {
 				Element el = (Element)root.appendChild( doc.importNode(lib, true) );
 				if (resolve) {
 					String adrs = el.getAttribute("address");
 					if (adrs.startsWith("/")) {
-						adrs = siteurl + adrs;
+						adrs = snapshot.siteurl + adrs;
 						el.setAttribute("address", adrs);
 					}
 				}
@@ -474,25 +530,21 @@ public class MircConfig {
 	 * Get an ID for a new Local Library.
 	 * @return an ID for a new Local Library.
 	 */
-	public synchronized String getNewLocalLibraryID() {
-		Set<String> ssids = getLocalLibraryIDs();
-		int n = ssids.size() + 1;
-		while ( ssids.contains( "ss"+n ) ) n++;
-		return "ss"+n;
+	public String getNewLocalLibraryID() {
+		synchronized (MircConfig.class) {
+			Set<String> ssids = getLocalLibraryIDs();
+			int n = ssids.size() + 1;
+			while ( ssids.contains( "ss"+n ) ) n++;
+			return "ss"+n;
+		}
 	}
 
 	/**
 	 * Get a Set containing all the local library IDs.
-	 * @return all the StorageService IDs.
+	 * @return all the StorageService IDs. The Set is unmodifiable.
 	 */
-	public synchronized Set<String> getLocalLibraryIDs() {
-		Set<String> set = new HashSet<String>();
-		for (Element lib : libraries.values()) {
-			if ( lib.getAttribute("local").equals("yes") ) {
-				set.add(lib.getAttribute("id"));
-			}
-		}
-		return set;
+	public Set<String> getLocalLibraryIDs() {
+		return snapshot.localIDs;
 	}
 
 	/**
@@ -506,18 +558,16 @@ public class MircConfig {
 	 * @return all the IDs of local libraries that meet
 	 * the enable criteria.
 	 */
-	public synchronized Set<String> getEnabledLocalLibraryIDs(String attr) {
+	public Set<String> getEnabledLocalLibraryIDs(String attr) {
 		Set<String> set = new HashSet<String>();
-		for (Element lib : libraries.values()) {
-			if ( lib.getAttribute("local").equals("yes") ) {
-				if ( lib.getAttribute ("enabled").equals("yes") ) {
-					if (attr != null) {
-						if ( lib.getAttribute(attr).equals("yes") ) {
-							set.add(lib.getAttribute("id"));
-						}
+		for (Element lib : snapshot.localLibraries.values()) {
+			if ( lib.getAttribute ("enabled").equals("yes") ) {
+				if (attr != null) {
+					if ( lib.getAttribute(attr).equals("yes") ) {
+						set.add(lib.getAttribute("id"));
 					}
-					else set.add(lib.getAttribute("id"));
 				}
+				else set.add(lib.getAttribute("id"));
 			}
 		}
 		return set;
@@ -528,8 +578,8 @@ public class MircConfig {
 	 * @return the Library element, or null if no element
 	 * exists with the specified address attribute.
 	 */
-	public synchronized Element getLibrary(String address) {
-		return libraries.get(address);
+	public Element getLibrary(String address) {
+		return snapshot.libraries.get(address);
 	}
 
 	/**
@@ -538,8 +588,8 @@ public class MircConfig {
 	 * @return the Library element, or null if no element
 	 * exists with the specified id.
 	 */
-	public synchronized Element getLocalLibrary(String id) {
-		return getLibrary( "/storage/" + id );
+	public Element getLocalLibrary(String id) {
+		return snapshot.localLibraries.get(id);
 	}
 
 	/**
@@ -547,10 +597,13 @@ public class MircConfig {
 	 * @param address the address of the Library.
 	 * @param enabled true if the library is to be enabled; false otherwise.
 	 */
-	public synchronized void setLibraryEnable(String address, boolean enabled) {
-		Element lib = getLibrary(address);
-		if (lib != null) {
-			lib.setAttribute("enabled", (enabled ? "yes" : "no"));
+	public void setLibraryEnable(String address, boolean enabled) {
+		synchronized (MircConfig.class) {
+			Element lib = libraries.get(address);
+			if (lib != null) {
+				lib.setAttribute("enabled", (enabled ? "yes" : "no"));
+				publish();
+			}
 		}
 	}
 
@@ -614,10 +667,13 @@ public class MircConfig {
 	 * Note: this method does not reload the configuration.
 	 * @param library the Library element to insert.
 	 */
-	public synchronized void insertLibrary(Element library) {
-		if (library.getNodeName().equals("Library")) {
-			library = (Element)mircXML.importNode(library, true);
-			libraries.put( library.getAttribute("address"), library);
+	public void insertLibrary(Element library) {
+		synchronized (MircConfig.class) {
+			if (library.getNodeName().equals("Library")) {
+				library = (Element)mircXML.importNode(library, true);
+				libraries.put( library.getAttribute("address"), library);
+				publish();
+			}
 		}
 	}
 
@@ -626,8 +682,11 @@ public class MircConfig {
 	 * Note: this method does not reload the configuration.
 	 * @param address the address of the server to remove.
 	 */
-	public synchronized void removeLibrary(String address) {
-		libraries.remove(address);
+	public void removeLibrary(String address) {
+		synchronized (MircConfig.class) {
+			libraries.remove(address);
+			publish();
+		}
 	}
 
 	/**
@@ -635,8 +694,10 @@ public class MircConfig {
 	 * Note: this method does not reload the configuration.
 	 * @param id the id of the library to remove.
 	 */
-	public synchronized void removeLocalLibrary(String id) {
-		removeLibrary( "/storage/" + id );
+	public void removeLocalLibrary(String id) {
+		synchronized (MircConfig.class) {
+			removeLibrary( "/storage/" + id );
+		}
 	}
 
 	/**
@@ -646,15 +707,17 @@ public class MircConfig {
 	 * @param address the address of the library.
 	 * @param enabled whether the library is enabled ("yes" or "no").
 	 */
-	public synchronized Element createLibrary(String title, String address, String enabled) throws Exception {
-		Element lib = mircXML.createElement("Library");
-		lib.setAttribute( "address", address );
-		lib.setAttribute( "enabled", enabled );
-		lib.setAttribute( "local", "no" );
-		Element ttl = mircXML.createElement("title");
-		ttl.setTextContent(title);
-		lib.appendChild(ttl);
-		return lib;
+	public Element createLibrary(String title, String address, String enabled) throws Exception {
+		synchronized (MircConfig.class) {
+			Element lib = mircXML.createElement("Library");
+			lib.setAttribute( "address", address );
+			lib.setAttribute( "enabled", enabled );
+			lib.setAttribute( "local", "no" );
+			Element ttl = mircXML.createElement("title");
+			ttl.setTextContent(title);
+			lib.appendChild(ttl);
+			return lib;
+		}
 	}
 
 	/**
@@ -665,36 +728,40 @@ public class MircConfig {
 	 * @param address the address of the library.
 	 * @param enabled whether the library is enabled ("yes" or "no").
 	 */
-	public synchronized Element createLocalLibrary(String id, String title, String address, String enabled) throws Exception {
-		Element lib = createLibrary(title, address, enabled);
-		lib.setAttribute( "id", id );
-		lib.setAttribute( "local", "yes" );
-		lib.setAttribute( "dcmenb", "yes" );
-		lib.setAttribute( "subenb", "yes" );
-		lib.setAttribute( "zipenb", "yes" );
-		lib.setAttribute( "authenb", "yes" );
-		lib.setAttribute( "tceenb", "yes" );
-		return lib;
+	public Element createLocalLibrary(String id, String title, String address, String enabled) throws Exception {
+		synchronized (MircConfig.class) {
+			Element lib = createLibrary(title, address, enabled);
+			lib.setAttribute( "id", id );
+			lib.setAttribute( "local", "yes" );
+			lib.setAttribute( "dcmenb", "yes" );
+			lib.setAttribute( "subenb", "yes" );
+			lib.setAttribute( "zipenb", "yes" );
+			lib.setAttribute( "authenb", "yes" );
+			lib.setAttribute( "tceenb", "yes" );
+			return lib;
+		}
 	}
 
 	/**
 	 * Sort the libraries in order, local ones first, in alphabetical order second.
 	 */
-	public synchronized void sortLibraries() {
-		Element mirclibs = XmlUtil.getFirstNamedChild(mircRoot, "Libraries");
-		Node child;
-		while ( (child=mirclibs.getFirstChild()) != null ) mirclibs.removeChild(child);
+	public void sortLibraries() {
+		synchronized (MircConfig.class) {
+			Element mirclibs = XmlUtil.getFirstNamedChild(mircRoot, "Libraries");
+			Node child;
+			while ( (child=mirclibs.getFirstChild()) != null ) mirclibs.removeChild(child);
 
-		Element[] libs = libraries.values().toArray( new Element[libraries.size()] );
-		Arrays.sort( libs, new ElementComparator() );
+			Element[] libs = libraries.values().toArray( new Element[libraries.size()] );
+			Arrays.sort( libs, new ElementComparator() );
 
-		for (int i=0; i<libs.length; i++) mirclibs.appendChild( libs[i] );
+			for (int i=0; i<libs.length; i++) mirclibs.appendChild( libs[i] );
 
-		saveXML();
-		loadXML();
+			saveXML();
+			loadXML();
+		}
 	}
 
-	class ElementComparator implements Comparator<Element> {
+	static class ElementComparator implements Comparator<Element> {
 		public ElementComparator() { }
 		public int compare( Element e1, Element e2 ) {
 			String e1Local = e1.getAttribute("local");
@@ -718,10 +785,11 @@ public class MircConfig {
 	 * @return a copy of the FileService element, or null if
 	 * no FileService element exists in the MircConfig XML.
 	 */
-	public synchronized Element getFileService() {
+	public Element getFileService() {
 		try {
+			Element fs = snapshot.fileService;
+			if (fs == null) return null;
 			Document doc = XmlUtil.getDocument();
-			Element fs = XmlUtil.getFirstNamedChild(mircRoot, "FileService");
 			return (Element)doc.appendChild( doc.importNode(fs, true) );
 		}
 		catch (Exception ex) { }
@@ -732,15 +800,17 @@ public class MircConfig {
 	 * Replace the FileService element with a new one.
 	 * @param service the replacement FileService element.
 	 */
-	public synchronized void setFileService(Element service) {
-		if (service.getNodeName().equals("FileService")) {
-			try {
-				Element fs = XmlUtil.getFirstNamedChild(mircRoot, "FileService");
-				mircRoot.replaceChild( mircXML.importNode(service, true), fs );
-				saveXML();
-				loadXML();
+	public void setFileService(Element service) {
+		synchronized (MircConfig.class) {
+			if (service.getNodeName().equals("FileService")) {
+				try {
+					Element fs = XmlUtil.getFirstNamedChild(mircRoot, "FileService");
+					mircRoot.replaceChild( mircXML.importNode(service, true), fs );
+					saveXML();
+					loadXML();
+				}
+				catch (Exception ignore) { }
 			}
-			catch (Exception ignore) { }
 		}
 	}
 
@@ -753,16 +823,8 @@ public class MircConfig {
 	 * &lt;/news&gt;<br>
 	 * @return the news element.
 	 */
-	public synchronized Element getNews() {
-		try {
-			NodeList nl = mircRoot.getElementsByTagName("news");
-			if (nl.getLength() == 0) {
-				Document doc = XmlUtil.getDocument();
-				return doc.createElement("news");
-			}
-			return (Element)nl.item(0);
-		}
-		catch (Exception ex) { return null; }
+	public Element getNews() {
+		return snapshot.news;
 	}
 
 	/**
@@ -771,15 +833,17 @@ public class MircConfig {
 	 * @param image the URL of the image used as the icon of the news item
 	 * @param url the URL of the news item
 	 */
-	public synchronized void setNews(String title, String image, String url) {
-		deleteNews();
-		Element news = mircRoot.getOwnerDocument().createElement("news");
-		setNewsChild(news, "title", title);
-		setNewsChild(news, "image", image);
-		setNewsChild(news, "url", url);
-		mircRoot.appendChild(news);
-		saveXML();
-		loadXML();
+	public void setNews(String title, String image, String url) {
+		synchronized (MircConfig.class) {
+			deleteNews();
+			Element news = mircRoot.getOwnerDocument().createElement("news");
+			setNewsChild(news, "title", title);
+			setNewsChild(news, "image", image);
+			setNewsChild(news, "url", url);
+			mircRoot.appendChild(news);
+			saveXML();
+			loadXML();
+		}
 	}
 
 	private void setNewsChild(Element parent, String childName, String value) {
@@ -796,12 +860,14 @@ public class MircConfig {
 	/**
 	 * Delete the news element.
 	 */
-	public synchronized void deleteNews() {
-		NodeList nl = mircRoot.getElementsByTagName("news");
-		if (nl.getLength() != 0) {
-			mircRoot.removeChild(nl.item(0));
-			saveXML();
-			loadXML();
+	public void deleteNews() {
+		synchronized (MircConfig.class) {
+			NodeList nl = mircRoot.getElementsByTagName("news");
+			if (nl.getLength() != 0) {
+				mircRoot.removeChild(nl.item(0));
+				saveXML();
+				loadXML();
+			}
 		}
 	}
 
@@ -821,5 +887,91 @@ public class MircConfig {
 		return fsDicomAnonymizer;
 	}
 
-}
+	/**
+	 * An immutable, pre-indexed view of the configuration. A new Snapshot
+	 * is built whenever the configuration changes, so readers never lock.
+	 * All the XML objects of a Snapshot are private copies which are never
+	 * modified after the Snapshot is published.
+	 */
+	static class Snapshot {
+		final Document xml;
+		final String siteurl;
+		final int timeout;
+		final String siteid;
+		final String sitename;
+		final String version;
+		final String mode;
+		final String ui;
+		final String email;
+		final String roles;
+		final boolean sharestats;
+		final Map<String,Element> libraries;
+		final Map<String,Element> localLibraries;
+		final Set<String> localIDs;
+		final Element[] sortedLibraries;
+		final Element fileService;
+		final Element news;
+
+		//The empty Snapshot, used before the configuration is loaded.
+		Snapshot() {
+			xml = null;
+			siteurl = null;
+			timeout = 10;
+			siteid = sitename = version = mode = ui = email = roles = "";
+			sharestats = false;
+			libraries = Collections.emptyMap();
+			localLibraries = Collections.emptyMap();
+			localIDs = Collections.emptySet();
+			sortedLibraries = new Element[0];
+			fileService = null;
+			news = null;
+		}
+
+		Snapshot(Document config, Hashtable<String,Element> libs, String siteurl, int timeout) throws Exception {
+			Document xml = XmlUtil.getDocument();
+			Element root = (Element)xml.appendChild( xml.importNode(config.getDocumentElement(), true) );
+			this.xml = xml;
+			this.siteurl = siteurl;
+			this.timeout = timeout;
+			this.siteid = root.getAttribute("siteid");
+			this.sitename = root.getAttribute("sitename");
+			this.version = root.getAttribute("version");
+			this.mode = root.getAttribute("mode");
+			this.ui = root.getAttribute("UI");
+			this.email = root.getAttribute("email");
+			this.roles = root.getAttribute("roles");
+			this.sharestats = root.getAttribute("sharestats").equals("yes");
+
+			//Copy the Library elements of the libraries table (which may not
+			//yet be in the DOM) into a private document, and index the copies.
+			Document libDoc = XmlUtil.getDocument();
+			Element libRoot = libDoc.createElement("Libraries");
+			libDoc.appendChild(libRoot);
+			HashMap<String,Element> byAddress = new HashMap<String,Element>();
+			HashMap<String,Element> byID = new HashMap<String,Element>();
+			if (libs != null) {
+				for (String address : libs.keySet()) {
+					Element lib = (Element)libRoot.appendChild( libDoc.importNode(libs.get(address), true) );
+					byAddress.put(address, lib);
+					if (lib.getAttribute("local").equals("yes") && address.equals("/storage/"+lib.getAttribute("id"))) {
+						byID.put(lib.getAttribute("id"), lib);
+					}
+				}
+			}
+			this.libraries = Collections.unmodifiableMap(byAddress);
+			this.localLibraries = Collections.unmodifiableMap(byID);
+			this.localIDs = Collections.unmodifiableSet(new HashSet<String>(byID.keySet()));
+
+			Element[] libArray = byAddress.values().toArray( new Element[byAddress.size()] );
+			Arrays.sort( libArray, new ElementComparator() );
+			this.sortedLibraries = libArray;
+
+			this.fileService = XmlUtil.getFirstNamedChild(root, "FileService");
 
+			NodeList nl = root.getElementsByTagName("news");
+			if (nl.getLength() == 0) this.news = xml.createElement("news");
+			else this.news = (Element)nl.item(0);
+		}
+	}
+
+}
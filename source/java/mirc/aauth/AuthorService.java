@@ -25,6 +25,7 @@ import mirc.util.MircDocument;
 import mirc.util.MircImage;
 import mirc.util.MyRsnaSession;
 import mirc.util.SvgUtil;
+import mirc.util.TemplateCatalog;
 
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -220,41 +221,10 @@ public class AuthorService extends Servlet {
 	//Get an XML document containing a list of all the
 	//templates available for this service.
 	private Document getTemplates(File dir) {
-		Document doc;
-		try { doc= XmlUtil.getDocument(); }
-		catch (Exception failure) { return null; }
-		Element root = doc.createElement("templates");
-		doc.appendChild(root);
-		File[] files = dir.listFiles();
-		for (int i=0; i<files.length; i++) {
-			if (files[i].getName().toLowerCase().endsWith(".xml")) {
-				try {
-					Document md = XmlUtil.getDocument(files[i]);
-					Element mdRoot = md.getDocumentElement();
-					if (mdRoot.getTagName().equals("MIRCdocument")) {
-						String title = "Untitled";
-						NodeList nl = mdRoot.getElementsByTagName("title");
-						if (nl.getLength() > 0) title = nl.item(0).getTextContent().replaceAll("\\s+", " ");
-						Element child = doc.createElement("template");
-						root.appendChild(child);
-						Element childFile = doc.createElement("file");
-						child.appendChild(childFile);
-						childFile.setTextContent(files[i].getName());
-						Element childTitle = doc.createElement("title");
-						child.appendChild(childTitle);
-						childTitle.setTextContent(title);
-
-						String display = mdRoot.getAttribute("display").trim().toLowerCase();
-						if (display.equals("")) display = "page";
-						Element childToken = doc.createElement("token");
-						child.appendChild(childToken);
-						childToken.setTextContent(display+".jpg");
-					}
-				}
-				catch (Exception ignoreFile) { }
-			}
+		Document doc = TemplateCatalog.getInstance(dir).getTemplatesDocument(true);
+		if (logger.isDebugEnabled() && (doc != null)) {
+			logger.debug("Templates document\n"+XmlUtil.toPrettyString(doc));
 		}
-		logger.debug("Templates document\n"+XmlUtil.toPrettyString(doc));
 		return doc;
 	}
 
@@ -311,7 +281,8 @@ public class AuthorService extends Servlet {
 						logger.debug("Template parameter: "+template);
 
 						//Process the template with the editor-form transform file.
-						Document templateXML = XmlUtil.getDocument( new File(aauth, template) );
+						Document templateXML = TemplateCatalog.getInstance(aauth).getTemplate(template);
+						if (templateXML == null) templateXML = XmlUtil.getDocument( new File(aauth, template) );
 
 						File xslFile = new File(aauth, "Editor.xsl");
 						Document xsl = XmlUtil.getDocument( FileUtil.getStream( xslFile, "/aauth/Editor.xsl" ) );
@@ -330,7 +301,7 @@ public class AuthorService extends Servlet {
 								"version",	mc.getVersion(),
 								"activetab","1"
 							};
-						logger.debug("Template\n"+XmlUtil.toPrettyString(templateXML));
+						if (logger.isDebugEnabled()) logger.debug("Template\n"+XmlUtil.toPrettyString(templateXML));
 						res.write( XmlUtil.getTransformedText( templateXML, xsl, params ) );
 						res.setContentType("html");
 						res.send();
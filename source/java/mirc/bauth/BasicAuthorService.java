@@ -20,6 +20,7 @@ import mirc.prefs.Preferences;
 import mirc.storage.Index;
 import mirc.util.MircDocument;
 import mirc.util.MircImage;
+import mirc.util.TemplateCatalog;
 
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -121,9 +122,13 @@ public class BasicAuthorService extends Servlet {
 				//Get the template
 				String templateName = req.getParameter("file", "example-basic-template.xml").trim();
 				File bauth = new File(root, "bauth");
-				File template = new File(bauth, templateName);
-				FileUtil.getFile( template, "/bauth/"+templateName );
-				Document templateXML = XmlUtil.getDocument(template);
+				TemplateCatalog catalog = TemplateCatalog.getInstance(bauth);
+				Document templateXML = catalog.getTemplate(templateName);
+				if (templateXML == null) {
+					File template = new File(bauth, templateName);
+					FileUtil.getFile( template, "/bauth/"+templateName );
+					templateXML = XmlUtil.getDocument(template);
+				}
 
 				//Generate the submission page.
 				Object[] params = {
@@ -149,35 +154,7 @@ public class BasicAuthorService extends Servlet {
 	//Get an XML document containing a list of all the
 	//templates available for this service.
 	private Document getTemplates(File dir) {
-		Document doc;
-		try { doc= XmlUtil.getDocument(); }
-		catch (Exception failure) { return null; }
-		Element root = doc.createElement("templates");
-		doc.appendChild(root);
-		File[] files = dir.listFiles();
-		for (int i=0; i<files.length; i++) {
-			if (files[i].getName().toLowerCase().endsWith(".xml")) {
-				try {
-					Document md = XmlUtil.getDocument(files[i]);
-					Element mdRoot = md.getDocumentElement();
-					if (mdRoot.getTagName().equals("MIRCdocument")) {
-						String title = "Untitled";
-						NodeList nl = mdRoot.getElementsByTagName("title");
-						if (nl.getLength() > 0) title = nl.item(0).getTextContent().replaceAll("\\s+", " ");
-						Element child = doc.createElement("template");
-						root.appendChild(child);
-						Element childFile = doc.createElement("file");
-						child.appendChild(childFile);
-						childFile.setTextContent(files[i].getName());
-						Element childTitle = doc.createElement("title");
-						child.appendChild(childTitle);
-						childTitle.setTextContent(title);
-					}
-				}
-				catch (Exception ignoreFile) { }
-			}
-		}
-		return doc;
+		return TemplateCatalog.getInstance(dir).getTemplatesDocument(false);
 	}
 
 	/**
@@ -85,17 +85,12 @@ public class ConferenceService extends Servlet {
 			//This is a request for the tree structure for the left pane.
 			//This function is allowed for non-authenticated users, so
 			//they can see the shared conferences
+			//The tree is rendered from the cached conference trees.
 			Conferences confs = Conferences.getInstance();
-			Document doc = XmlUtil.getDocument();
-			Element root = doc.createElement("tree");
-			doc.appendChild(root);
-			appendConferences(root, confs.getRootConference(null));
-			if (req.isFromAuthenticatedUser()) {
-				appendConferences(root, confs.getRootConference(req.getUser().getUsername()));
-			}
+			String username = req.isFromAuthenticatedUser() ? req.getUser().getUsername() : null;
 			res.disableCaching();
 			res.setContentType("xml");
-			res.write( XmlUtil.toString(root) );
+			res.write( confs.getTreeXML(username) );
 			res.send();
 			return;
 		}
@@ -105,9 +100,22 @@ public class ConferenceService extends Servlet {
 			//the agenda items of the specified conference
 			String nodeID = req.getParameter("nodeID");
 			Conferences confs = Conferences.getInstance();
-			Conference conf = confs.getConference(nodeID);
 
-			if (req.isFromAuthenticatedUser() || confs.isShared(nodeID)) {
+			//Try the cached trees first.
+			String username = req.isFromAuthenticatedUser() ? req.getUser().getUsername() : null;
+			String agenda = confs.getAgendaXML(username, nodeID);
+			if (agenda != null) {
+				res.disableCaching();
+				res.setContentType("xml");
+				res.write( agenda );
+				res.send();
+				return;
+			}
+
+			//The conference is not in a tree of this user;
+			//get it from the database.
+			Conference conf = confs.getConference(nodeID);
+			if ((conf != null) && (req.isFromAuthenticatedUser() || confs.isShared(nodeID))) {
 				Document doc = XmlUtil.getDocument();
 				Element root = doc.createElement("agenda");
 				doc.appendChild(root);
@@ -168,13 +176,9 @@ public class ConferenceService extends Servlet {
 			Conferences confs = Conferences.getInstance();
 			Conference conf = confs.createConference(username, name, id);
 			if (conf != null) {
-				Document doc = XmlUtil.getDocument();
-				Element root = doc.createElement("tree");
-				doc.appendChild(root);
-				appendConferences(root, confs.getConference(id));
 				res.disableCaching();
 				res.setContentType("xml");
-				res.write( XmlUtil.toString(root) );
+				res.write( getTreeXML(username, id) );
 				res.send();
 				return;
 			}
@@ -188,13 +192,9 @@ public class ConferenceService extends Servlet {
 			Conference conf = confs.getConference(id);
 			String parentID = conf.pid;
 			confs.deleteConference(id);
-			Document doc = XmlUtil.getDocument();
-			Element root = doc.createElement("tree");
-			doc.appendChild(root);
-			appendConferences(root, confs.getConference(parentID));
 			res.disableCaching();
 			res.setContentType("xml");
-			res.write( XmlUtil.toString(root) );
+			res.write( getTreeXML(username, parentID) );
 			res.send();
 			return;
 		}
@@ -371,6 +371,18 @@ public class ConferenceService extends Servlet {
 		super.doGet(req, res);
 	}
 
+	//Get the tree XML for a subtree, using the cached trees if possible.
+	private String getTreeXML(String username, String id) throws Exception {
+		Conferences confs = Conferences.getInstance();
+		String xml = confs.getTreeXML(username, id);
+		if (xml != null) return xml;
+		Document doc = XmlUtil.getDocument();
+		Element root = doc.createElement("tree");
+		doc.appendChild(root);
+		appendConferences(root, confs.getConference(id));
+		return XmlUtil.toString(root);
+	}
+
 	//Add a conference and its child conferences to a tree
 	private void appendConferences(Node parent, Conference conf) {
 		if (conf == null) logger.warn("call to appendConferences(null); ["+((Element)parent).getAttribute("name")+"]");
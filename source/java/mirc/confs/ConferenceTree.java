@@ -0,0 +1,199 @@
+/*---------------------------------------------------------------
+*  Copyright 2009 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.confs;
+
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * An immutable view of the tree of conferences under one root conference
+ * (the shared root or a user's personal root). The tree is loaded from
+ * the database in a single pass, and the tree and agenda XML strings are
+ * rendered when the tree is constructed. Instances are cached by the
+ * Conferences database and replaced whenever a conference in the tree changes.
+ */
+public class ConferenceTree {
+
+	static final Logger logger = Logger.getLogger(ConferenceTree.class);
+
+	final String rootID;
+	final Map<String,Entry> entries;
+	final String xml;
+
+	//The tree XML combined with the shared tree against which it was rendered.
+	private volatile Combined combined = null;
+
+	/**
+	 * Construct a ConferenceTree from a root conference and all its
+	 * descendants, which must be supplied in the map.
+	 * @param root the root conference.
+	 * @param conferences the conferences in the tree, indexed by id.
+	 */
+	ConferenceTree(Conference root, Map<String,Conference> conferences) throws Exception {
+		this.rootID = root.id;
+		Map<String,Entry> map = new HashMap<String,Entry>();
+		for (Conference conf : conferences.values()) {
+			map.put(conf.id, new Entry(conf));
+		}
+		this.entries = Collections.unmodifiableMap(map);
+		this.xml = render(new ConferenceTree[] { this });
+	}
+
+	/**
+	 * Get the id of the root conference of the tree.
+	 */
+	public String getRootID() {
+		return rootID;
+	}
+
+	/**
+	 * Determine whether a conference is in this tree.
+	 * @param id the id of the conference.
+	 */
+	public boolean contains(String id) {
+		return (id != null) && entries.containsKey(id);
+	}
+
+	/**
+	 * Get the title of a conference in this tree.
+	 * @param id the id of the conference.
+	 * @return the title, or null if the conference is not in this tree.
+	 */
+	public String getTitle(String id) {
+		Entry entry = (id != null) ? entries.get(id) : null;
+		return (entry != null) ? entry.title : null;
+	}
+
+	/**
+	 * Get the pre-rendered tree XML for this tree.
+	 */
+	public String getXML() {
+		return xml;
+	}
+
+	/**
+	 * Get the pre-rendered tree XML for the shared tree followed by this tree.
+	 * The result is cached until either tree changes.
+	 * @param shared the current shared tree.
+	 */
+	public String getXML(ConferenceTree shared) {
+		if ((shared == null) || (shared == this)) return xml;
+		Combined c = combined;
+		if ((c == null) || (c.shared != shared)) {
+			c = new Combined(shared, render(new ConferenceTree[] { shared, this }));
+			combined = c;
+		}
+		return c.xml;
+	}
+
+	/**
+	 * Get tree XML for the subtree rooted at a conference in this tree.
+	 * @param id the id of the conference at the root of the subtree.
+	 * @return the XML string, or null if the conference is not in this tree.
+	 */
+	public String getXML(String id) {
+		Entry entry = (id != null) ? entries.get(id) : null;
+		if (entry == null) return null;
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("tree");
+			doc.appendChild(root);
+			appendNode(root, entry);
+			return XmlUtil.toString(root);
+		}
+		catch (Exception ex) { return null; }
+	}
+
+	/**
+	 * Get the pre-rendered agenda XML for a conference in this tree.
+	 * @param id the id of the conference.
+	 * @return the XML string, or null if the conference is not in this tree.
+	 */
+	public String getAgendaXML(String id) {
+		Entry entry = (id != null) ? entries.get(id) : null;
+		return (entry != null) ? entry.agendaXML : null;
+	}
+
+	//Render a tree element containing the root nodes of a list of trees.
+	private static String render(ConferenceTree[] trees) {
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("tree");
+			doc.appendChild(root);
+			for (ConferenceTree tree : trees) {
+				Entry entry = tree.entries.get(tree.rootID);
+				if (entry != null) tree.appendNode(root, entry);
+			}
+			return XmlUtil.toString(root);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to render the conference tree", ex);
+			return "<tree/>";
+		}
+	}
+
+	//Add a node and its child nodes to a tree
+	private void appendNode(Node parent, Entry entry) {
+		Element el = parent.getOwnerDocument().createElement("node");
+		el.setAttribute("name", entry.title);
+		el.setAttribute("nodeID", entry.id);
+		el.setAttribute("sclickHandler", "showConferenceContents");
+		parent.appendChild(el);
+		for (String id : entry.children) {
+			Entry child = entries.get(id);
+			if (child != null) appendNode(el, child);
+			else logger.warn("missing child conference "+id+" in "+entry.id);
+		}
+	}
+
+	//The combined tree XML and the shared tree against which it was
+	//rendered, published together so a reader never sees one without the other.
+	static class Combined {
+		final ConferenceTree shared;
+		final String xml;
+
+		Combined(ConferenceTree shared, String xml) {
+			this.shared = shared;
+			this.xml = xml;
+		}
+	}
+
+	//An immutable copy of the fields of a Conference
+	//which are required to render the tree and the agenda.
+	static class Entry {
+		final String id;
+		final String title;
+		final List<String> children;
+		final String agendaXML;
+
+		Entry(Conference conf) throws Exception {
+			this.id = conf.id;
+			this.title = conf.title;
+			this.children = Collections.unmodifiableList(new ArrayList<String>(conf.children));
+
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("agenda");
+			doc.appendChild(root);
+			for (AgendaItem item : conf.agenda) {
+				Element el = doc.createElement("item");
+				el.setAttribute("url", item.url);
+				el.setAttribute("title", item.title);
+				el.setAttribute("alturl", item.alturl);
+				el.setAttribute("alttitle", item.alttitle);
+				el.setAttribute("subtitle", item.subtitle);
+				root.appendChild(el);
+			}
+			this.agendaXML = XmlUtil.toString(root);
+		}
+	}
+
+}
@@ -8,7 +8,10 @@
 package mirc.confs;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
 import jdbm.RecordManager;
 import jdbm.RecordManagerFactory;
@@ -34,6 +37,10 @@ public class Conferences {
 	private static HTree confs = null;
 	private static HTree cfids = null;
 
+	//The cache of conference trees, indexed by root name.
+	private static final ConcurrentHashMap<String,ConferenceTree> trees =
+								new ConcurrentHashMap<String,ConferenceTree>();
+
 	/**
 	 * Protected constructor.
 	 * @param dir the directory in which the database is located.
@@ -73,7 +80,7 @@ public class Conferences {
 	 */
 	public synchronized Conference getRootConference(String mircUsername) {
 		if ((roots != null) && (confs != null)) {
-			String rootname = (mircUsername == null) ? "Shared" : "Personal/"+mircUsername;
+			String rootname = getRootName(mircUsername);
 			try {
 				String id = (String)roots.get(rootname);
 				if (id != null) {
@@ -94,11 +101,123 @@ public class Conferences {
 		return null;
 	}
 
+	/**
+	 * Get the cached tree of conferences under the root conference for
+	 * a specific user, loading it from the database if necessary.
+	 * This method does not lock the database if the tree is cached.
+	 * @param mircUsername the username of the user on the MIRC site,
+	 * or null if the shared conference tree is desired.
+	 * @return the ConferenceTree or null if unable.
+	 */
+	public ConferenceTree getTree(String mircUsername) {
+		String rootname = getRootName(mircUsername);
+		ConferenceTree tree = trees.get(rootname);
+		if (tree == null) {
+			synchronized (this) {
+				tree = trees.get(rootname);
+				if (tree == null) {
+					tree = loadTree(mircUsername);
+					if (tree != null) trees.put(rootname, tree);
+				}
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Get the tree XML for the shared conferences and, if a user is
+	 * specified, the user's personal conferences.
+	 * @param mircUsername the username of the user on the MIRC site,
+	 * or null if only the shared conferences are desired.
+	 * @return the tree XML string.
+	 */
+	public String getTreeXML(String mircUsername) {
+		ConferenceTree shared = getTree(null);
+		ConferenceTree personal = (mircUsername != null) ? getTree(mircUsername) : null;
+		if (personal == null) return (shared != null) ? shared.getXML() : "<tree/>";
+		return personal.getXML(shared);
+	}
+
+	/**
+	 * Get the tree XML for the subtree rooted at a conference.
+	 * @param mircUsername the username of the user on the MIRC site.
+	 * @param id the id of the conference at the root of the subtree.
+	 * @return the tree XML string, or null if the conference is
+	 * not in the shared tree or the user's personal tree.
+	 */
+	public String getTreeXML(String mircUsername, String id) {
+		ConferenceTree tree = getTreeContaining(mircUsername, id);
+		return (tree != null) ? tree.getXML(id) : null;
+	}
+
+	/**
+	 * Get the agenda XML for a conference in the shared tree or,
+	 * if a user is specified, the user's personal tree.
+	 * @param mircUsername the username of the user on the MIRC site,
+	 * or null if only shared conferences are to be searched.
+	 * @param id the id of the conference.
+	 * @return the agenda XML string, or null if the conference
+	 * is not in the shared tree or the user's personal tree.
+	 */
+	public String getAgendaXML(String mircUsername, String id) {
+		ConferenceTree tree = getTreeContaining(mircUsername, id);
+		return (tree != null) ? tree.getAgendaXML(id) : null;
+	}
+
+	//Get the cached tree (shared or the user's personal tree) containing a conference.
+	private ConferenceTree getTreeContaining(String mircUsername, String id) {
+		ConferenceTree shared = getTree(null);
+		if ((shared != null) && shared.contains(id)) return shared;
+		if (mircUsername != null) {
+			ConferenceTree personal = getTree(mircUsername);
+			if ((personal != null) && personal.contains(id)) return personal;
+		}
+		return null;
+	}
+
+	//Load the tree under a user's root conference, reading each
+	//conference once. This method must be called from a synchronized block.
+	private ConferenceTree loadTree(String mircUsername) {
+		Conference root = getRootConference(mircUsername);
+		if (root == null) return null;
+		try {
+			HashMap<String,Conference> map = new HashMap<String,Conference>();
+			LinkedList<Conference> queue = new LinkedList<Conference>();
+			queue.add(root);
+			while (!queue.isEmpty()) {
+				Conference conf = queue.removeFirst();
+				map.put(conf.id, conf);
+				for (String id : conf.children) {
+					if (!map.containsKey(id)) {
+						Conference child = (Conference)confs.get(id);
+						if (child != null) queue.add(child);
+					}
+				}
+			}
+			return new ConferenceTree(root, map);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to load the conference tree for "+getRootName(mircUsername), ex);
+			return null;
+		}
+	}
+
+	//Discard the cached tree containing a conference.
+	private void invalidate(Conference conf) {
+		if (conf != null) trees.remove(getRootName(conf.owner));
+	}
+
+	private static String getRootName(String mircUsername) {
+		return (mircUsername == null) ? "Shared" : "Personal/"+mircUsername;
+	}
+
 	/**
 	 * Determine whether a Conference is shared.
 	 * @return true if the conference is shared, false otherwise.
 	 */
 	public synchronized boolean isShared(String id) {
+		ConferenceTree shared = trees.get(getRootName(null));
+		if ((shared != null) && shared.contains(id)) return true;
 		if (confs != null) {
 			try {
 				Conference conf = (Conference)confs.get(id);
@@ -143,6 +262,7 @@ public class Conferences {
 								&& !oldVersion.owner.equals(newVersion.owner)) return false;
 				confs.put(newVersion.id, newVersion);
 				recman.commit();
+				invalidate(oldVersion);
 				return true;
 			}
 			catch (Exception ex) { }
@@ -191,6 +311,7 @@ public class Conferences {
 			parent.appendChildConference(newConference);
 			confs.put(parent.id, parent);
 			recman.commit();
+			invalidate(parent);
 			return newConference;
 		}
 		catch (Exception ex) { }
@@ -223,6 +344,7 @@ public class Conferences {
 			parent.removeChildConference(id);
 			confs.put(parent.id, parent);
 			recman.commit();
+			invalidate(parent);
 			return true;
 		}
 		catch (Exception ex) {
@@ -295,6 +417,7 @@ public class Conferences {
 				recman.commit();
 				recman.close();
 				recman = null;
+				trees.clear();
 				roots = null;
 				confs = null;
 				cfids = null;
@@ -36,6 +36,10 @@ public class DownloadDB {
 	private static final String downloadsName = "downloads";
 	private static BTree downloads = null;
 
+	//The number of downloads of each file, counted when the database
+	//is loaded and then maintained as entries are inserted.
+	private final Counter counter = new Counter();
+
 	/**
 	 * Protected constructor.
 	 * @param dir the directory in which the database is located.
@@ -45,6 +49,20 @@ public class DownloadDB {
 		File databaseFile = new File(dir, databaseName);
 		recman = JdbmUtil.getRecordManager(databaseFile.getAbsolutePath());
 		downloads = JdbmUtil.getBTree(recman, downloadsName);
+		loadCounter();
+	}
+
+	//Count the downloads of each file in the database.
+	private void loadCounter() {
+		try {
+			Tuple tuple = new Tuple();
+			TupleBrowser browser = downloads.browse();
+			while (browser.getNext(tuple)) {
+				Entry entry = (Entry)tuple.getValue();
+				counter.add(entry.name);
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to count the downloads", ex); }
 	}
 
 	/**
@@ -94,6 +112,7 @@ public class DownloadDB {
 				Entry entry = new Entry( file.getName(), version, ip, email, pname, iname, cname, interest, sitetype );
 				downloads.insert( time, entry, true );
 				recman.commit();
+				counter.add(entry.name);
 			}
 		}
 		catch (Exception skip) { logger.warn("Unable to insert into downloads",skip); }
@@ -101,6 +120,8 @@ public class DownloadDB {
 
 	/**
 	 * Get an XML Document containing the contents of the database.
+	 * The summary is obtained from the counts maintained as entries
+	 * are inserted; only the list of downloads requires a scan.
 	 */
 	public synchronized Document getXML() {
 		Document doc = null;
@@ -113,7 +134,6 @@ public class DownloadDB {
 			Element downloadsElement = doc.createElement("downloads");
 			root.appendChild(downloadsElement);
 
-			Counter counter = new Counter();
 			Tuple tuple = new Tuple();
 			TupleBrowser browser = downloads.browse();
 			while (browser.getNext(tuple)) {
@@ -127,7 +147,6 @@ public class DownloadDB {
 				dl.setAttribute("ip", entry.ip);
 
 				downloadsElement.appendChild(dl);
-				counter.add(entry.name);
 			}
 			String[] names = counter.getNames();
 			for (String name : names) {
@@ -141,7 +160,7 @@ public class DownloadDB {
 		return doc;
 	}
 
-	class Counter extends Hashtable<String, Integer> {
+	static class Counter extends Hashtable<String, Integer> {
 		public Counter() {
 			super();
 		}
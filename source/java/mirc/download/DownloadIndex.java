@@ -0,0 +1,299 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.download;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.ZipObject;
+import org.rsna.util.FileUtil;
+import org.rsna.util.JarUtil;
+import org.rsna.util.StringUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A class to provide singleton access to an index of the
+ * metadata of the artifacts in the download directory.
+ * <p>
+ * The manifest of each jar and zip file is read once, when the
+ * file first appears or when its size or last-modified date changes.
+ * A Watcher thread rescans the directory periodically, and the
+ * DownloadServlet rescans it after an upload. The XML Document
+ * listing the artifacts is rebuilt only when a scan detects a
+ * change, and the generation number is incremented so that
+ * pages rendered from the previous Document can be discarded.
+ */
+public class DownloadIndex {
+
+	static final Logger logger = Logger.getLogger(DownloadIndex.class);
+
+	static final long interval = 10 * 1000; //10 seconds
+
+	private static DownloadIndex downloadIndex = null;
+
+	final File dir;
+	final ConcurrentSkipListMap<String,Artifact> artifacts;
+	volatile Document xml = null;
+	volatile long generation = 0;
+	Watcher watcher = null;
+
+	/**
+	 * Protected constructor.
+	 * @param dir the download directory.
+	 */
+	protected DownloadIndex(File dir) {
+		this.dir = dir;
+		artifacts = new ConcurrentSkipListMap<String,Artifact>();
+		refresh();
+	}
+
+	/**
+	 * Load the singleton instance of the index and start
+	 * the thread that watches the download directory.
+	 * This method is intended to be called by the init method
+	 * of the DownloadServlet when MIRC starts.
+	 * @param dir the download directory.
+	 */
+	public static synchronized DownloadIndex load(File dir) {
+		if (downloadIndex != null) downloadIndex.stopWatcher();
+		downloadIndex = new DownloadIndex(dir);
+		downloadIndex.startWatcher();
+		return downloadIndex;
+	}
+
+	/**
+	 * Get the singleton instance of the index.
+	 */
+	public static synchronized DownloadIndex getInstance() {
+		return downloadIndex;
+	}
+
+	/**
+	 * Stop the watcher thread.
+	 * The index remains usable, but it is no longer
+	 * refreshed unless the refresh method is called.
+	 */
+	public static synchronized void close() {
+		if (downloadIndex != null) downloadIndex.stopWatcher();
+	}
+
+	/**
+	 * Get the current generation of the index. The generation
+	 * is incremented each time a change in the directory is detected.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Get the XML Document listing the artifacts in the directory.
+	 * The Document is shared and must not be modified by the caller.
+	 */
+	public Document getXML() {
+		return xml;
+	}
+
+	/**
+	 * Get the build string of a file in the download directory, using
+	 * the indexed value if the file is unchanged since it was indexed.
+	 * @param file the file.
+	 * @return the build string, or the empty string if the file has no manifest.
+	 */
+	public String getBuild(File file) {
+		Artifact artifact = artifacts.get(file.getName());
+		if ((artifact != null)
+				&& (artifact.length == file.length())
+					&& (artifact.lastModified == file.lastModified())) {
+			return artifact.build;
+		}
+		return new Artifact(file).build;
+	}
+
+	/**
+	 * Scan the directory and update the entries of the artifacts
+	 * which have been added, changed, or removed since the last scan.
+	 * @return true if a change was detected; false otherwise.
+	 */
+	public synchronized boolean refresh() {
+		if (!dir.exists()) dir.mkdirs();
+		File[] files = dir.listFiles();
+		if (files == null) files = new File[0];
+		boolean changed = (xml == null);
+		HashSet<String> names = new HashSet<String>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.toLowerCase().endsWith(".txt")) {
+				names.add(name);
+				Artifact artifact = artifacts.get(name);
+				if ((artifact == null) || artifact.isStale(file)) {
+					artifacts.put(name, new Artifact(file));
+					changed = true;
+				}
+			}
+		}
+		for (String name : artifacts.keySet()) {
+			if (!names.contains(name)) {
+				artifacts.remove(name);
+				changed = true;
+			}
+		}
+		if (changed) {
+			xml = getDocument();
+			generation++;
+		}
+		return changed;
+	}
+
+	//Build the Document listing the indexed artifacts in name order.
+	private Document getDocument() {
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element filesElement = doc.createElement("files");
+			doc.appendChild(filesElement);
+			for (Artifact artifact : artifacts.values()) {
+				Element fileElement = doc.createElement("file");
+				filesElement.appendChild(fileElement);
+				fileElement.setAttribute("name", artifact.name);
+				String lm = StringUtil.getDateTime( artifact.lastModified, " at " );
+				fileElement.setAttribute("lastModified", lm);
+				fileElement.setAttribute("size", Long.toString( artifact.length ));
+				if (artifact.hasManifest) fileElement.setAttribute("build", artifact.build);
+				if (!artifact.desc.equals("")) fileElement.setAttribute("desc", artifact.desc);
+			}
+			return doc;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to create the download index document", ex);
+			return null;
+		}
+	}
+
+	private synchronized void startWatcher() {
+		watcher = new Watcher();
+		watcher.start();
+	}
+
+	private synchronized void stopWatcher() {
+		if (watcher != null) {
+			watcher.interrupt();
+			watcher = null;
+		}
+	}
+
+	//The metadata of one artifact, captured when the artifact
+	//or its description file was last seen to change.
+	static class Artifact {
+		final String name;
+		final long length;
+		final long lastModified;
+		final long textLastModified;
+		final boolean hasManifest;
+		final String build;
+		final String desc;
+
+		public Artifact(File file) {
+			name = file.getName();
+			length = file.length();
+			lastModified = file.lastModified();
+			File text = new File(file.getParentFile(), name+".txt");
+			textLastModified = text.lastModified();
+
+			String nameLC = name.toLowerCase();
+			boolean manifestFound = false;
+			String b = "";
+			String d = null;
+			if (nameLC.endsWith(".jar")) {
+				Hashtable<String,String> manifest = JarUtil.getManifestAttributes(file);
+				if (manifest != null) {
+					manifestFound = true;
+					b = getJarBuild(manifest);
+					d = manifest.get("Description");
+				}
+			}
+			else if (nameLC.endsWith(".zip")) {
+				try {
+					ZipObject zobj = new ZipObject(file);
+					Document manifest = zobj.getManifestDocument();
+					if (manifest != null) {
+						manifestFound = true;
+						b = getZipBuild(manifest);
+						d = manifest.getDocumentElement().getAttribute("description");
+					}
+				}
+				catch (Exception skip) { }
+			}
+			if ((d == null) || d.trim().equals("")) {
+				if (textLastModified != 0L) d = FileUtil.getText(text);
+			}
+			hasManifest = manifestFound;
+			build = b;
+			desc = (d != null) ? d.trim() : "";
+		}
+
+		//Determine whether the artifact or its description file
+		//has changed since this entry was created.
+		public boolean isStale(File file) {
+			File text = new File(file.getParentFile(), name+".txt");
+			return (file.length() != length)
+					|| (file.lastModified() != lastModified)
+						|| (text.lastModified() != textLastModified);
+		}
+	}
+
+	static String getJarBuild(Hashtable<String,String> manifest) {
+		String build = "";
+		if (manifest != null) {
+			String date = manifest.get("Date");
+			if (date != null) build = date;
+			String version = manifest.get("Version");
+			if (version != null) {
+				if (!build.equals("")) build += " ";
+				build += "["+version+"]";
+			}
+		}
+		return build;
+	}
+
+	static String getZipBuild(Document manifest) {
+		String build = "";
+		if (manifest != null) {
+			Element root = manifest.getDocumentElement();
+			String date = root.getAttribute("date").trim();
+			if (!date.equals("")) build = date;
+			String version = root.getAttribute("version").trim();
+			if (!version.equals("")) {
+				if (!build.equals("")) build += " ";
+				build += "["+version+"]";
+			}
+		}
+		return build;
+	}
+
+	//A Thread to rescan the download directory periodically.
+	class Watcher extends Thread {
+		public Watcher() {
+			super("DownloadIndex Watcher");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		public void run() {
+			while (!interrupted()) {
+				try {
+					sleep(interval);
+					if (refresh()) logger.debug("Download directory change detected");
+				}
+				catch (InterruptedException stop) { break; }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+}
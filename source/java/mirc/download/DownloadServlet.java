@@ -8,18 +8,15 @@
 package mirc.download;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 import mirc.MircConfig;
-import org.rsna.ctp.objects.ZipObject;
 import org.rsna.multipart.UploadedFile;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
 import org.rsna.server.Path;
 import org.rsna.servlets.Servlet;
 import org.rsna.util.FileUtil;
-import org.rsna.util.JarUtil;
 import org.rsna.util.JdbmUtil;
 import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
@@ -31,12 +28,18 @@ import org.w3c.dom.Element;
  */
 public class DownloadServlet extends Servlet {
 
+	//The rendered download pages, keyed by the page parameters.
+	static final ConcurrentHashMap<String,RenderedPage> pages =
+								new ConcurrentHashMap<String,RenderedPage>();
+
 	/**
-	 * Static init method. Nothing is required; the empty
-	 * method here is just to prevent the superclass' method
+	 * Static init method. This method loads the index of the
+	 * download directory. It also prevents the superclass' method
 	 * from creating an unnecessary index.html file.
 	 */
-	public static void init(File root, String context) { }
+	public static void init(File root, String context) {
+		DownloadIndex.load( new File(root, context) );
+	}
 
 	/**
 	 * Construct a DownloadServlet.
@@ -101,7 +104,7 @@ public class DownloadServlet extends Servlet {
 			if (file.exists() && !file.isDirectory()) {
 				String name = file.getName();
 				String nameLC = name.toLowerCase();
-				String build = getBuild(file);
+				String build = getIndex().getBuild(file);
 				String ip = req.getRemoteAddress();
 				DownloadDB.getInstance().insert(file, build, ip, "", "", "", "", "", "");
 
@@ -155,114 +158,55 @@ public class DownloadServlet extends Servlet {
 		//Now delete the temp directory
 		FileUtil.deleteAll(dir);
 
+		//Update the index so the page shows the new files
+		getIndex().refresh();
+
 		//Send the user to the download page so he can see what he did.
 		res.redirect("/download?ui="+ui);
 	}
 
-	private String getBuild(File file) {
-		String build = "";
-		String nameLC = file.getName().toLowerCase();
-		if (nameLC.endsWith(".jar")) {
-			Hashtable<String,String> manifest = JarUtil.getManifestAttributes(file);
-			build = getJarBuild(manifest);
-		}
-		else if (nameLC.endsWith(".zip")) {
-			try {
-				ZipObject zobj = new ZipObject(file);
-				Document manifest = zobj.getManifestDocument();
-				build = getZipBuild(manifest);
-			}
-			catch (Exception nobuild) { }
-		}
-		return build;
+	//Get the index of the download directory, loading it if necessary.
+	private DownloadIndex getIndex() {
+		DownloadIndex index = DownloadIndex.getInstance();
+		if (index == null) index = DownloadIndex.load( new File(root, context) );
+		return index;
 	}
 
-	private String getJarBuild(Hashtable<String,String> manifest) {
-		String build = "";
-		if (manifest != null) {
-			String date = manifest.get("Date");
-			if (date != null) build = date;
-			String version = manifest.get("Version");
-			if (version != null) {
-				if (!build.equals("")) build += " ";
-				build += "["+version+"]";
-			}
-		}
-		return build;
-	}
-
-	private String getZipBuild(Document manifest) {
-		String build = "";
-		if (manifest != null) {
-			Element root = manifest.getDocumentElement();
-			String date = root.getAttribute("date").trim();
-			if (!date.equals("")) build = date;
-			String version = root.getAttribute("version").trim();
-			if (!version.equals("")) {
-				if (!build.equals("")) build += " ";
-				build += "["+version+"]";
+	//Get the download page, using the cached rendering
+	//if the directory has not changed since it was rendered.
+	private String getPage(boolean admin, boolean upload, String ui) {
+		DownloadIndex index = getIndex();
+		String key = (admin ? "a" : "") + (upload ? "u" : "") + ":" + ui;
+		RenderedPage page = pages.get(key);
+		long generation = index.getGeneration();
+		if ((page != null) && (page.generation == generation)) return page.html;
+		synchronized (pages) {
+			try {
+				//Note: the index Document is shared, so the transformations
+				//are serialized, and the generation is captured with it.
+				generation = index.getGeneration();
+				Document doc = index.getXML();
+				Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/download/DownloadServlet.xsl" ) );
+				String[] params = new String[] {
+					"admin", (admin ? "yes" : "no"),
+					"upload", (upload ? "yes" : "no"),
+					"ui", ui};
+				String html = XmlUtil.getTransformedText( doc, xsl, params );
+				pages.put(key, new RenderedPage(generation, html));
+				return html;
 			}
+			catch (Exception ex) { return "Unable to create the download page."; }
 		}
-		return build;
 	}
 
-	private String getPage(boolean admin, boolean upload, String ui) {
-		try {
-			Document doc = XmlUtil.getDocument();
-			Element filesElement = doc.createElement("files");
-			doc.appendChild(filesElement);
-			File dir = new File(root, context);
-			if (!dir.exists()) dir.mkdirs();
-			File[] files = dir.listFiles();
-			Arrays.sort(files);
-			for (File file : files) {
-				String name = file.getName();
-				String nameLC = name.toLowerCase();
-				if (!nameLC.endsWith(".txt")) {
-					Element fileElement = doc.createElement("file");
-					filesElement.appendChild(fileElement);
-					fileElement.setAttribute("name", name);
-					String lm = StringUtil.getDateTime( file.lastModified(), " at " );
-					fileElement.setAttribute("lastModified", lm);
-					fileElement.setAttribute("size", Long.toString( file.length() ));
-					String desc = null;
-					if (nameLC.endsWith(".jar")) {
-						Hashtable<String,String> manifest = JarUtil.getManifestAttributes(file);
-						if (manifest != null) {
-							String build = getJarBuild(manifest);
-							fileElement.setAttribute("build", build);
-							desc = manifest.get("Description");
-							if (desc != null) desc = desc.trim();
-						}
-					}
-					else if (nameLC.endsWith(".zip")) {
-						try {
-							ZipObject zobj = new ZipObject(file);
-							Document manifest = zobj.getManifestDocument();
-							if (manifest != null) {
-								String build = getZipBuild(manifest);
-								fileElement.setAttribute("build", build);
-								Element root = manifest.getDocumentElement();
-								desc = root.getAttribute("description").trim();
-							}
-						}
-						catch (Exception skip) { }
-					}
-					if ((desc == null) || desc.equals("")) {
-						File text = new File(dir, name+".txt");
-						if (text.exists()) desc = FileUtil.getText(text).trim();
-					}
-					if ((desc != null) && !desc.trim().equals("")) fileElement.setAttribute("desc", desc);
-				}
-			}
-			Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/download/DownloadServlet.xsl" ) );
-			String[] params = new String[] {
-				"admin", (admin ? "yes" : "no"),
-				"upload", (upload ? "yes" : "no"),
-				"ui", ui};
-			return XmlUtil.getTransformedText( doc, xsl, params );
+	//A rendered download page and the index generation it was made from.
+	static class RenderedPage {
+		final long generation;
+		final String html;
+		public RenderedPage(long generation, String html) {
+			this.generation = generation;
+			this.html = html;
 		}
-		catch (Exception ex) { return "Unable to create the download page."; }
 	}
 
 	private String getUploadPage(String ui) {
@@ -0,0 +1,136 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the contents of the File Service directories.
+ * <p>
+ * The listing of a directory (its files, with their sizes and
+ * last-modified dates, and its child directories) is created the
+ * first time the directory is listed and reused as long as the
+ * last-modified date of the directory is unchanged. The FileService
+ * also invalidates the listings of the directories it modifies, so
+ * changes to files that do not change the directory's date (for
+ * example, a file replaced in place) are seen immediately.
+ */
+public class DirectoryIndex {
+
+	static final int maxListings = 10000;
+
+	static final ConcurrentHashMap<String,Listing> listings = new ConcurrentHashMap<String,Listing>();
+
+	/**
+	 * Get the listing of a directory, creating it if the directory
+	 * is not indexed or has changed since it was indexed.
+	 * @param dir the directory.
+	 * @return the listing of the directory. If the directory
+	 * does not exist, the listing is empty.
+	 */
+	public static Listing getListing(File dir) {
+		String key = dir.getAbsolutePath();
+		Listing listing = listings.get(key);
+		if ((listing != null) && (listing.lastModified == dir.lastModified())) return listing;
+		listing = new Listing(dir);
+		if (listings.size() >= maxListings) listings.clear();
+		listings.put(key, listing);
+		return listing;
+	}
+
+	/**
+	 * Remove the listing of a directory from the index.
+	 * @param dir the directory.
+	 */
+	public static void invalidate(File dir) {
+		listings.remove(dir.getAbsolutePath());
+	}
+
+	/**
+	 * Remove the listings of a directory, its parent, and all its
+	 * descendants from the index. This method is intended to be
+	 * called when a directory is deleted or renamed.
+	 * @param dir the root of the tree of directories.
+	 */
+	public static void invalidateTree(File dir) {
+		String key = dir.getAbsolutePath();
+		String prefix = key + File.separator;
+		for (String path : listings.keySet()) {
+			if (path.equals(key) || path.startsWith(prefix)) listings.remove(path);
+		}
+		File parent = dir.getParentFile();
+		if (parent != null) invalidate(parent);
+	}
+
+	/**
+	 * The listing of one directory.
+	 */
+	public static class Listing {
+
+		/** The last-modified date of the directory when it was listed. */
+		public final long lastModified;
+
+		/** The files in the directory, in name order. */
+		public final Entry[] files;
+
+		/** The names of the child directories, in name order. */
+		public final String[] dirs;
+
+		final HashSet<String> names;
+
+		Listing(File dir) {
+			//Get the date before listing the directory so a change
+			//made while it is being listed causes it to be relisted.
+			lastModified = dir.lastModified();
+			File[] list = dir.listFiles();
+			if (list == null) list = new File[0];
+			Arrays.sort(list);
+			LinkedList<Entry> fileList = new LinkedList<Entry>();
+			LinkedList<String> dirList = new LinkedList<String>();
+			names = new HashSet<String>();
+			for (File file : list) {
+				String name = file.getName();
+				if (file.isDirectory()) dirList.add(name);
+				else {
+					fileList.add(new Entry(name, file.length(), file.lastModified()));
+					names.add(name);
+				}
+			}
+			files = fileList.toArray(new Entry[fileList.size()]);
+			dirs = dirList.toArray(new String[dirList.size()]);
+		}
+
+		/**
+		 * Determine whether the directory contained a file when it was listed.
+		 * @param name the name of the file.
+		 * @return true if the file was in the directory; false otherwise.
+		 */
+		public boolean contains(String name) {
+			return names.contains(name);
+		}
+	}
+
+	/**
+	 * The metadata of one file in a listing.
+	 */
+	public static class Entry {
+		public final String name;
+		public final long size;
+		public final long lastModified;
+
+		Entry(String name, long size, long lastModified) {
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
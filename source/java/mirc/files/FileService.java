@@ -10,7 +10,6 @@ package mirc.files;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.Enumeration;
@@ -58,10 +57,11 @@ public class FileService extends Servlet {
 
 	static final Logger logger = Logger.getLogger(FileService.class);
 
+	static final String placeholderIconURL = "common/default.gif";
+
 	static File shared;
 	static File personal;
 
-	FileFilter dirsOnly = new GeneralFileFilter();
 	String username = "";
 
 	/**
@@ -143,15 +143,24 @@ public class FileService extends Servlet {
 		String subfunction = path.element(2).toLowerCase();
 
 		if (function.equals("tree")) {
+			//This is a GET for the tree of directories. If the depth parameter
+			//is supplied, the tree is truncated at that depth, and the nodes of
+			//directories whose children are not included are marked expandable.
+			//The children of those directories can be obtained with the
+			//subtree function.
 			String myrsnaParam = req.getParameter("myrsna", "no");
 			boolean includeMyRSNA = !myrsnaParam.equals("no");
+			int depth = getInt(req.getParameter("depth"), Integer.MAX_VALUE);
 			Document doc = XmlUtil.getDocument();
 			Element root = doc.createElement("tree");
 			doc.appendChild(root);
-			appendDir(root, new File(shared, "Files"), "Shared");
+			File sharedDir = new File(shared, "Files");
+			sharedDir.mkdirs();
+			appendDir(root, sharedDir, "Shared", depth);
 			File userDir = new File(personal, username);
 			userDir = new File(userDir, "Files");
-			appendDir(root, userDir, "Personal");
+			userDir.mkdirs();
+			appendDir(root, userDir, "Personal", depth);
 			if (includeMyRSNA) appendMyRsnaFiles(root, "MyRSNA");
 			res.disableCaching();
 			res.setContentType("xml");
@@ -160,9 +169,31 @@ public class FileService extends Servlet {
 			return;
 		}
 
+		else if (function.equals("subtree")) {
+			//This is a GET for the tree of directories under a single
+			//MIRC file cabinet directory, to the depth specified by the
+			//depth parameter (default: 1).
+			Path subpath = new Path( path.subpath(2) );
+			FilePath fp = new FilePath(subpath, username, shared, personal);
+			int depth = getInt(req.getParameter("depth"), 1);
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("tree");
+			doc.appendChild(root);
+			appendDir(root, fp.filesDir, fp.filesDir.getName(), depth);
+			res.disableCaching();
+			res.setContentType("xml");
+			res.write( XmlUtil.toString(root) );
+			res.send();
+			return;
+		}
+
 		else if (function.equals("mirc")) {
 			//This is a GET for the contents of a single MIRC file cabinet directory.
-			Document doc = getDirContentsDoc( new Path( path.subpath(2) ) );
+			//If the start or count parameters are supplied, only the
+			//requested page of files is returned.
+			int start = getInt(req.getParameter("start"), 0);
+			int count = getInt(req.getParameter("count"), Integer.MAX_VALUE);
+			Document doc = getDirContentsDoc( new Path( path.subpath(2) ), start, count );
 			res.disableCaching();
 			res.setContentType("xml");
 			res.write( XmlUtil.toString( doc.getDocumentElement() ) );
@@ -190,11 +221,13 @@ public class FileService extends Servlet {
 			FilePath fp = new FilePath(subpath, username, shared, personal);
 			fp.filesDir.mkdirs();
 			fp.iconsDir.mkdirs();
+			File parentDir = fp.filesDir.getParentFile();
+			DirectoryIndex.invalidate(parentDir);
+			DirectoryIndex.invalidate(fp.iconsDir.getParentFile());
 			Document doc = XmlUtil.getDocument();
 			Element root = doc.createElement("tree");
 			doc.appendChild(root);
-			File parentDir = fp.filesDir.getParentFile();
-			appendDir(root, parentDir, parentDir.getName());
+			appendDir(root, parentDir, parentDir.getName(), Integer.MAX_VALUE);
 			res.disableCaching();
 			res.setContentType("xml");
 			res.write( XmlUtil.toString(root) );
@@ -209,10 +242,12 @@ public class FileService extends Servlet {
 			File parentDir = fp.filesDir.getParentFile();
 			FileUtil.deleteAll(fp.filesDir);
 			FileUtil.deleteAll(fp.iconsDir);
+			DirectoryIndex.invalidateTree(fp.filesDir);
+			DirectoryIndex.invalidateTree(fp.iconsDir);
 			Document doc = XmlUtil.getDocument();
 			Element root = doc.createElement("tree");
 			doc.appendChild(root);
-			appendDir(root, parentDir, parentDir.getName());
+			appendDir(root, parentDir, parentDir.getName(), Integer.MAX_VALUE);
 			res.disableCaching();
 			res.setContentType("xml");
 			res.write( XmlUtil.toString(root) );
@@ -233,6 +268,8 @@ public class FileService extends Servlet {
 			else {
 				boolean filesResult = fp.filesDir.renameTo(newFilesDir);
 				boolean iconsResult = fp.iconsDir.renameTo(newIconsDir);
+				DirectoryIndex.invalidateTree(fp.filesDir);
+				DirectoryIndex.invalidateTree(fp.iconsDir);
 				res.write(
 					 "<ok>\n"
 					+"  <filesResult dir=\""+fp.filesDir+"\">"+filesResult+"</filesResult>\n"
@@ -446,34 +483,54 @@ public class FileService extends Servlet {
 		res.send();
 	}
 
-	private Document getDirContentsDoc(Path path) throws Exception {
+	//Get the contents of a directory, starting at the specified
+	//index in the list of files and including at most count files.
+	private Document getDirContentsDoc(Path path, int start, int count) throws Exception {
 		FilePath fp = new FilePath(path, username, shared, personal);
-		File[] files = fp.filesDir.listFiles();
+		DirectoryIndex.Listing files = DirectoryIndex.getListing(fp.filesDir);
+		DirectoryIndex.Listing icons = DirectoryIndex.getListing(fp.iconsDir);
 		Document doc = XmlUtil.getDocument();
 		Element root = doc.createElement("dir");
 		root.setAttribute("title", fp.dirTitle);
+		root.setAttribute("total", Integer.toString(files.files.length));
 		doc.appendChild(root);
-		for (int i=0; i<files.length; i++) {
-			if (files[i].isFile()) {
-				Element el = doc.createElement("file");
-				String name = files[i].getName();
-
-				//Figure out whether the icon is a gif or a jpg
-				String iconName = "";
-				File iconFile = new File(fp.iconsDir, name+".gif");
-				if (!iconFile.exists()) iconFile = new File(fp.iconsDir, name+".jpg");
-
-				if (iconFile.exists()) iconName = iconFile.getName();
-
-				el.setAttribute("fileURL", fp.filesURL + "/" + name);
-				el.setAttribute("iconURL", fp.iconsURL + "/" + iconName);
-				el.setAttribute("title", name);
-				root.appendChild(el);
+		start = Math.max(start, 0);
+		int end = (int)Math.min((long)start + (long)Math.max(count, 0), (long)files.files.length);
+		if (start > 0) root.setAttribute("start", Integer.toString(start));
+		for (int i=start; i<end; i++) {
+			DirectoryIndex.Entry file = files.files[i];
+			Element el = doc.createElement("file");
+			String name = file.name;
+
+			//Figure out whether the icon is a gif or a jpg.
+			//If the icon has not been created yet, make sure it is
+			//queued and supply the placeholder icon.
+			String iconURL;
+			if (icons.contains(name+".gif")) iconURL = fp.iconsURL + "/" + name + ".gif";
+			else if (icons.contains(name+".jpg")) iconURL = fp.iconsURL + "/" + name + ".jpg";
+			else {
+				IconQueue.add(new File(fp.filesDir, name), fp.iconsDir, IconQueue.HIGH);
+				iconURL = placeholderIconURL;
 			}
+
+			el.setAttribute("fileURL", fp.filesURL + "/" + name);
+			el.setAttribute("iconURL", iconURL);
+			el.setAttribute("title", name);
+			el.setAttribute("size", Long.toString(file.size));
+			el.setAttribute("lastModified", Long.toString(file.lastModified));
+			root.appendChild(el);
 		}
 		return doc;
 	}
 
+	//Parse an integer parameter, returning the default value
+	//if the parameter is missing or is not an integer.
+	private static int getInt(String value, int defaultValue) {
+		if (value == null) return defaultValue;
+		try { return Integer.parseInt(value.trim()); }
+		catch (Exception ex) { return defaultValue; }
+	}
+
 	//Add a category node to a tree
 	private Element appendCategory(Node parent, String title) throws Exception {
 		Element el = parent.getOwnerDocument().createElement("node");
@@ -482,16 +539,21 @@ public class FileService extends Servlet {
 		return el;
 	}
 
-	//Add a directory and its child directories to a tree
-	private void appendDir(Node parent, File dir, String title) throws Exception {
+	//Add a directory and its child directories to a tree, down to the
+	//specified depth. If the children of a directory are not included,
+	//mark its node as expandable.
+	private void appendDir(Node parent, File dir, String title, int depth) throws Exception {
 		Element el = parent.getOwnerDocument().createElement("node");
 		el.setAttribute("name", title);
 		el.setAttribute("sclickHandler", "showFileDirContents");
 		parent.appendChild(el);
-		dir.mkdirs();
-		File[] files = dir.listFiles(dirsOnly);
-		for (int i=0; i<files.length; i++) {
-			appendDir(el, files[i], files[i].getName());
+		String[] dirs = DirectoryIndex.getListing(dir).dirs;
+		if (depth <= 0) {
+			if (dirs.length > 0) el.setAttribute("expandable", "yes");
+			return;
+		}
+		for (String name : dirs) {
+			appendDir(el, new File(dir, name), name, depth - 1);
 		}
 	}
 
@@ -619,6 +681,7 @@ public class FileService extends Servlet {
 			jpgIcon.delete();
 			gifIcon.delete();
 		}
+		invalidate(fp);
 		return HttpResponse.ok;
 	}
 
@@ -643,9 +706,16 @@ public class FileService extends Servlet {
 		oldFile.renameTo(newFile);
 		oldJpgIcon.renameTo(newJpgIcon);
 		oldGifIcon.renameTo(newGifIcon);
+		invalidate(fp);
 		return HttpResponse.ok;
 	}
 
+	//Remove the listings of a directory's files and icons from the index.
+	private static void invalidate(FilePath fp) {
+		DirectoryIndex.invalidate(fp.filesDir);
+		DirectoryIndex.invalidate(fp.iconsDir);
+	}
+
 	private String fixExtension(String newName, String oldName) {
 		//Get the extension on the old filename
 		String ext = "";
@@ -697,6 +767,8 @@ public class FileService extends Servlet {
 		FileUtil.copy(srcFile, destFile);
 		if (srcJpgIcon.exists()) FileUtil.copy(srcJpgIcon, destJpgIcon);
 		if (srcGifIcon.exists()) FileUtil.copy(srcGifIcon, destGifIcon);
+		else if (!srcJpgIcon.exists()) IconQueue.add(destFile, dest.iconsDir, IconQueue.HIGH);
+		invalidate(dest);
 	}
 
 	// Get a file from a multipart form, store it, and add it to the specified directory
@@ -754,9 +826,10 @@ public class FileService extends Servlet {
 				targetJPG.delete();
 				targetGIF.delete();
 				//Now copy the inFile into the target
-				if (FileUtil.copy(file, target)) makeIcon(target, fp.iconsDir);
+				if (FileUtil.copy(file, target)) IconQueue.add(target, fp.iconsDir, IconQueue.HIGH);
 			}
 		}
+		invalidate(fp);
 	}
 
 	// Find the best image identified by an image element.
@@ -826,7 +899,8 @@ public class FileService extends Servlet {
 			//Now rename the dataFile into the target
 			if (dataFile.renameTo(target)) {
 				target = handleDicomObject(target, anonymize);
-				makeIcon(target, fp.iconsDir);
+				IconQueue.add(target, fp.iconsDir, IconQueue.HIGH);
+				invalidate(fp);
 				return true;
 			}
 		}
@@ -841,6 +915,7 @@ public class FileService extends Servlet {
 		target.delete();
 		targetJPG.delete();
 		targetGIF.delete();
+		invalidate(fp);
 	}
 
 	// Unpack a zip submission. Note: this function ignores
@@ -872,7 +947,9 @@ public class FileService extends Servlet {
 					in.close();
 					out.close();
 					outFile = handleDicomObject(outFile, anonymize);
-					makeIcon(outFile, iconDir);
+					IconQueue.add(outFile, iconDir, IconQueue.HIGH);
+					DirectoryIndex.invalidate(outFile.getParentFile());
+					DirectoryIndex.invalidate(iconDir);
 				}
 			}
 			zipFile.close();
@@ -907,7 +984,7 @@ public class FileService extends Servlet {
 
 	/**
 	 * Create and store an icon image for a file.
-	 * Try to load the file as an image.
+	 * Try to load the file as an image, subsampling it as it is read.
 	 * If it loads, create a 96-pixel-wide jpeg icon.
 	 * If not, determine whether the file has an icon stored
 	 * in the common directory, and if so, use it.
@@ -915,18 +992,33 @@ public class FileService extends Servlet {
 	 * create one from the default icon.
 	 * For non-image files, write the name of the target
 	 * near the bottom of the icon.
+	 * This method runs on the calling thread; to create the icon
+	 * in the background, use IconQueue.add.
+	 * After the icon is written, the listings of the target's directory
+	 * and the icons directory are removed from the DirectoryIndex.
 	 * @param target the file for which to create the icon image.
 	 * @param iconsDir the directory in which to store the icon image.
 	 * @return the icon image file, or null if the icon image file
 	 * could not be created.
 	 */
 	public static File makeIcon(File target, File iconsDir) {
+		try { return createIcon(target, iconsDir); }
+		finally {
+			//Invalidate the listings after the icon is written, so a
+			//listing made while the icon was being created is not kept.
+			DirectoryIndex.invalidate(target.getAbsoluteFile().getParentFile());
+			DirectoryIndex.invalidate(iconsDir);
+		}
+	}
+
+	//Create and store an icon image for a file.
+	private static File createIcon(File target, File iconsDir) {
 		iconsDir.mkdirs();
 		String name = target.getName();
 		int k = name.lastIndexOf(".") + 1;
 		String ext = (k>0) ? name.substring(k).toLowerCase() : "";
 		try {
-			ImageObject image = new ImageObject(target);
+			ImageObject image = new ImageObject(target, 96);
 			File iconFile = new File(iconsDir, name+".jpg");
 			image.saveAsJPEG(iconFile, 0, 96, 0); //(frame 0)
 			return iconFile;
@@ -0,0 +1,127 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.files;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import mirc.util.DaemonThreadFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * A queue of File Service icons to be created in the background.
+ * <p>
+ * Icons are created by a small pool of low-priority threads, so
+ * uploads and pipeline stages storing files in the file cabinets
+ * do not wait for the images to be decoded. Requests for icons
+ * of files in the user interface are processed before requests
+ * from pipeline stages. A file is queued only once while it is
+ * waiting; until its icon is created, the FileService lists the
+ * file with a placeholder icon.
+ */
+public class IconQueue {
+
+	static final Logger logger = Logger.getLogger(IconQueue.class);
+
+	/** The priority of icons for files stored through the user interface. */
+	public static final int HIGH = 0;
+
+	/** The priority of icons for files stored by pipeline stages. */
+	public static final int LOW = 1;
+
+	static final int maxThreads = 2;
+	static final int maxFailures = 10000;
+
+	static final ConcurrentHashMap<String,IconTask> pending = new ConcurrentHashMap<String,IconTask>();
+	static final ConcurrentHashMap<String,Long> failed = new ConcurrentHashMap<String,Long>();
+	static final AtomicLong sequence = new AtomicLong();
+	static final ThreadPoolExecutor executor;
+
+	static {
+		int nThreads = Math.max(1, Math.min(maxThreads, Runtime.getRuntime().availableProcessors()));
+		executor = new ThreadPoolExecutor(
+							nThreads, nThreads,
+							60L, TimeUnit.SECONDS,
+							new PriorityBlockingQueue<Runnable>(),
+							new DaemonThreadFactory("IconQueue", Thread.MIN_PRIORITY));
+	}
+
+	/**
+	 * Queue the creation of the icon for a file. If the file is already
+	 * waiting in the queue, or if an attempt to create its icon has failed
+	 * and the file has not changed since, the request is ignored.
+	 * @param target the file for which to create the icon image.
+	 * @param iconsDir the directory in which to store the icon image.
+	 * @param priority the priority of the request (HIGH or LOW).
+	 */
+	public static void add(File target, File iconsDir, int priority) {
+		String key = target.getAbsolutePath();
+		Long lm = failed.get(key);
+		if ((lm != null) && (lm.longValue() == target.lastModified())) return;
+		IconTask task = new IconTask(key, target, iconsDir, priority);
+		if (pending.putIfAbsent(key, task) == null) executor.execute(task);
+	}
+
+	/**
+	 * Determine whether the icon for a file is waiting to be created.
+	 * @param target the file.
+	 * @return true if the file is in the queue; false otherwise.
+	 */
+	public static boolean isPending(File target) {
+		return pending.containsKey(target.getAbsolutePath());
+	}
+
+	/**
+	 * Get the number of icons waiting to be created.
+	 */
+	public static int size() {
+		return pending.size();
+	}
+
+	//A request for one icon. Tasks are ordered by priority,
+	//and in the order they were queued within a priority.
+	static class IconTask implements Runnable, Comparable<IconTask> {
+		final String key;
+		final File target;
+		final File iconsDir;
+		final int priority;
+		final long seq;
+
+		IconTask(String key, File target, File iconsDir, int priority) {
+			this.key = key;
+			this.target = target;
+			this.iconsDir = iconsDir;
+			this.priority = priority;
+			this.seq = sequence.incrementAndGet();
+		}
+
+		public int compareTo(IconTask task) {
+			if (priority != task.priority) return (priority < task.priority) ? -1 : 1;
+			return (seq < task.seq) ? -1 : ((seq == task.seq) ? 0 : 1);
+		}
+
+		public void run() {
+			//Remove the task from the pending table before starting, so a
+			//change to the file while the icon is being made queues it again.
+			pending.remove(key);
+			try {
+				if (!target.exists()) return;
+				long lm = target.lastModified();
+				if (FileService.makeIcon(target, iconsDir) == null) {
+					if (failed.size() >= maxFailures) failed.clear();
+					failed.put(key, new Long(lm));
+				}
+				else failed.remove(key);
+			}
+			catch (Throwable t) { logger.warn("Unable to create the icon for "+target, t); }
+		}
+	}
+}
@@ -15,6 +15,7 @@ import mirc.activity.ActivityDB;
 import mirc.prefs.Preferences;
 import mirc.storage.StorageService;
 import mirc.util.MircDocument;
+import mirc.util.ZipExporter;
 
 import org.rsna.servlets.Servlet;
 import org.rsna.server.HttpRequest;
@@ -141,16 +142,18 @@ public class MyRSNAServlet extends Servlet {
 				try {
 					Document doc = XmlUtil.getDocument(file);
 					if (StorageService.userIsAuthorizedTo("export", doc, req)) {
-						File zipFile = MircDocument.getFileForZip(doc, file, null);
+						File zipName = MircDocument.getFileForZip(doc, file, null);
+						File temp = MircConfig.getInstance().createTempDirectory();
+						File zipFile = new File(temp, zipName.getName());
 						String[] filenames = StorageService.getFilenames(doc, file);
-						boolean ok = FileUtil.zipFiles(filenames, file.getParentFile(), zipFile);
+						boolean ok = new ZipExporter(file, null, filenames).write(zipFile);
 						if (ok) {
 							if (StorageService.exportToMyRsna(user, zipFile)) {
 								String ssid = StorageService.getSSID(file);;
 								ActivityDB.getInstance().increment(ssid, "myrsna", username);
 							}
 						}
-						zipFile.delete();
+						FileUtil.deleteAll(temp);
 					}
 				}
 				catch (Exception skip) { }
@@ -10,6 +10,7 @@ package mirc.prefs;
 import java.io.File;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import jdbm.helper.FastIterator;
 import jdbm.htree.HTree;
 import jdbm.RecordManager;
@@ -25,6 +26,11 @@ import org.w3c.dom.Node;
 
 /**
  * A class to provide singleton access to a database of preferences.
+ * <p>
+ * The preferences of all users are loaded into an in-memory table of
+ * immutable UserPreferences records when the database is loaded. The
+ * accessor methods read the table without locking, and the update
+ * methods write through to the database and replace the record.
  */
 public class Preferences {
 
@@ -38,6 +44,9 @@ public class Preferences {
 	private static final String prefsName = "prefs";
 	private static HTree prefs = null;
 
+	private final ConcurrentHashMap<String,UserPreferences> cache =
+								new ConcurrentHashMap<String,UserPreferences>();
+
 	/**
 	 * Protected constructor.
 	 * @param dir the directory in which the database is located.
@@ -47,6 +56,20 @@ public class Preferences {
 		File databaseFile = new File(dir, databaseName);
 		recman = JdbmUtil.getRecordManager(databaseFile.getAbsolutePath());
 		prefs = JdbmUtil.getHTree(recman, prefsName);
+		loadCache();
+	}
+
+	//Load all the preferences into the cache.
+	private void loadCache() {
+		try {
+			FastIterator fit = prefs.keys();
+			String username;
+			while ((username = (String)fit.next()) != null) {
+				Element user = (Element)prefs.get(username);
+				if (user != null) cache.put(username, new UserPreferences(user));
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to load the preferences", ex); }
 	}
 
 	/**
@@ -74,9 +97,17 @@ public class Preferences {
 	 * @param username the username of the user.
 	 * @return true if a user exists in the database; false otherwise.
 	 */
-	public synchronized boolean hasUser(String username) {
-		try { return (prefs.get(username) != null); }
-		catch (Exception ex) { return false; }
+	public boolean hasUser(String username) {
+		return (username != null) && cache.containsKey(username);
+	}
+
+	/**
+	 * Get the preferences record for a specific user.
+	 * @param username the username of the user.
+	 * @return the record, or null if no preferences exist for the user.
+	 */
+	public UserPreferences getUserPreferences(String username) {
+		return (username != null) ? cache.get(username) : null;
 	}
 
 	/**
@@ -85,13 +116,13 @@ public class Preferences {
 	public synchronized void syncToUsers() {
 		try {
 			Users users = Users.getInstance();
-			String username;
-			FastIterator fit = prefs.keys();
-			while ((username = (String)fit.next()) != null) {
+			for (String username : cache.keySet()) {
 				if (users.getUser(username) == null) {
 					prefs.remove(username);
+					cache.remove(username);
 				}
 			}
+			recman.commit();
 		}
 		catch (Exception skip) { }
 	}
@@ -104,46 +135,32 @@ public class Preferences {
 	 * to be returned.
 	 * @return the preferences for the specified user.
 	 */
-	public synchronized Element get(String username, boolean suppress) {
+	public Element get(String username, boolean suppress) {
 
-		//Note: in the following, we always import Elements from the
-		//HTree into a new Document in order to make it impossible for
-		//the calling code to modify the object in the JDBM cache.
+		//Note: in the following, we always return Elements in
+		//new Documents, so the calling code cannot modify the
+		//cached preferences.
 
 		try {
-			Node node;
 			Document doc = XmlUtil.getDocument();
 			if (username.contains("*")) {
 				Element root = doc.createElement("Preferences");
 				doc.appendChild(root);
-				FastIterator fit = prefs.values();
-				Element user;
-				while ( (user=(Element)fit.next()) != null) {
-					Element el = (Element)root.appendChild( doc.importNode( user, true ) );
-					if (suppress) {
-						while ( (node=el.getFirstChild()) != null ) el.removeChild(node);
-					}
+				for (UserPreferences up : cache.values()) {
+					Element el = suppress ? up.getSummaryElement() : up.getElement();
+					root.appendChild( doc.importNode( el, true ) );
 				}
 				return root;
 			}
 			else {
-				Element user = (Element)prefs.get(username);
-				if (user != null) {
-					user = (Element)doc.appendChild( doc.importNode( user, true ) );
+				Element user;
+				UserPreferences up = cache.get(username);
+				if (up != null) {
+					user = suppress ? up.getSummaryElement() : up.getElement();
 
 					//Indicate whether the user has enabled myrsna export
 					//and the account has non-blank myRSNA credentials.
-					Element myrsna = XmlUtil.getFirstNamedChild(user, "myrsna");
-					if ((myrsna != null)
-							&& myrsna.getAttribute("enabled").equals("yes")
-								&& !myrsna.getAttribute("username").equals("")
-									&& !myrsna.getAttribute("password").equals("")) {
-						user.setAttribute("myrsna", "true");
-					}
-					else user.setAttribute("myrsna", "false");
-					if (suppress) {
-						while ( (node=user.getFirstChild()) != null ) user.removeChild(node);
-					}
+					user.setAttribute("myrsna", Boolean.toString(up.isMyRsnaEnabled()));
 				}
 				else {
 					user = doc.createElement("User");
@@ -161,15 +178,9 @@ public class Preferences {
 	 * @return the the user's Query Service user interface preference,
 	 * or the system default if no preference has been stored.
 	 */
-	public synchronized String getUI(String username) {
-		try {
-			Element user = (Element)prefs.get(username);
-			if (user != null) {
-				String ui = user.getAttribute("UI");
-				if (!ui.equals("")) return ui;
-			}
-		}
-		catch (Exception ex) { }
+	public String getUI(String username) {
+		UserPreferences up = getUserPreferences(username);
+		if ((up != null) && !up.getUI().equals("")) return up.getUI();
 		//We couldn't find a UI for this user
 		//return the system default.
 		return MircConfig.getInstance().getUI();
@@ -180,20 +191,9 @@ public class Preferences {
 	 * @return the the user's myRSNA account Element or null if no
 	 * element exists or if either the username or password is blank.
 	 */
-	public synchronized Element getMyRsnaAccount(String username) {
-		try {
-			Element user = (Element)prefs.get(username);
-			if (user == null) return null;
-			Element myrsna = XmlUtil.getFirstNamedChild(user, "myrsna");
-			if (myrsna == null) return null;
-			Document doc = XmlUtil.getDocument();
-			myrsna = (Element)doc.importNode(myrsna, true);
-			String un = myrsna.getAttribute("username").trim();
-			String pw = myrsna.getAttribute("password").trim();
-			boolean ok = (!un.equals("") && !pw.equals(""));
-			return (ok ? myrsna : null);
-		}
-		catch (Exception ex) { return null; }
+	public Element getMyRsnaAccount(String username) {
+		UserPreferences up = getUserPreferences(username);
+		return (up != null) ? up.getMyRsnaElement() : null;
 	}
 
 	/**
@@ -201,32 +201,24 @@ public class Preferences {
 	 * @return the the user's MyRsnaUser, or null if one does not exist
 	 * or if either the MyRSNA username or password is blank.
 	 */
-	public synchronized MyRsnaUser getMyRsnaUser(String username) {
-		try {
-			Element user = (Element)prefs.get(username);
-			if (user == null) return null;
-			Element myrsna = XmlUtil.getFirstNamedChild(user, "myrsna");
-			if (myrsna == null) return null;
-			String un = myrsna.getAttribute("username").trim();
-			String pw = myrsna.getAttribute("password").trim();
-			boolean ok = (!un.equals("") && !pw.equals(""));
-			return (ok ? new MyRsnaUser(un, pw) : null);
-		}
-		catch (Exception ex) { return null; }
+	public MyRsnaUser getMyRsnaUser(String username) {
+		UserPreferences up = getUserPreferences(username);
+		return (up != null) ? up.getMyRsnaUser() : null;
 	}
 
 	/**
-	 * Get the user's myRSNA account Element.
+	 * Set the user's Query Service user interface preference.
+	 * The database is not updated if the preference is unchanged.
 	 * @return true if the update succeeded; false otherwise.
 	 */
 	public synchronized boolean setUI(String username, String ui) {
 		try {
+			UserPreferences up = getUserPreferences(username);
+			if ((up != null) && up.getUI().equals(ui.trim())) return true;
 			if (prefs != null) {
-				Element user = (Element)prefs.get(username);
-				if (user == null) user = getNewUser(username);
+				Element user = getUser(username);
 				user.setAttribute("UI", ui.trim());
-				prefs.put(username, user);
-				recman.commit();
+				store(username, user);
 				return true;
 			}
 		}
@@ -246,13 +238,11 @@ public class Preferences {
 	public synchronized boolean setAuthorInfo(String username, String name, String affiliation, String contact) {
 		try {
 			if (prefs != null) {
-				Element user = (Element)prefs.get(username);
-				if (user == null) user = getNewUser(username);
+				Element user = getUser(username);
 				user.setAttribute("name", name);
 				user.setAttribute("affiliation", affiliation);
 				user.setAttribute("contact", contact);
-				prefs.put(username, user);
-				recman.commit();
+				store(username, user);
 				return true;
 			}
 		}
@@ -273,8 +263,7 @@ public class Preferences {
 	public synchronized boolean setMyRsnaInfo(String username, String enabled, String myrsnaUsername, String myrsnaPassword) {
 		try {
 			if (prefs != null) {
-				Element user = (Element)prefs.get(username);
-				if (user == null) user = getNewUser(username);
+				Element user = getUser(username);
 				Element myrsna = XmlUtil.getFirstNamedChild(user, "myrsna");
 				if (myrsna == null) {
 					myrsna = user.getOwnerDocument().createElement("myrsna");
@@ -283,8 +272,7 @@ public class Preferences {
 				myrsna.setAttribute("enabled", enabled);
 				myrsna.setAttribute("username", myrsnaUsername);
 				myrsna.setAttribute("password", myrsnaPassword);
-				prefs.put(username, user);
-				recman.commit();
+				store(username, user);
 				return true;
 			}
 		}
@@ -302,8 +290,7 @@ public class Preferences {
 	public synchronized boolean setExportInfo(String username, ExportSite[] sites) {
 		try {
 			if (prefs != null) {
-				Element user = (Element)prefs.get(username);
-				if (user == null) user = getNewUser(username);
+				Element user = getUser(username);
 				Element export = XmlUtil.getFirstNamedChild(user, "export");
 				if (export != null) export.getParentNode().removeChild(export);
 				Document doc = user.getOwnerDocument();
@@ -312,8 +299,7 @@ public class Preferences {
 				for (ExportSite site : sites) {
 					export.appendChild( site.getSiteElement(doc) );
 				}
-				prefs.put(username, user);
-				recman.commit();
+				store(username, user);
 				return true;
 			}
 		}
@@ -321,6 +307,20 @@ public class Preferences {
 		return false;
 	}
 
+	//Get a modifiable copy of a user's element,
+	//or a new element if the user has no preferences.
+	private Element getUser(String username) throws Exception {
+		UserPreferences up = cache.get(username);
+		return (up != null) ? up.getElement() : getNewUser(username);
+	}
+
+	//Write a user's element to the database and replace the cached record.
+	private void store(String username, Element user) throws Exception {
+		prefs.put(username, user);
+		recman.commit();
+		cache.put(username, new UserPreferences(user));
+	}
+
 	//Create a new user element and set the username attribute
 	private Element getNewUser(String username) {
 		try {
@@ -343,4 +343,4 @@ public class Preferences {
 		recman = null;
 		prefs = null;
 	}
-}
\ No newline at end of file
+}
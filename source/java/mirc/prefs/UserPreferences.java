@@ -0,0 +1,161 @@
+/*---------------------------------------------------------------
+*  Copyright 2011 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.prefs;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mirc.util.MyRsnaUser;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+
+/**
+ * An immutable record of the preferences of a single user.
+ * The record is created from the User element stored in the
+ * preferences database. The element itself is kept only as
+ * XML text, and a DOM object is created from it only when
+ * a caller requires the full element.
+ */
+public class UserPreferences {
+
+	final String username;
+	final Map<String,String> attributes;
+	final String ui;
+	final boolean myrsnaEnabled;
+	final String myrsnaUsername;
+	final String myrsnaPassword;
+	final String xml;
+
+	/**
+	 * Create a UserPreferences record from a User element.
+	 * @param user the User element.
+	 */
+	public UserPreferences(Element user) {
+		LinkedHashMap<String,String> attrs = new LinkedHashMap<String,String>();
+		NamedNodeMap map = user.getAttributes();
+		for (int i=0; i<map.getLength(); i++) {
+			Attr attr = (Attr)map.item(i);
+			attrs.put(attr.getName(), attr.getValue());
+		}
+		this.attributes = Collections.unmodifiableMap(attrs);
+		this.username = user.getAttribute("username");
+		this.ui = user.getAttribute("UI");
+		Element myrsna = XmlUtil.getFirstNamedChild(user, "myrsna");
+		if (myrsna != null) {
+			myrsnaEnabled = myrsna.getAttribute("enabled").equals("yes");
+			myrsnaUsername = myrsna.getAttribute("username");
+			myrsnaPassword = myrsna.getAttribute("password");
+		}
+		else {
+			myrsnaEnabled = false;
+			myrsnaUsername = null;
+			myrsnaPassword = null;
+		}
+		this.xml = XmlUtil.toString(user);
+	}
+
+	/**
+	 * Get the username.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Get the value of an attribute of the User element.
+	 * @param name the name of the attribute.
+	 * @return the value of the attribute, or the empty string
+	 * if the attribute does not exist.
+	 */
+	public String getAttribute(String name) {
+		String value = attributes.get(name);
+		return (value != null) ? value : "";
+	}
+
+	/**
+	 * Get the user interface preference.
+	 * @return the UI preference, or the empty string if none has been stored.
+	 */
+	public String getUI() {
+		return ui;
+	}
+
+	/**
+	 * Determine whether the user has a myRSNA account with
+	 * a non-blank username and password.
+	 */
+	public boolean hasMyRsnaAccount() {
+		return (myrsnaUsername != null)
+					&& !myrsnaUsername.trim().equals("")
+						&& !myrsnaPassword.trim().equals("");
+	}
+
+	/**
+	 * Determine whether the user has enabled myRSNA export and
+	 * has a myRSNA account with a non-blank username and password.
+	 */
+	public boolean isMyRsnaEnabled() {
+		return myrsnaEnabled
+					&& (myrsnaUsername != null)
+						&& !myrsnaUsername.equals("")
+							&& !myrsnaPassword.equals("");
+	}
+
+	/**
+	 * Get the MyRsnaUser for the user's myRSNA account.
+	 * @return the MyRsnaUser, or null if the user does not have
+	 * an account with a non-blank username and password.
+	 */
+	public MyRsnaUser getMyRsnaUser() {
+		if (!hasMyRsnaAccount()) return null;
+		return new MyRsnaUser(myrsnaUsername.trim(), myrsnaPassword.trim());
+	}
+
+	/**
+	 * Get a new myrsna Element for the user's myRSNA account.
+	 * @return the myrsna Element, or null if the user does not have
+	 * an account with a non-blank username and password.
+	 */
+	public Element getMyRsnaElement() {
+		if (!hasMyRsnaAccount()) return null;
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element myrsna = doc.createElement("myrsna");
+			myrsna.setAttribute("enabled", myrsnaEnabled ? "yes" : "no");
+			myrsna.setAttribute("username", myrsnaUsername);
+			myrsna.setAttribute("password", myrsnaPassword);
+			return myrsna;
+		}
+		catch (Exception ex) { return null; }
+	}
+
+	/**
+	 * Get a new User Element containing only the attributes
+	 * of the stored element. This does not parse the stored element.
+	 */
+	public Element getSummaryElement() throws Exception {
+		Document doc = XmlUtil.getDocument();
+		Element user = doc.createElement("User");
+		doc.appendChild(user);
+		for (String name : attributes.keySet()) {
+			user.setAttribute(name, attributes.get(name));
+		}
+		return user;
+	}
+
+	/**
+	 * Get a new copy of the full User Element, in its own Document.
+	 */
+	public Element getElement() throws Exception {
+		return XmlUtil.getDocument(xml).getDocumentElement();
+	}
+
+}
@@ -9,7 +9,14 @@ package mirc.presentation;
 
 import java.io.File;
 import java.net.URL;
-import java.util.Locale;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -20,7 +27,9 @@ import mirc.activity.ActivityDB;
 import mirc.MircConfig;
 import mirc.ssadmin.StorageServiceAdmin;
 import mirc.storage.AccessLog;
+import mirc.util.DaemonThreadFactory;
 import mirc.util.MircDocument;
+import mirc.util.PresentationPackage;
 
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -36,12 +45,26 @@ import org.rsna.util.XmlUtil;
 
 /**
  * A Servlet to export local MIRCdocuments as a presentation.
+ * <p>
+ * The slides of each MIRCdocument are prepared once and cached until
+ * the MIRCdocument file is modified. The MIRCdocuments which are not
+ * in the cache are loaded and prepared in parallel on a small pool of
+ * worker threads. The pictures are written into the presentation package
+ * directly from the MIRCdocument directories.
  */
 public class PresentationService extends Servlet {
 
 	static final Logger logger = Logger.getLogger(PresentationService.class);
 
-	int idCount = 0;
+	//The prepared slides, indexed by the absolute path of the MIRCdocument file.
+	static final ConcurrentHashMap<String,Slides> cache = new ConcurrentHashMap<String,Slides>();
+	static final int maxCacheSize = 200;
+
+	//The serial number of the prepared slides, used to make the image IDs unique.
+	static final AtomicInteger serial = new AtomicInteger();
+
+	static final int poolSize = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	static final ExecutorService pool = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("PresentationService", Thread.NORM_PRIORITY - 1));
 
 	/**
 	 * Static init method to initialize the static variables.
@@ -78,26 +101,21 @@ public class PresentationService extends Servlet {
 			User user = req.getUser();
 			String username = (user != null) ? user.getUsername() : null;
 
-			//Make a directory in which to play
-			File dir = mc.createTempDirectory();
-
 			//Get a file for the presentation (in its own directory)
 			File odpFileDir = mc.createTempDirectory();
 			File odpFile = File.createTempFile("Presentation-", ".odp", odpFileDir);
 
-			//Set up an XML document for capture the images
-			File pictures = new File(dir, "Pictures");
-			pictures.mkdirs();
-			Document imagesDoc = XmlUtil.getDocument();
-			Element images = imagesDoc.createElement("images");
-			imagesDoc.appendChild(images);
+			//Set up the package to capture the images
+			PresentationPackage pkg = new PresentationPackage();
 
 			//Set up an XML document to capture the MIRCdocuments
 			Document mdsDoc = XmlUtil.getDocument();
 			Element mds = mdsDoc.createElement("MIRCdocuments");
 			mdsDoc.appendChild(mds);
 
-			//Process the MIRCdocuments and add in the exportable ones.
+			//Start the preparation of the slides for all the local MIRCdocuments.
+			LinkedList<Future<Slides>> futures = new LinkedList<Future<Slides>>();
+			LinkedList<String> ssids = new LinkedList<String>();
 			String[] urls = urlsParam.split("\\|");
 			for (String url : urls) {
 				if (mc.isLocal(url)) {
@@ -110,45 +128,41 @@ public class PresentationService extends Servlet {
 						int q = url.indexOf("?");
 						if (q >= 0) url = url.substring(0, q);
 						File mdFile = new File(mircRoot, url);
-						MircDocument md = new MircDocument(mdFile);
-						if (md.authorizes("export", user)) {
-							addMircDocument(md, images, mds, pictures);
-							AccessLog.logAccess(req, md.getXML());
+						futures.add( pool.submit( new Preparer(mdFile) ) );
+						ssids.add(ssid);
+					}
+				}
+			}
+
+			//Add in the exportable ones, in the order of the URLs.
+			HashSet<Slides> added = new HashSet<Slides>();
+			for (Future<Slides> future : futures) {
+				String ssid = ssids.removeFirst();
+				Slides slides = null;
+				try { slides = future.get(); }
+				catch (Exception ex) { logger.debug("Unable to prepare the slides", ex); }
+				if (slides != null) {
+					synchronized (slides) {
+						if (slides.md.authorizes("export", user)) {
+							slides.addTo(pkg, mds, !added.contains(slides));
+							added.add(slides);
+							AccessLog.logAccess(req, slides.md.getXML());
 							ActivityDB.getInstance().increment(ssid, "slides", username);
 						}
 					}
 				}
 			}
 
-			//Add in the little png that OO needs for one of its styles
-			String pngName = "10000000000000200000002000309F1C.png";
-			File png = new File(pictures, pngName);
-			FileUtil.getFile(png, "/odp/"+pngName);
-
-			//Copy in the styles
-			FileUtil.getFile(new File(dir, "styles.xml"), "/odp/styles.xml");
-
-			//Make the META-INF directory and create the manifest.xml file
-			File metaInf = new File(dir, "META-INF");
-			metaInf.mkdirs();
-			File manifestFile = new File(metaInf, "manifest.xml");
-			Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/manifest.xsl" ) );
-			Document manifest = XmlUtil.getTransformedDocument( imagesDoc, xsl, null );
-			FileUtil.setText(manifestFile, XmlUtil.toString(manifest));
-
-			//Process the Document and create the slides file
-			File contentFile = new File(dir, "content.xml");
-			xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/multi-document-content.xsl" ) );
+			//Process the Document and create the slides
+			Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/multi-document-content.xsl" ) );
 			Object[] params = {
-				"images", imagesDoc,
+				"images", pkg.getImagesDocument(),
 				"username", ((user!=null) ? user.getUsername() : "")
 			};
 			Document content = XmlUtil.getTransformedDocument( mdsDoc, xsl, params );
-			FileUtil.setText(contentFile, XmlUtil.toString(content));
 
-			//Now zip it all up. Note that we suppress the name of the dir.
-			//If we didn't, neither OO nor PPT would open the file.
-			FileUtil.zipDirectory(dir, odpFile, true);
+			//Now write the package.
+			pkg.write(odpFile, content);
 
 			res.write(odpFile);
 			res.setContentType("pptx");
@@ -158,7 +172,6 @@ public class PresentationService extends Servlet {
 
 			res.send();
 			odpFile.delete();
-			FileUtil.deleteAll(dir);
 			FileUtil.deleteAll(odpFileDir);
 			return;
 		}
@@ -168,115 +181,134 @@ public class PresentationService extends Servlet {
 		res.send();
 	}
 
-	public void addMircDocument(MircDocument md, Element images, Element mds, File pictures) throws Exception {
-
-		Document doc = md.getXML();
-		NodeList nl = doc.getDocumentElement().getElementsByTagName("image");
-		for (int i=0; i<nl.getLength(); i++) {
-			Element img = (Element)nl.item(i);
-			String src = img.getAttribute("src");
-			if (!src.startsWith("/") && !src.toLowerCase().startsWith("http://")) {
-
-				String id = getID();
-				img.setAttribute("id", id);
+	//A Callable to get the slides for a MIRCdocument,
+	//preparing them if they are not in the cache.
+	static class Preparer implements Callable<Slides> {
+		File mdFile;
+		public Preparer(File mdFile) {
+			this.mdFile = mdFile;
+		}
+		public Slides call() throws Exception {
+			String key = mdFile.getAbsolutePath();
+			long lastModified = mdFile.lastModified();
+			Slides slides = cache.get(key);
+			if ((slides == null) || (slides.lastModified != lastModified)) {
+				slides = new Slides( new MircDocument(mdFile), lastModified );
+				if (cache.size() >= maxCacheSize) cache.clear();
+				cache.put(key, slides);
+			}
+			return slides;
+		}
+	}
 
-				//Check whether there is an original-dimensions version
-				NodeList alt = img.getElementsByTagName("alternative-image");
-				for (int k=0; k<alt.getLength(); k++) {
-					Element altimg = (Element)alt.item(k);
-					if (altimg.getAttribute("role").equals("original-dimensions")) {
-						String altsrc = altimg.getAttribute("src").toLowerCase();
-						if (altsrc.endsWith(".jpg") || altsrc.endsWith("jpeg")) {
-							img = altimg;
-							break;
+	//The prepared slides of a MIRCdocument. The image source attributes
+	//in the prepared MircDocument are changed to the names of the
+	//pictures in the presentation package, and the image IDs are made
+	//unique across all the prepared MIRCdocuments. The MircDocument
+	//is shared, so it must only be accessed while holding the lock
+	//on this object.
+	static class Slides {
+		final long lastModified;
+		final MircDocument md;
+		final LinkedList<Picture> pictures;
+		final String prefix;
+		int idCount = 0;
+
+		public Slides(MircDocument md, long lastModified) throws Exception {
+			this.md = md;
+			this.lastModified = lastModified;
+			this.pictures = new LinkedList<Picture>();
+			this.prefix = serial.incrementAndGet() + "-";
+
+			Document doc = md.getXML();
+			NodeList nl = doc.getDocumentElement().getElementsByTagName("image");
+			for (int i=0; i<nl.getLength(); i++) {
+				Element img = (Element)nl.item(i);
+				String src = img.getAttribute("src");
+				if (!src.startsWith("/") && !src.toLowerCase().startsWith("http://")) {
+
+					String id = getID();
+					img.setAttribute("id", id);
+
+					//Check whether there is an original-dimensions version
+					NodeList alt = img.getElementsByTagName("alternative-image");
+					for (int k=0; k<alt.getLength(); k++) {
+						Element altimg = (Element)alt.item(k);
+						if (altimg.getAttribute("role").equals("original-dimensions")) {
+							String altsrc = altimg.getAttribute("src").toLowerCase();
+							if (altsrc.endsWith(".jpg") || altsrc.endsWith("jpeg")) {
+								img = altimg;
+								break;
+							}
 						}
 					}
-				}
-				appendImg(md, images, img, id, pictures);
-
-				//Check whether there is an annotated image.
-				for (int k=0; k<alt.getLength(); k++) {
-					Element altimg = (Element)alt.item(k);
-					if (altimg.getAttribute("role").equals("annotation")) {
-						String altsrc = altimg.getAttribute("src").toLowerCase();
-						if (altsrc.endsWith(".jpg") || altsrc.endsWith("jpeg")) {
-							appendImg(md, images, altimg, getID(), pictures);
-							break;
+					appendImg(img, id);
+
+					//Check whether there is an annotated image.
+					for (int k=0; k<alt.getLength(); k++) {
+						Element altimg = (Element)alt.item(k);
+						if (altimg.getAttribute("role").equals("annotation")) {
+							String altsrc = altimg.getAttribute("src").toLowerCase();
+							if (altsrc.endsWith(".jpg") || altsrc.endsWith("jpeg")) {
+								appendImg(altimg, getID());
+								break;
+							}
 						}
 					}
 				}
-
 			}
 		}
-		//Now append the MIRCdocument XML to mds.
-		//Note that at this point, the image source attributes
-		//have been changed to the names of the files in the pictures directory.
-		//This is necessary so the XSL can insert the correct references in the content XML.
-		Node importedMD = mds.getOwnerDocument().importNode(md.getXML().getDocumentElement(), true);
-		mds.appendChild(importedMD);
-	}
 
-	//Append an image. Constructing the parameters that allow it
-	//to be scaled to the slide. Copy the image to the pictures directory.
-	private void appendImg(MircDocument md, Element images, Element img, String id, File pictures) throws Exception {
-		int w = StringUtil.getInt(img.getAttribute("w"));
-		int h = StringUtil.getInt(img.getAttribute("h"));
-
-		if ((w != 0) && (h != 0)) {
-
-			//Copy the selected image to the Pictures directory
-			File inFile = new File(md.getDirectory(), img.getAttribute("src"));
-			File outFile = File.createTempFile("IMG-", ".jpg", pictures);
-			FileUtil.copy(inFile, outFile);
-			String src = outFile.getName();
-			img.setAttribute("src", src);
-			img.setAttribute("id", id);
-
-			//Now figure out how to place and scale the image on the slide.
-			//This has to be a lot easier done in Java than in XSL.
-			float slideWidth = 28;
-			float slideHeight = 21;
-			float marginX = 1;
-			float marginY = 1;
-			float areaWidth = slideWidth - 2*marginX;
-			float areaHeight = slideHeight - 2*marginY;
-			float areaAspectRatio = areaHeight / areaWidth;;
-			float imageAspectRatio = (float)h / (float)w;
-
-			float xcm, ycm, wcm, hcm;
-
-			if (areaAspectRatio < imageAspectRatio) {
-				//fit the image to the height of the area
-				float scale = areaHeight / (float)h;
-				ycm = marginY;
-				hcm = areaHeight;
-				wcm = (float)w * scale;
-				xcm = marginX + (areaWidth - wcm)/2;
-			}
-			else {
-				//fit the image to the width of the area
-				xcm = marginX;
-				wcm = areaWidth;
-				float scale = areaWidth / (float)w;
-				hcm = (float)h * scale;
-				ycm = marginY + (areaHeight - hcm)/2;
+		//Record an image for the package and change its source
+		//attribute to the name of the picture in the package.
+		private void appendImg(Element img, String id) {
+			int w = StringUtil.getInt(img.getAttribute("w"));
+			int h = StringUtil.getInt(img.getAttribute("h"));
+			if ((w != 0) && (h != 0)) {
+				File file = new File(md.getDirectory(), img.getAttribute("src"));
+				String src = "IMG-" + id + ".jpg";
+				img.setAttribute("src", src);
+				img.setAttribute("id", id);
+				pictures.add( new Picture(id, src, file, w, h) );
 			}
+		}
+
+		private String getID() {
+			idCount++;
+			return prefix + idCount;
+		}
 
-			//Finallu, create the element
-			Element image = images.getOwnerDocument().createElement("image");
-			images.appendChild(image);
-			image.setAttribute("id", id); //this is the value that indexes the image
-			image.setAttribute("src", src); //this is the value that points to the version to use
-			image.setAttribute("x", String.format(Locale.US, "%.3fcm", xcm));
-			image.setAttribute("y", String.format(Locale.US, "%.3fcm", ycm));
-			image.setAttribute("w", String.format(Locale.US, "%.3fcm", wcm));
-			image.setAttribute("h", String.format(Locale.US, "%.3fcm", hcm));
+		//Add the pictures to the package (if requested) and append the
+		//MIRCdocument XML to mds. Note that at this point, the image source
+		//attributes have been changed to the names of the files in the
+		//Pictures directory. This is necessary so the XSL can insert the
+		//correct references in the content XML.
+		public void addTo(PresentationPackage pkg, Element mds, boolean addPictures) {
+			if (addPictures) {
+				for (Picture p : pictures) {
+					Element image = pkg.addImage(p.src, p.file, p.w, p.h);
+					image.setAttribute("id", p.id); //this is the value that indexes the image
+				}
+			}
+			Node importedMD = mds.getOwnerDocument().importNode(md.getXML().getDocumentElement(), true);
+			mds.appendChild(importedMD);
 		}
 	}
 
-	private String getID() {
-		idCount++;
-		return Integer.toString(idCount);
+	//An image to be placed on a slide.
+	static class Picture {
+		final String id;
+		final String src;
+		final File file;
+		final int w;
+		final int h;
+		public Picture(String id, String src, File file, int w, int h) {
+			this.id = id;
+			this.src = src;
+			this.file = file;
+			this.w = w;
+			this.h = h;
+		}
 	}
 
 }
@@ -159,6 +159,7 @@ public class QueryServiceAdmin extends Servlet {
 					Element lib = mc.getLibrary(server.prevadrs);
 					if (lib != null) {
 						//This is an update of an existing library.
+						lib = (Element)lib.cloneNode(true);
 						lib.setAttribute("address", server.address);
 						lib.setAttribute("enabled", server.enabled);
 						lib.setAttribute("deflib", server.deflib);
@@ -0,0 +1,177 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License. (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.query;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * The health record of a remote library.
+ * <p>
+ * Each record keeps the response times of the most recent successful
+ * queries of the library, and a circuit breaker. Probes close the
+ * breaker but do not add response times, because a minimal probe is
+ * much faster than a real query. After several consecutive failures
+ * (connection errors, or queries that exceed the configured timeout),
+ * the breaker opens and the library is left out of queries. When the
+ * cool-down period has passed, the breaker is half-open: the
+ * LibraryMonitor probes the library, and the breaker closes if the
+ * probe succeeds or opens again if it fails.
+ * <p>
+ * The time a query waits for a library is derived from the library's
+ * recent response times, so a slow library does not hold every query
+ * for the full configured timeout.
+ */
+public class LibraryHealth {
+
+	static final Logger logger = Logger.getLogger(LibraryHealth.class);
+
+	static final int windowSize = 50;
+	static final int minSamples = 5;
+	static final int failureThreshold = 3;
+	static final long coolDown = 5L * 60L * 1000L; //5 minutes
+	static final long minTimeout = 2000; //ms
+
+	static final String CLOSED = "closed";
+	static final String OPEN = "open";
+	static final String HALF_OPEN = "half-open";
+
+	static final ConcurrentHashMap<String,LibraryHealth> records = new ConcurrentHashMap<String,LibraryHealth>();
+
+	final String address;
+	final long[] latencies = new long[windowSize];
+	int nSamples = 0;
+	int next = 0;
+	int consecutiveFailures = 0;
+	String state = CLOSED;
+	long openedTime = 0;
+
+	/**
+	 * Protected constructor.
+	 * @param address the address of the library.
+	 */
+	protected LibraryHealth(String address) {
+		this.address = address;
+	}
+
+	/**
+	 * Get the health record of a library, creating it if necessary.
+	 * @param address the address of the library.
+	 * @return the health record.
+	 */
+	public static LibraryHealth getInstance(String address) {
+		LibraryHealth health = records.get(address);
+		if (health == null) {
+			health = new LibraryHealth(address);
+			LibraryHealth existing = records.putIfAbsent(address, health);
+			if (existing != null) health = existing;
+		}
+		return health;
+	}
+
+	/**
+	 * Determine whether the library may be included in a query.
+	 * @return true if the circuit breaker is closed; false otherwise.
+	 */
+	public synchronized boolean allowQuery() {
+		return state.equals(CLOSED);
+	}
+
+	/**
+	 * Determine whether the library should be probed to decide whether
+	 * its circuit breaker can be closed. If the breaker is open and the
+	 * cool-down period has passed, the breaker becomes half-open.
+	 * @return true if the breaker is half-open; false otherwise.
+	 */
+	public synchronized boolean needsProbe() {
+		if (state.equals(OPEN) && ((System.currentTimeMillis() - openedTime) >= coolDown)) {
+			state = HALF_OPEN;
+		}
+		return state.equals(HALF_OPEN);
+	}
+
+	/**
+	 * Get the state of the circuit breaker ("closed", "open", or "half-open").
+	 */
+	public synchronized String getState() {
+		return state;
+	}
+
+	/**
+	 * Record a successful query, closing the breaker.
+	 * @param time the response time in milliseconds.
+	 */
+	public synchronized void recordSuccess(long time) {
+		latencies[next] = time;
+		next = (next + 1) % windowSize;
+		if (nSamples < windowSize) nSamples++;
+		close();
+	}
+
+	/**
+	 * Record a successful probe, closing the breaker. The response
+	 * time of the probe is not recorded.
+	 */
+	public synchronized void recordProbeSuccess() {
+		close();
+	}
+
+	//Reset the failure count and close the breaker.
+	private void close() {
+		consecutiveFailures = 0;
+		if (!state.equals(CLOSED)) logger.info("Library available: "+address);
+		state = CLOSED;
+	}
+
+	/**
+	 * Record a failed or timed-out query or probe. The breaker opens
+	 * if it is half-open or if the number of consecutive failures
+	 * reaches the threshold.
+	 */
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state.equals(HALF_OPEN)
+				|| (state.equals(CLOSED) && (consecutiveFailures >= failureThreshold))) {
+			if (state.equals(CLOSED)) logger.info("Library excluded from queries: "+address);
+			state = OPEN;
+			openedTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Get a percentile of the recent response times.
+	 * @param p the percentile (0-100).
+	 * @return the response time in milliseconds, or -1 if
+	 * no successful responses have been recorded.
+	 */
+	public synchronized long getPercentile(int p) {
+		if (nSamples == 0) return -1;
+		long[] sorted = new long[nSamples];
+		System.arraycopy(latencies, 0, sorted, 0, nSamples);
+		Arrays.sort(sorted);
+		int k = (int)Math.ceil(p / 100.0 * nSamples) - 1;
+		return sorted[Math.max(0, Math.min(k, nSamples - 1))];
+	}
+
+	/**
+	 * Get the time to wait for a response from the library: three times
+	 * the 95th percentile of the recent response times, but not less than
+	 * two seconds and not more than the configured timeout. If too few
+	 * responses have been recorded, the configured timeout is returned.
+	 * @param maxTimeout the configured query timeout in milliseconds.
+	 * @return the timeout in milliseconds.
+	 */
+	public long getTimeout(long maxTimeout) {
+		int n;
+		synchronized (this) { n = nSamples; }
+		if (n < minSamples) return maxTimeout;
+		long timeout = 3 * getPercentile(95);
+		return Math.min(maxTimeout, Math.max(minTimeout, timeout));
+	}
+}
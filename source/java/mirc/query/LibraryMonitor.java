@@ -9,8 +9,15 @@ package mirc.query;
 
 import java.io.*;
 import java.net.*;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mirc.MircConfig;
+import mirc.util.DaemonThreadFactory;
 import org.rsna.util.FileUtil;
 import org.rsna.util.XmlUtil;
 
@@ -26,17 +33,27 @@ import org.w3c.dom.NodeList;
  * a query will time out because a remote library is down.
  * This thread runs periodically, doing minimal queries on
  * all the remote sites and disabling the ones that do not respond.
+ * <p>
+ * The sites are queried concurrently, and the results are recorded
+ * in their LibraryHealth records. Between the hourly scans, the
+ * thread checks every minute for libraries whose circuit breakers
+ * are half-open and probes them, so a library that has recovered
+ * is returned to queries without waiting for the next scan.
  */
 public class LibraryMonitor extends Thread {
 
 	static final Logger logger = Logger.getLogger(LibraryMonitor.class);
 	static final long interval = 60L * 60L * 1000L; //60 minutes
+	static final long probeInterval = 60L * 1000L; //1 minute
+	static final int maxProbes = 8;
 
 	static final String mircQueryString = "<MIRCquery maxresults=\"1\"/>";
 	static final String cookie = null;
 
 	volatile boolean success = false;
 
+	final ExecutorService probes = Executors.newFixedThreadPool(maxProbes, new DaemonThreadFactory("LibraryMonitor Probe", Thread.MIN_PRIORITY));
+
 	/**
 	 * Construct a LibraryMonitor.
 	 */
@@ -55,33 +72,57 @@ public class LibraryMonitor extends Thread {
 				//Note, start with a sleep so I can stop and start
 				//the system for development testing without
 				//peppering the world with unnecessary checks.
-				sleep(interval);
+				//While waiting, probe the libraries whose circuit
+				//breakers are half-open.
+				waitAndProbe(interval);
 				checkServers();
-				sleep(interval);
+				waitAndProbe(interval);
 			}
+			catch (InterruptedException stop) { break; }
 			catch (Exception e) { }
 		}
 	}
 
+	//Sleep for a period, probing the libraries with half-open circuit
+	//breakers at the start of each probe interval.
+	private void waitAndProbe(long period) throws InterruptedException {
+		long end = System.currentTimeMillis() + period;
+		long remaining;
+		while ((remaining = end - System.currentTimeMillis()) > 0) {
+			sleep(Math.min(remaining, probeInterval));
+			probeHalfOpenServers();
+		}
+	}
+
+	//Probe the remote libraries whose circuit breakers are half-open.
+	private void probeHalfOpenServers() {
+		MircConfig mc = MircConfig.getInstance();
+		int timeout = mc.getQueryTimeout();
+		List<Element> servers = new LinkedList<Element>();
+		for (Element server : getRemoteServers()) {
+			String address = server.getAttribute("address").trim();
+			if (LibraryHealth.getInstance(address).needsProbe()) servers.add(server);
+		}
+		if (servers.size() > 0) checkServers(servers, timeout);
+	}
+
 	//Query all the remote libraries in the configuration and set their enables
 	//based on whether they respond.
 	//
 	private void checkServers() {
 		MircConfig mc = MircConfig.getInstance();
 		int timeout = mc.getQueryTimeout();
-		Element servers = mc.getLibraries(false);
-		NodeList serversNodeList = servers.getElementsByTagName("Library");
+		List<Element> servers = getRemoteServers();
+		boolean[] results = checkServers(servers, timeout);
 		int changes = 0;
-		for (int i=0; i<serversNodeList.getLength(); i++) {
-			Element server = (Element)serversNodeList.item(i);
+		int i = 0;
+		for (Element server : servers) {
 			String address = server.getAttribute("address");
-			if (!mc.isLocal(address)) {
-				boolean oldEnabled = server.getAttribute("enabled").equals("yes");
-				boolean newEnabled = checkServer(server, timeout);
-				if (oldEnabled != newEnabled) {
-					mc.setLibraryEnable(address, newEnabled);
-					changes++;
-				}
+			boolean oldEnabled = server.getAttribute("enabled").equals("yes");
+			boolean newEnabled = results[i++];
+			if (oldEnabled != newEnabled) {
+				mc.setLibraryEnable(address, newEnabled);
+				changes++;
 			}
 		}
 		if (changes > 0) {
@@ -94,6 +135,45 @@ public class LibraryMonitor extends Thread {
 		}
 	}
 
+	//Get the remote libraries in the configuration.
+	private List<Element> getRemoteServers() {
+		MircConfig mc = MircConfig.getInstance();
+		Element servers = mc.getLibraries(false);
+		NodeList serversNodeList = servers.getElementsByTagName("Library");
+		List<Element> list = new LinkedList<Element>();
+		for (int i=0; i<serversNodeList.getLength(); i++) {
+			Element server = (Element)serversNodeList.item(i);
+			String address = server.getAttribute("address");
+			if (!mc.isLocal(address)) list.add(server);
+		}
+		return list;
+	}
+
+	//Query a list of servers concurrently and return an array
+	//indicating which ones responded within the timeout.
+	private boolean[] checkServers(List<Element> servers, final int timeout) {
+		List<Future<Boolean>> futures = new LinkedList<Future<Boolean>>();
+		for (final Element server : servers) {
+			futures.add(
+				probes.submit(
+					new Callable<Boolean>() {
+						public Boolean call() {
+							return Boolean.valueOf( checkServer(server, timeout) );
+						}
+					}
+				)
+			);
+		}
+		boolean[] results = new boolean[futures.size()];
+		int i = 0;
+		for (Future<Boolean> future : futures) {
+			try { results[i] = future.get().booleanValue(); }
+			catch (Exception ex) { results[i] = false; }
+			i++;
+		}
+		return results;
+	}
+
 	//Query a server and return true if it responded within the timeout.
 	//NOTE: this method assumes that the server is remote. If it isn't,
 	//the URL will not include the full site URL, and the query will fail.
@@ -103,11 +183,11 @@ public class LibraryMonitor extends Thread {
 		HttpURLConnection conn = null;
 		char[] cbuf = new char[1024];
 		int n;
-		long requestTime = System.currentTimeMillis();
 		String address = server.getAttribute("address").trim();
 		Element titleEl = XmlUtil.getFirstNamedChild(server, "title");
 		String title = ( (titleEl!=null) ? titleEl.getTextContent() : address );
 		String serverName = server.getTextContent().trim();
+		LibraryHealth health = LibraryHealth.getInstance(address);
 
 		boolean ok = false;
 		try {
@@ -117,6 +197,7 @@ public class LibraryMonitor extends Thread {
 			conn.setRequestMethod("POST");
 			conn.setRequestProperty("Content-Type","text/xml; charset=\"UTF-8\"");
 			conn.setDoOutput(true);
+			conn.setConnectTimeout( 1000 * timeout );
 			conn.setReadTimeout( 1000 * timeout );
 			conn.connect();
 
@@ -129,9 +210,13 @@ public class LibraryMonitor extends Thread {
 			reader = new BufferedReader(new InputStreamReader( conn.getInputStream(), FileUtil.utf8 ) );
 			while ((n = reader.read(cbuf,0,1024)) != -1) ; //throw away the contents
 			logger.debug("MIRCquery success for "+title);
+			health.recordProbeSuccess();
 			ok = true;
 		}
-		catch (Exception ex) { logger.debug("MIRCquery timeout for "+title); }
+		catch (Exception ex) {
+			logger.debug("MIRCquery timeout for "+title);
+			health.recordFailure();
+		}
 		finally {
 			FileUtil.close(writer);
 			FileUtil.close(reader);
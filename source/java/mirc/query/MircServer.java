@@ -10,6 +10,8 @@ package mirc.query;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
@@ -20,6 +22,7 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import mirc.MircConfig;
 import mirc.storage.StorageService;
+import mirc.util.GzipUtil;
 import org.apache.log4j.Logger;
 import org.rsna.server.User;
 import org.rsna.util.*;
@@ -40,9 +43,22 @@ public class MircServer extends Thread {
 
 	static final Logger logger = Logger.getLogger(MircServer.class);
 
+	//The remote libraries which have indicated that they accept gzipped queries.
+	static final ConcurrentHashMap<String,Boolean> gzipLibraries = new ConcurrentHashMap<String,Boolean>();
+
+	//The number of bytes of a remote response kept for the error page.
+	static final int maxResponsePrefix = 4096;
+
 	public volatile boolean done = false;
 	public volatile int contentLength = 0;
 
+	private final boolean isLocal;
+	private final long timeout;
+	private final long maxTimeout;
+	private volatile boolean connected = false;
+	private volatile long startTime = 0;
+	private ByteArrayOutputStream responsePrefix = null;
+
 	/**
 	 * Class constructor.
 	 * @param urlString the URL of the MIRC storage service to be queried.
@@ -64,6 +80,45 @@ public class MircServer extends Thread {
 		this.serverName = serverName;
 		this.mircQuery = mircQuery;
 		this.queryService = queryService;
+		this.isLocal = MircConfig.isLocal(urlString);
+		this.maxTimeout = MircConfig.getInstance().getQueryTimeout() * 1000L;
+		this.timeout = isLocal ? maxTimeout : LibraryHealth.getInstance(urlString).getTimeout(maxTimeout);
+	}
+
+	/**
+	 * Get the time the query service should wait for this MircServer.
+	 * For a remote library, the time is derived from the library's
+	 * recent response times; for a local library, it is the
+	 * configured query timeout.
+	 * @return the timeout in milliseconds.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Determine whether this MircServer has been waiting
+	 * for a response for longer than its timeout.
+	 * @param now the current time.
+	 * @return true if the query has timed out; false otherwise.
+	 */
+	public boolean isTimedOut(long now) {
+		return (startTime != 0) && ((now - startTime) > timeout);
+	}
+
+	/**
+	 * Abort the query. If the query of a remote library has run for the
+	 * configured query timeout, or if the library has not accepted the
+	 * connection, the failure is recorded in the library's health record.
+	 * A query aborted at a shorter deadline derived from the library's
+	 * response times is not counted as a failure, so a slow query does
+	 * not exclude a healthy library from later queries.
+	 */
+	public void abort() {
+		if (!isLocal && !done && (!connected || (timeout >= maxTimeout))) {
+			LibraryHealth.getInstance(urlString).recordFailure();
+		}
+		interrupt();
 	}
 
 	/**
@@ -89,14 +144,21 @@ public class MircServer extends Thread {
 	public void run() {
 
 		long currentTime = System.currentTimeMillis();
+		startTime = currentTime;
 		logger.debug("Querying "+urlString);
 
-		String serverResponse = MircConfig.isLocal(urlString) ? doLocalQuery() : doRemoteQuery();
-
-		//Add the server name and URL to the MIRCqueryresult
+		//Get the response. Remote responses are parsed as they are read;
+		//local responses are parsed from the text returned by the index.
+		String serverResponse = null;
 		Document result = null;
 		try {
-			result = XmlUtil.getDocument(serverResponse);
+			if (isLocal) {
+				serverResponse = doLocalQuery();
+				result = XmlUtil.getDocument(serverResponse);
+			}
+			else result = doRemoteQuery();
+
+			//Add the server name and URL to the MIRCqueryresult
 			Element root = result.getDocumentElement();
 			root.setAttribute("url", urlString);
 			Element server = result.createElement("server");
@@ -104,12 +166,14 @@ public class MircServer extends Thread {
 			root.insertBefore( server, root.getFirstChild() );
 		}
 		catch (Exception e) {
+			if (!isLocal) serverResponse = getResponsePrefix();
 			try {
 				result = XmlUtil.getDocument( makeExceptionResponse(
 							StringUtil.makeReadableTagString(serverName) +
 							"<br/>Error processing storage service response:" +
-							"<br/>Server Response:<br/>" +
-							StringUtil.makeReadableTagString(serverResponse) )
+							((serverResponse != null)
+								? "<br/>Server Response:<br/>" + StringUtil.makeReadableTagString(serverResponse)
+								: "<br/>" + StringUtil.makeReadableTagString(String.valueOf(e.getMessage()))) )
 						);
 			}
 			catch (Exception returnNull) { }
@@ -135,61 +199,141 @@ public class MircServer extends Thread {
 		return StorageService.doQuery(ssid, mircQuery, user);
 	}
 
-	private String doRemoteQuery() {
-		String serverResponse = "";
+	//Send the query to a remote library and parse the response as it arrives.
+	//The query is gzipped if the library has indicated that it accepts
+	//gzipped queries, and a gzipped response is requested. The response
+	//stream is read to the end and closed so the connection can be reused.
+	private Document doRemoteQuery() throws Exception {
+		InputStream in = null;
 		try {
 			URL url = new URL(urlString);
 			if (url.getUserInfo() != null) Authenticator.setDefault(new QueryAuthenticator(url));
 			HttpURLConnection conn = HttpUtil.getConnection(url);
 			conn.setRequestMethod("POST");
 			conn.setRequestProperty("Content-Type","text/xml; charset=\"UTF-8\"");
+			conn.setRequestProperty("Accept-Encoding", "gzip");
+			conn.setConnectTimeout( (int)timeout );
+			conn.setReadTimeout( (int)timeout );
 
+			byte[] query = mircQuery.getBytes(FileUtil.utf8);
+			if (gzipLibraries.containsKey(urlString)) {
+				query = GzipUtil.gzip(query);
+				conn.setRequestProperty("Content-Encoding", "gzip");
+			}
+			//A streamed query cannot be resent in answer to an authentication
+			//challenge, so the query is buffered if the URL carries credentials.
+			if (url.getUserInfo() == null) conn.setFixedLengthStreamingMode(query.length);
 			conn.setDoOutput(true);
 			conn.connect();
+			connected = true;
 
 			//Send the query to the server
-			BufferedWriter svrbw =
-				new BufferedWriter(
-					new OutputStreamWriter( conn.getOutputStream(), FileUtil.utf8 ) );
-			svrbw.write(mircQuery);
-			svrbw.flush();
-			svrbw.close();
-
-			//Get the response
-			BufferedReader svrrdr =
-				new BufferedReader(
-					new InputStreamReader( conn.getInputStream(), FileUtil.utf8 ) );
-			StringWriter svrsw = new StringWriter();
-			char[] cbuf = new char[1024];
-			int n;
-			boolean hcf = false;
-
-			while (((n = svrrdr.read(cbuf,0,1024)) != -1) && !(hcf = interrupted())) {
-				svrsw.write(cbuf,0,n);
-				contentLength += n;
+			OutputStream svrout = conn.getOutputStream();
+			svrout.write(query);
+			svrout.flush();
+			svrout.close();
+
+			//Note whether the server accepts gzipped queries
+			String accept = conn.getHeaderField("Accept-Encoding");
+			if ((accept != null) && accept.toLowerCase().contains("gzip")) {
+				gzipLibraries.put(urlString, Boolean.TRUE);
 			}
-			svrrdr.close();
-
-			if (!hcf) serverResponse = svrsw.toString();
-			else {
-				serverResponse = makeExceptionResponse("No response from the server.");
-				String svrresp = svrsw.toString();
-				if (svrresp.length() > 1000) svrresp = svrresp.substring(0, 1000) + "...";
-				if (svrresp.length() > 0)
-					logger.warn("Read aborted by interrupt: "+url+"\nResponse:\n"+svrresp);
-				else
-					logger.warn("Read aborted by interrupt: "+url);
+
+			//Parse the response as it arrives
+			in = new ResponseStream( conn.getInputStream() );
+			String encoding = conn.getContentEncoding();
+			if ((encoding != null) && encoding.toLowerCase().contains("gzip")) {
+				in = new GZIPInputStream(in);
 			}
+			responsePrefix = new ByteArrayOutputStream();
+			in = new PrefixStream(in);
+			Document doc = XmlUtil.getDocument( new BufferedInputStream(in) );
+			drain(in);
+			LibraryHealth.getInstance(urlString).recordSuccess(System.currentTimeMillis() - startTime);
+			return doc;
 		}
 		catch (MalformedURLException e) {
-			serverResponse = makeExceptionResponse("Malformed URL: "+urlString);
+			return XmlUtil.getDocument( makeExceptionResponse("Malformed URL: "+urlString) );
 		}
-		catch (Exception e) {
-			serverResponse =
-				makeExceptionResponse(
-					"Error during connection: " + urlString + "<br/>" + e.getMessage() );
+		catch (InterruptedIOException e) {
+			if (isInterrupted()) {
+				logger.warn("Read aborted by interrupt: "+urlString+" ("+contentLength+" bytes received)");
+				return XmlUtil.getDocument( makeExceptionResponse("No response from the server.") );
+			}
+			//Count a read timeout only if it is the configured timeout.
+			if (!connected || (timeout >= maxTimeout)) LibraryHealth.getInstance(urlString).recordFailure();
+			return XmlUtil.getDocument(
+						makeExceptionResponse(
+							"Error during connection: " + urlString + "<br/>" + e.getMessage() ) );
+		}
+		catch (IOException e) {
+			if (!isInterrupted()) LibraryHealth.getInstance(urlString).recordFailure();
+			return XmlUtil.getDocument(
+						makeExceptionResponse(
+							"Error during connection: " + urlString + "<br/>" + e.getMessage() ) );
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	//Read the rest of a stream so its connection can be reused.
+	private static void drain(InputStream in) {
+		try {
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) != -1) ;
+		}
+		catch (Exception ignore) { }
+	}
+
+	//Get the text of the first bytes of a remote response,
+	//or null if no response has been received.
+	private String getResponsePrefix() {
+		if ((responsePrefix == null) || (responsePrefix.size() == 0)) return null;
+		String s = new String(responsePrefix.toByteArray(), FileUtil.utf8);
+		return (responsePrefix.size() < maxResponsePrefix) ? s : s + "...";
+	}
+
+	//A stream that counts the bytes received and stops
+	//when the MircServer thread is interrupted.
+	class ResponseStream extends FilterInputStream {
+		ResponseStream(InputStream in) {
+			super(in);
+		}
+		public int read() throws IOException {
+			checkInterrupt();
+			int b = super.read();
+			if (b != -1) contentLength++;
+			return b;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkInterrupt();
+			int n = super.read(b, off, len);
+			if (n > 0) contentLength += n;
+			return n;
+		}
+		private void checkInterrupt() throws IOException {
+			if (isInterrupted()) throw new InterruptedIOException("Read aborted by interrupt");
+		}
+	}
+
+	//A stream that keeps the first bytes of a
+	//response for the error page.
+	class PrefixStream extends FilterInputStream {
+		PrefixStream(InputStream in) {
+			super(in);
+		}
+		public int read() throws IOException {
+			int b = super.read();
+			if ((b != -1) && (responsePrefix.size() < maxResponsePrefix)) responsePrefix.write(b);
+			return b;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				int k = Math.min(n, maxResponsePrefix - responsePrefix.size());
+				if (k > 0) responsePrefix.write(b, off, k);
+			}
+			return n;
 		}
-		return serverResponse;
 	}
 
 	//Make an error response as a MIRCqueryresult..
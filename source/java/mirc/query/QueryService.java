@@ -14,6 +14,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -283,6 +284,11 @@ public class QueryService extends Servlet {
 			if (server.getAttribute("enabled").equals("yes")) {
 				String address = server.getAttribute("address").trim();
 				if (address.startsWith("/")) address = siteurl + address;
+				else if (!MircConfig.isLocal(address) && !LibraryHealth.getInstance(address).allowQuery()) {
+					//The library's circuit breaker is open; leave it out.
+					logger.debug("Skipping unavailable library: "+address);
+					continue;
+				}
 				String serverName = server.getTextContent().trim();
 				synchronized (this) {
 					MircServer thread = new MircServer( address, req.getUser(), serverName, mircQueryString, this);
@@ -294,11 +300,24 @@ public class QueryService extends Servlet {
 
 		//Wait for the results to come in.
 		//The MircServer threads call the acceptQueryResult method,
-		//which appends them to the results document.
+		//which appends them to the results document. Each server
+		//is abandoned when its own timeout expires.
 		long startTime = System.currentTimeMillis();
 		int size;
-		while ((System.currentTimeMillis()-startTime) < timeout) {
-			synchronized (this) { size = serverThreads.size(); }
+		long now;
+		while (((now = System.currentTimeMillis()) - startTime) < timeout) {
+			synchronized (this) {
+				Iterator<MircServer> it = serverThreads.iterator();
+				while (it.hasNext()) {
+					MircServer server = it.next();
+					if (server.isTimedOut(now)) {
+						logger.warn("Aborting "+server.getServerURL()+" after "+server.getTimeout()+"ms (len="+server.contentLength+")");
+						server.abort();
+						it.remove();
+					}
+				}
+				size = serverThreads.size();
+			}
 			if (size > 0) {
 				try { Thread.sleep(100); }
 				catch (Exception maybeDone) { }
@@ -310,7 +329,7 @@ public class QueryService extends Servlet {
 		synchronized (this) {
 			for (MircServer server: serverThreads) {
 				logger.warn("Aborting "+server.getServerURL()+" (done="+server.done+"; len="+server.contentLength+")");
-				server.interrupt();
+				server.abort();
 			}
 			serverThreads.removeAll(serverThreads);
 		}
@@ -336,8 +355,7 @@ public class QueryService extends Servlet {
 					if (server != null) el.appendChild(server.cloneNode(true));
 					mds[i] = el;
 				}
-				ResultComparator rc = new ResultComparator(req.getParameter("orderby", "lmdate"));
-				Arrays.sort(mds, rc);
+				ResultComparator.sort(mds, req.getParameter("orderby", "lmdate"));
 				results = XmlUtil.getDocument();
 				resultsRoot = results.createElement("Results");
 				results.appendChild(resultsRoot);
@@ -503,13 +521,12 @@ public class QueryService extends Servlet {
 	// query page.
 	private Element[] getSelectedServers(Document formXML, Document mircXML) throws Exception {
 		NodeList formNodeList = formXML.getDocumentElement().getElementsByTagName("server");
-		Element svrs = MircConfig.getInstance().getSortedLibraries();
-		NodeList mircNodeList = svrs.getElementsByTagName("Library");
+		Element[] libs = MircConfig.getInstance().getSortedLibraryArray();
 		LinkedList<Element> servers = new LinkedList<Element>();
 		for (int i=0; i<formNodeList.getLength(); i++) {
 			int serverIndex = StringUtil.getInt(formNodeList.item(i).getTextContent().trim());
-			if ( (serverIndex >= 0) && (serverIndex < mircNodeList.getLength()) ) {
-				servers.add( (Element)mircNodeList.item(serverIndex) );
+			if ( (serverIndex >= 0) && (serverIndex < libs.length) ) {
+				servers.add( libs[serverIndex] );
 			}
 		}
 		return servers.toArray( new Element[servers.size()] );
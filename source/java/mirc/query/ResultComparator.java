@@ -115,6 +115,102 @@ public class ResultComparator implements Comparator {
 		else return 0;
 	}
 
+	/**
+	 * Sort an array of query result elements in the order of a
+	 * ResultComparator for the specified primary key. The sort keys
+	 * are extracted from each element once, so the sort does not
+	 * walk the DOM during comparisons. The order is the same as the
+	 * order produced by sorting the elements with a ResultComparator.
+	 * @param mds the array of MIRCdocument elements to sort in place.
+	 * @param primaryKey the name of the primary sort key.
+	 */
+	public static void sort(Element[] mds, String primaryKey) {
+		ResultComparator rc = new ResultComparator(primaryKey);
+		Key[] keys = new Key[mds.length];
+		for (int i=0; i<mds.length; i++) keys[i] = rc.getKey(mds[i]);
+		Arrays.sort(keys);
+		for (int i=0; i<mds.length; i++) mds[i] = keys[i].md;
+	}
+
+	//Extract the sort key for an element.
+	private Key getKey(Element md) {
+		Element primary;
+		switch (key) {
+			case 0:
+				primary = XmlUtil.getFirstNamedChild(md, "title");
+				return new Key(md, primary, Key.first, "lmdate");
+			case 1:
+				primary = XmlUtil.getFirstNamedChild(md, "server");
+				return new Key(md, primary, Key.first, "lmdate");
+			case 2:
+				primary = XmlUtil.getFirstNamedChild(md, "author");
+				if (primary == null) return new Key(md, null, Key.first, "lmdate");
+				primary = XmlUtil.getFirstNamedChild(primary, "name");
+				return new Key(md, primary, Key.last, "lmdate");
+			case 3:
+				primary = XmlUtil.getFirstNamedChild(md, "category");
+				return new Key(md, primary, Key.first, "lmdate");
+			case 4:
+				return new Key(md, "pubdate");
+			default:
+				return new Key(md, "lmdate");
+		}
+	}
+
+	//The sort key record of a single result element.
+	static class Key implements Comparable<Key> {
+		static final int first = 0;
+		static final int present = 1;
+		static final int last = 2;
+
+		final Element md;
+		final int rank;
+		final String text;
+		final String date;
+
+		//Create a key with only a date.
+		Key(Element md, String datename) {
+			this.md = md;
+			this.rank = present;
+			this.text = "";
+			this.date = getText(XmlUtil.getFirstNamedChild(md, datename));
+		}
+
+		//Create a key with a primary text value and a secondary date.
+		//The rank places elements without the primary value before
+		//or after all the others.
+		Key(Element md, Element primary, int missing, String datename) {
+			this.md = md;
+			this.rank = (primary != null) ? present : missing;
+			this.text = (primary != null) ? fold(primary.getTextContent()) : "";
+			this.date = getText(XmlUtil.getFirstNamedChild(md, datename));
+		}
+
+		public int compareTo(Key k) {
+			if (rank != k.rank) return (rank < k.rank) ? -1 : 1;
+			int c = text.compareTo(k.text);
+			if (c != 0) return c;
+			//Dates are in reverse order, with missing dates last.
+			if (date == null) return (k.date == null) ? 0 : 1;
+			if (k.date == null) return -1;
+			return -date.compareTo(k.date);
+		}
+
+		private static String getText(Element el) {
+			return (el != null) ? el.getTextContent() : null;
+		}
+
+		//Fold a string so that compareTo on folded strings gives
+		//the same result as compareToIgnoreCase on the originals.
+		private static String fold(String s) {
+			char[] chars = s.toCharArray();
+			for (int i=0; i<chars.length; i++) {
+				chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+			}
+			return new String(chars);
+		}
+	}
+
 	private int compareDates(String datename, Element eo1, Element eo2) {
 		Element date2 = XmlUtil.getFirstNamedChild(eo2, datename);
 		if (date2 == null) return -1;
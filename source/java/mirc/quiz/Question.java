@@ -10,10 +10,16 @@ package mirc.quiz;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 
 /**
  * Encapsulates a single scored question, containing all the respondents' answers.
+ * Only the id and the status of the question are stored in the question record
+ * in the database. The answers are stored as individual records by the ScoredQuizDB
+ * and accumulated here in memory.
  */
 public class Question implements Serializable {
 
@@ -22,8 +28,16 @@ public class Question implements Serializable {
 
 	String id;
 	boolean isClosed = false;
+
+	//This table is only used to read the answers from question
+	//records written before answers were stored individually.
+	//It is migrated and cleared by the ScoredQuizDB when the
+	//question is loaded.
 	Hashtable<String,Answer> answers;
 
+	transient ConcurrentHashMap<String,Answer> current;
+	transient ConcurrentHashMap<String,AtomicInteger> counts;
+
 	/**
 	 * Create a ScoredQuiz Question.
 	 * @param id the id of the quiz
@@ -31,7 +45,24 @@ public class Question implements Serializable {
 	public Question(String id) {
 		this.id = id;
 		this.isClosed = false;
-		this.answers = new Hashtable<String,Answer>();
+		this.answers = null;
+		attach(null);
+	}
+
+	//Install the in-memory tables, loading a set of answers.
+	//This is called by the ScoredQuizDB when a question is
+	//read from the database, since transient fields are not
+	//restored by deserialization.
+	void attach(Map<String,Answer> stored) {
+		current = new ConcurrentHashMap<String,Answer>();
+		counts = new ConcurrentHashMap<String,AtomicInteger>();
+		if (stored != null) {
+			for (String respondentID : stored.keySet()) {
+				Answer answer = stored.get(respondentID);
+				current.put(respondentID, answer);
+				count(answer.getValue(), 1);
+			}
+		}
 	}
 
 	/**
@@ -56,15 +87,24 @@ public class Question implements Serializable {
 	 * accepted for this question; false otherwise.
 	 */
 	public void setClosed(boolean isClosed) {
-		this.isClosed = isClosed;
-		ScoredQuizDB.getInstance().put(this);
+		if (this.isClosed != isClosed) {
+			this.isClosed = isClosed;
+			ScoredQuizDB.getInstance().put(this);
+		}
 	}
 
 	/**
 	 * Get the respondent IDs for all respondents to this question.
 	 */
 	public String[] getRespondentIDs() {
-		return answers.keySet().toArray(new String[answers.size()]);
+		return current.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Get the number of respondents to this question.
+	 */
+	public int getNumberOfRespondents() {
+		return current.size();
 	}
 
 	/**
@@ -73,17 +113,47 @@ public class Question implements Serializable {
 	 * @return the respondent's answer to the question, or null if no answer has been submitted.
 	 */
 	public Answer get(String respondentID) {
-		return answers.get(respondentID);
+		return current.get(respondentID);
 	}
 
 	/**
-	 * Add the Answer for a specific respondent.
+	 * Add the Answer for a specific respondent. The answer is
+	 * available immediately; it is written to the database by
+	 * the next group commit of the ScoredQuizDB.
 	 * @param respondentID the id of the respondent whose answer is to be stored.
 	 * @param answer the respondent's answer to the question.
 	 */
 	public void put(String respondentID, Answer answer) {
-		answers.put(respondentID, answer);
-		ScoredQuizDB.getInstance().put(this);
+		Answer previous = current.put(respondentID, answer);
+		if (previous != answer) {
+			if (previous != null) count(previous.getValue(), -1);
+			count(answer.getValue(), 1);
+		}
+		ScoredQuizDB.getInstance().put(this, respondentID, answer);
+	}
+
+	/**
+	 * Get a summary of the answers to this question, without
+	 * accessing the individual Answer objects.
+	 * @return a table of the number of respondents giving each answer value.
+	 */
+	public Hashtable<String,Integer> getSummary() {
+		Hashtable<String,Integer> summary = new Hashtable<String,Integer>();
+		for (String value : counts.keySet()) {
+			int n = counts.get(value).get();
+			if (n > 0) summary.put(value, new Integer(n));
+		}
+		return summary;
+	}
+
+	private void count(String value, int delta) {
+		AtomicInteger n = counts.get(value);
+		if (n == null) {
+			AtomicInteger zero = new AtomicInteger(0);
+			n = counts.putIfAbsent(value, zero);
+			if (n == null) n = zero;
+		}
+		n.addAndGet(delta);
 	}
 
 }
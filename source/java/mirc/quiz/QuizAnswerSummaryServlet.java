@@ -107,16 +107,7 @@ public class QuizAnswerSummaryServlet extends Servlet {
 					sumSQ.setTextContent( docSQ.getTextContent() );
 					root.appendChild(sumSQ);
 					Question q = db.get(qid);
-					String[] respondentIDs = q.getRespondentIDs();
-					Hashtable<String,Integer> sumTable = new Hashtable<String,Integer>();
-					for (String rid : respondentIDs) {
-						Answer ans = q.get(rid);
-						String value = ans.getValue();
-						Integer count = sumTable.get(value);
-						if (count == null) count = new Integer(0);
-						count = new Integer( 1 + count.intValue() );
-						sumTable.put(value, count);
-					}
+					Hashtable<String,Integer> sumTable = q.getSummary();
 					for (String value : sumTable.keySet()) {
 						Integer count = sumTable.get(value);
 						Element ansEl = doc.createElement("Answer");
@@ -99,7 +99,6 @@ public class QuizServlet extends Servlet {
 			if (!question.isClosed()) {
 				String value = req.getParameter("value");
 				question.put(username, new Answer(value));
-				db.put(question);
 				res.write("<OK/>");
 				res.send();
 				return;
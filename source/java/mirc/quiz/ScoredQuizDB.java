@@ -8,7 +8,12 @@
 package mirc.quiz;
 
 import java.io.File;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import jdbm.btree.BTree;
 import jdbm.helper.FastIterator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
 import jdbm.htree.HTree;
 import jdbm.RecordManager;
 import org.apache.log4j.Logger;
@@ -16,6 +21,14 @@ import org.rsna.util.JdbmUtil;
 
 /**
  * Encapsulates a database to track scored quizzes.
+ * <p>
+ * Questions are kept in memory once they have been loaded. The question
+ * records in the database contain only the status of each question. Each
+ * answer is stored as an individual record in a BTree, keyed by the question
+ * ID and the respondent ID, so submitting an answer does not rewrite the
+ * other respondents' answers. Changes are queued and written to the
+ * database by a committer thread which does one commit for all the changes
+ * received during the commit interval.
  */
 public class ScoredQuizDB {
 
@@ -27,7 +40,22 @@ public class ScoredQuizDB {
 	private static RecordManager recman = null;
 	private static final String databaseName = "quiz";
 	private static final String qTreeName = "questions";
+	private static final String aTreeName = "answers";
 	private static HTree qTree = null;
+	private static BTree aTree = null;
+
+	//The separator between the question ID and the respondent ID in answer keys.
+	private static final char separator = '\t';
+
+	//The time between group commits, and the number of pending
+	//changes which triggers a commit before the interval expires.
+	static final long commitInterval = 500;
+	static final int commitSize = 500;
+
+	private final ConcurrentHashMap<String,Question> questions = new ConcurrentHashMap<String,Question>();
+	private final ConcurrentHashMap<String,Question> pendingQuestions = new ConcurrentHashMap<String,Question>();
+	private final ConcurrentHashMap<String,Answer> pendingAnswers = new ConcurrentHashMap<String,Answer>();
+	private final Committer committer;
 
 	/**
 	 * Protected constructor.
@@ -38,6 +66,9 @@ public class ScoredQuizDB {
 		File databaseFile = new File(dir, databaseName);
 		recman = JdbmUtil.getRecordManager(databaseFile.getAbsolutePath());
 		qTree = JdbmUtil.getHTree(recman, qTreeName);
+		aTree = JdbmUtil.getBTree(recman, aTreeName);
+		committer = new Committer();
+		committer.start();
 	}
 
 	/**
@@ -53,37 +84,165 @@ public class ScoredQuizDB {
 	 * Get the singleton instance of the database.
 	 * This method is intended for normal classes.
 	 */
-	public static synchronized ScoredQuizDB getInstance() {
+	public static ScoredQuizDB getInstance() {
 		return scoredQuizDB;
 	}
 
 	/**
 	 * Get the database entry for a specified question, creating it if necessary.
+	 * Once a question has been loaded, this method does not access the database.
 	 * @param id the ID of the question to retrieve.
 	 */
-	public synchronized Question get(String id) {
+	public Question get(String id) {
+		Question entry = questions.get(id);
+		if (entry == null) {
+			synchronized (this) {
+				entry = questions.get(id);
+				if (entry == null) {
+					entry = read(id);
+					questions.put(id, entry);
+				}
+			}
+		}
+		return entry;
+	}
+
+	//Read a question and its answers from the database,
+	//migrating any answers stored in an old question record.
+	//This method must be called from a synchronized block.
+	private Question read(String id) {
 		Question entry = null;
 		try {
 			entry = (Question)qTree.get(id);
 			if (entry == null) {
 				entry = new Question(id);
 				qTree.put(id, entry);
+				recman.commit();
+			}
+			else {
+				Hashtable<String,Answer> answers = getAnswers(id);
+				if ((entry.answers != null) && (entry.answers.size() > 0)) {
+					for (String rid : entry.answers.keySet()) {
+						if (!answers.containsKey(rid)) {
+							Answer answer = entry.answers.get(rid);
+							aTree.insert(getKey(id, rid), answer, true);
+							answers.put(rid, answer);
+						}
+					}
+					entry.answers = null;
+					qTree.put(id, entry);
+					recman.commit();
+				}
+				entry.attach(answers);
 			}
 		}
-		catch (Exception ignore) { logger.warn("Unable to create Question",ignore); }
+		catch (Exception ignore) {
+			logger.warn("Unable to load Question "+id, ignore);
+			if (entry == null) entry = new Question(id);
+			entry.attach(null);
+		}
 		return entry;
 	}
 
+	//Get all the answers stored for a question.
+	private Hashtable<String,Answer> getAnswers(String id) throws Exception {
+		Hashtable<String,Answer> answers = new Hashtable<String,Answer>();
+		String prefix = id + separator;
+		Tuple tuple = new Tuple();
+		TupleBrowser browser = aTree.browse(prefix);
+		while (browser.getNext(tuple)) {
+			String key = (String)tuple.getKey();
+			if (!key.startsWith(prefix)) break;
+			answers.put(key.substring(prefix.length()), (Answer)tuple.getValue());
+		}
+		return answers;
+	}
+
+	private static String getKey(String questionID, String respondentID) {
+		return questionID + separator + respondentID;
+	}
+
 	/**
-	 * Put an entry in the database.
+	 * Queue the status record of a question to be stored.
+	 * The answers of the question are not rewritten.
 	 * @param entry the Question to store
 	 */
-	public synchronized void put(Question entry) {
+	public void put(Question entry) {
+		pendingQuestions.put(entry.getID(), entry);
+		committer.changed();
+	}
+
+	/**
+	 * Queue a single answer to be stored.
+	 * @param entry the Question to which the answer belongs
+	 * @param respondentID the id of the respondent
+	 * @param answer the respondent's answer
+	 */
+	public void put(Question entry, String respondentID, Answer answer) {
+		pendingAnswers.put(getKey(entry.getID(), respondentID), answer);
+		committer.changed();
+	}
+
+	/**
+	 * Write all queued changes to the database and commit them.
+	 */
+	public synchronized void commit() {
+		if (recman == null) return;
+		int count = 0;
 		try {
-			qTree.put(entry.getID(), entry);
-			recman.commit();
+			for (String id : pendingQuestions.keySet()) {
+				Question entry = pendingQuestions.remove(id);
+				if (entry != null) {
+					qTree.put(id, entry);
+					count++;
+				}
+			}
+			for (String key : pendingAnswers.keySet()) {
+				Answer answer = pendingAnswers.remove(key);
+				if (answer != null) {
+					aTree.insert(key, answer, true);
+					count++;
+				}
+			}
+			if (count > 0) recman.commit();
+		}
+		catch (Exception ex) { logger.warn("Unable to commit quiz changes", ex); }
+	}
+
+	int getPendingCount() {
+		return pendingQuestions.size() + pendingAnswers.size();
+	}
+
+	//The thread which does the group commits.
+	class Committer extends Thread {
+		volatile boolean stop = false;
+
+		public Committer() {
+			super("ScoredQuizDB Committer");
+			setDaemon(true);
+		}
+
+		public synchronized void changed() {
+			if (getPendingCount() >= commitSize) notify();
+		}
+
+		public synchronized void shutdown() {
+			stop = true;
+			notify();
+		}
+
+		public void run() {
+			while (!stop) {
+				try {
+					synchronized (this) {
+						if (!stop) wait(commitInterval);
+					}
+					commit();
+				}
+				catch (InterruptedException quit) { break; }
+				catch (Exception ex) { logger.warn("Committer exception", ex); }
+			}
 		}
-		catch (Exception ignore) { }
 	}
 
 	/**
@@ -92,9 +251,21 @@ public class ScoredQuizDB {
 	 * are available after this call.
 	 */
 	public static synchronized void close() {
+		if (scoredQuizDB != null) {
+			scoredQuizDB.committer.shutdown();
+			synchronized (scoredQuizDB) {
+				scoredQuizDB.commit();
+				closeDatabase();
+			}
+		}
+		else closeDatabase();
+	}
+
+	private static void closeDatabase() {
 		JdbmUtil.close(recman);
 		recman = null;
 		qTree = null;
+		aTree = null;
 	}
 
 }
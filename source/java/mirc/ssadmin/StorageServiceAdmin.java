@@ -125,9 +125,13 @@ public class StorageServiceAdmin extends Servlet {
 				return;
 			}
 
-			else if ((pathLength == 2) && (function.equals("rebuild"))) {
-				//This is a request to rebuild all the indexes.
-				StorageServiceRebuilder rebuilder = StorageServiceRebuilder.getInstance();
+			else if ((pathLength <= 3) && (function.equals("rebuild"))) {
+				//This is a request to rebuild all the indexes, or
+				//the index of a single library if one is specified.
+				StorageServiceRebuilder rebuilder =
+					(pathLength == 3)
+						? StorageServiceRebuilder.getInstance( path.element(2) )
+						: StorageServiceRebuilder.getInstance();
 				if (rebuilder != null) {
 					rebuilder.start();
 				}
@@ -196,6 +200,8 @@ public class StorageServiceAdmin extends Servlet {
 				String tceenb = req.getParameter(id+"-tceenb", "no");
 
 				Element lib = mc.getLocalLibrary(id);
+				if (lib == null) continue;
+				lib = (Element)lib.cloneNode(true);
 				lib.setAttribute( "timeout", timeout );
 				lib.setAttribute( "maxsize", maxsize );
 				lib.setAttribute( "jpegquality", jpegquality );
@@ -211,6 +217,7 @@ public class StorageServiceAdmin extends Servlet {
 
 				setChild(lib, "title", title, false);
 				setChild(lib, "tagline", tagline, true);
+				mc.insertLibrary(lib);
 			}
 			mc.sortLibraries();
 
@@ -248,6 +255,17 @@ public class StorageServiceAdmin extends Servlet {
 			ss.setAttribute("id", ssid);
 			ss.setAttribute("size", Integer.toString(index.getIndexSize()));
 			ss.setAttribute("dir", index.getDocumentsDir().getAbsolutePath());
+			StorageServiceRebuilder.Progress progress = StorageServiceRebuilder.getProgress(ssid);
+			if (progress != null) {
+				Element rebuild = ssparams.createElement("rebuild");
+				rebuild.setAttribute("status", progress.getStatus());
+				rebuild.setAttribute("count", Integer.toString(progress.getCount()));
+				rebuild.setAttribute("time", Long.toString(progress.getElapsedTime()));
+				rebuild.setAttribute("rate", String.format(Locale.US, "%.1f", progress.getRate()));
+				long eta = progress.getETA();
+				if (eta >= 0) rebuild.setAttribute("eta", Long.toString(eta));
+				ss.appendChild(rebuild);
+			}
 			root.appendChild(ss);
 		}
 
@@ -282,7 +300,7 @@ public class StorageServiceAdmin extends Servlet {
 
 		for (IndexEntry doc : docs) {
 			Element el = list.createElement("doc");
-			el.setAttribute( "path", doc.md.getAttribute("path") );
+			el.setAttribute( "path", doc.getPath() );
 			appendChild( "title", doc.title, el );
 			appendChild( "pubdate", doc.pubdate, el );
 			appendChild( "lmdate", StringUtil.getDateTime(doc.lmdate, " "), el );
@@ -7,65 +7,232 @@
 
 package mirc.ssadmin;
 
+import java.util.LinkedList;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import mirc.MircConfig;
 import mirc.storage.Index;
+import mirc.util.DaemonThreadFactory;
 import org.apache.log4j.Logger;
 
 /**
- * The singleton Storage Service index rebuilder.
+ * The Storage Service index rebuilder.
+ * <p>
+ * A StorageServiceRebuilder rebuilds the indexes of all the local
+ * libraries, or of a single library. The libraries are rebuilt
+ * concurrently on a shared pool of threads, whose size is limited by
+ * the number of processors (and to four, since the rebuilds also
+ * compete for the disk). The progress of each library's rebuild is
+ * available from the getProgress method while the rebuild is running
+ * and after it finishes.
  */
 public class StorageServiceRebuilder extends Thread {
 
 	static final Logger logger = Logger.getLogger(StorageServiceRebuilder.class);
 
-	private static StorageServiceRebuilder rebuilder = null;
-	private static boolean isBusy = false;
+	static final int maxThreads = 4;
+
+	static final ConcurrentHashMap<String,Progress> progress = new ConcurrentHashMap<String,Progress>();
+	static final ExecutorService pool =
+		Executors.newFixedThreadPool(
+			Math.max(1, Math.min(maxThreads, Runtime.getRuntime().availableProcessors())),
+			new DaemonThreadFactory("StorageServiceRebuilder Worker"));
+
+	final Set<String> ids;
 
 	/**
-	 * Construct a StorageServiceRebuilder.
+	 * Construct a StorageServiceRebuilder for a set of libraries.
+	 * The libraries are marked as queued for rebuilding.
+	 * @param ids the IDs of the libraries to rebuild.
 	 */
-	protected StorageServiceRebuilder() {
+	protected StorageServiceRebuilder(Set<String> ids) {
 		super("StorageServiceRebuilder");
-		isBusy = false;
+		this.ids = ids;
+		for (String id : ids) progress.put(id, new Progress(id));
 	}
 
 	/**
-	 * Get the singleton instance of the StorageServiceRebuilder.
+	 * Get a StorageServiceRebuilder for all the local libraries.
+	 * @return the rebuilder, or null if a rebuild is in progress.
 	 */
 	public static synchronized StorageServiceRebuilder getInstance() {
-		if ((rebuilder == null) || !rebuilder.isBusy()) {
-			rebuilder = new StorageServiceRebuilder();
-			return rebuilder;
-		}
-		return null;
+		if (isBusy()) return null;
+		Set<String> ids = new TreeSet<String>( MircConfig.getInstance().getLocalLibraryIDs() );
+		return new StorageServiceRebuilder(ids);
+	}
+
+	/**
+	 * Get a StorageServiceRebuilder for a single local library.
+	 * @param ssid the ID of the library.
+	 * @return the rebuilder, or null if the library does not exist
+	 * or is being rebuilt.
+	 */
+	public static synchronized StorageServiceRebuilder getInstance(String ssid) {
+		if (isBusy(ssid) || (MircConfig.getInstance().getLocalLibrary(ssid) == null)) return null;
+		Set<String> ids = new TreeSet<String>();
+		ids.add(ssid);
+		return new StorageServiceRebuilder(ids);
 	}
 
 	/**
-	 * See if the StorageServiceRebuilder is busy.
+	 * See if any library is being rebuilt.
 	 */
 	public static boolean isBusy() {
-		return isBusy;
+		for (Progress p : progress.values()) {
+			if (!p.isDone()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * See if a library is being rebuilt.
+	 * @param ssid the ID of the library.
+	 */
+	public static boolean isBusy(String ssid) {
+		Progress p = progress.get(ssid);
+		return (p != null) && !p.isDone();
+	}
+
+	/**
+	 * Get the progress of the current or last rebuild of a library.
+	 * @param ssid the ID of the library.
+	 * @return the progress, or null if the library has not
+	 * been rebuilt since MIRC started.
+	 */
+	public static Progress getProgress(String ssid) {
+		return progress.get(ssid);
 	}
 
 	/**
 	 * Start the StorageServiceRebuilder.
 	 */
 	public void run() {
-		int count = 0;
-		isBusy = true;
-
-		//Rebuild all the indexes.
-		MircConfig mc = MircConfig.getInstance();
-		Set<String> ids = mc.getLocalLibraryIDs();
+		//Rebuild the indexes.
+		LinkedList<Future<Integer>> futures = new LinkedList<Future<Integer>>();
 		for (String id : ids) {
-			logger.info("Rebuilding "+id);
-			Index index = Index.getInstance(id);
-			count = index.rebuild();
-			logger.info(id+" rebuild complete: "+count+" documents indexed");
+			futures.add( pool.submit( new LibraryRebuilder(progress.get(id)) ) );
+		}
+		for (Future<Integer> future : futures) {
+			try { future.get(); }
+			catch (Exception ex) { logger.warn("Rebuild failed", ex); }
 		}
 		logger.info("Rebuild complete");
-		isBusy = false;
+	}
+
+	//Rebuild the index of one library.
+	static class LibraryRebuilder implements Callable<Integer> {
+		final Progress p;
+
+		LibraryRebuilder(Progress p) {
+			this.p = p;
+		}
+
+		public Integer call() {
+			int count = 0;
+			try {
+				Index index = Index.getInstance(p.ssid);
+				if (index != null) {
+					logger.info("Rebuilding "+p.ssid);
+					p.start(index);
+					count = index.rebuild();
+					logger.info(p.ssid+" rebuild complete: "+count+" documents indexed");
+				}
+			}
+			finally { p.finish(count); }
+			return new Integer(count);
+		}
+	}
+
+	/**
+	 * The progress of the rebuild of one library.
+	 */
+	public static class Progress {
+		final String ssid;
+		volatile String status = "queued";
+		volatile Index index = null;
+		volatile int estimatedTotal = 0;
+		volatile int finalCount = 0;
+		volatile long startTime = 0;
+		volatile long endTime = 0;
+
+		Progress(String ssid) {
+			this.ssid = ssid;
+		}
+
+		void start(Index index) {
+			//The size of the index before the rebuild is the
+			//best estimate of the number of documents.
+			estimatedTotal = index.getIndexSize();
+			this.index = index;
+			startTime = System.currentTimeMillis();
+			status = "running";
+		}
+
+		void finish(int count) {
+			finalCount = count;
+			endTime = System.currentTimeMillis();
+			index = null;
+			status = "done";
+		}
+
+		/**
+		 * Get the status of the rebuild ("queued", "running", or "done").
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * Determine whether the rebuild has finished.
+		 */
+		public boolean isDone() {
+			return status.equals("done");
+		}
+
+		/**
+		 * Get the number of documents indexed so far.
+		 */
+		public int getCount() {
+			Index i = index;
+			return (i != null) ? i.getRebuildCount() : finalCount;
+		}
+
+		/**
+		 * Get the elapsed time of the rebuild in seconds.
+		 */
+		public long getElapsedTime() {
+			if (startTime == 0) return 0;
+			long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+			return (end - startTime) / 1000;
+		}
+
+		/**
+		 * Get the rate of the rebuild in documents per second.
+		 */
+		public double getRate() {
+			if (startTime == 0) return 0.0;
+			long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+			long ms = Math.max(end - startTime, 1);
+			return getCount() * 1000.0 / ms;
+		}
+
+		/**
+		 * Get the estimated time remaining in seconds, based on the
+		 * number of documents in the index before the rebuild started,
+		 * or -1 if no estimate is available.
+		 */
+		public long getETA() {
+			if (!status.equals("running")) return isDone() ? 0 : -1;
+			double rate = getRate();
+			int remaining = estimatedTotal - getCount();
+			if ((rate <= 0.0) || (estimatedTotal == 0)) return -1;
+			return Math.max(0L, (long)(remaining / rate));
+		}
 	}
 }
@@ -18,6 +18,7 @@ import org.rsna.server.User;
 import org.rsna.server.Users;
 import mirc.files.FileService;
 import mirc.files.FilePath;
+import mirc.files.IconQueue;
 import org.rsna.util.StringUtil;
 
 /**
@@ -77,7 +78,7 @@ public class MircFileStorageService extends AbstractPipelineStage implements Sto
 
 			File savedFile = new File( fp.filesDir, sopiUID+".dcm" );
 			if (fileObject.copyTo(savedFile)) {
-				FileService.makeIcon( savedFile, fp.iconsDir );
+				IconQueue.add( savedFile, fp.iconsDir, IconQueue.LOW );
 				lastFileStored = fileObject.getFile();
 				lastTime = System.currentTimeMillis();
 				storedCount++;
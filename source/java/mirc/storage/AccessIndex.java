@@ -0,0 +1,184 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.storage;
+
+import java.util.*;
+import org.rsna.server.User;
+
+/**
+ * An in-memory index of the access, status, and patient age information
+ * of the documents in a local library. The index is kept as bitmaps of
+ * document IDs so the query filters can be applied to sets of IDs before
+ * any IndexEntry objects are accessed. It is built when the Index is opened
+ * and maintained as documents are inserted and removed.
+ */
+public class AccessIndex {
+
+	BitSet all = new BitSet();
+	BitSet publicDocs = new BitSet();
+	BitSet tempDocs = new BitSet();
+	BitSet pubreqDocs = new BitSet();
+	HashMap<String,BitSet> userDocs = new HashMap<String,BitSet>();
+	HashMap<String,BitSet> roleDocs = new HashMap<String,BitSet>();
+
+	//The patient ages of the documents, and the sorted age column,
+	//which is rebuilt on the first age query after a change.
+	HashMap<Integer,int[]> ages = new HashMap<Integer,int[]>();
+	int[] ageColumn = new int[0];
+	int[] ageIDs = new int[0];
+	boolean agesChanged = false;
+
+	/**
+	 * Create an empty AccessIndex.
+	 */
+	public AccessIndex() { }
+
+	/**
+	 * Add a document to the index, replacing any existing entry for its ID.
+	 * @param id the ID of the document
+	 * @param mie the IndexEntry of the document
+	 */
+	public synchronized void add(Integer id, IndexEntry mie) {
+		remove(id);
+		int n = id.intValue();
+		all.set(n);
+		if (mie.isPublic) publicDocs.set(n);
+		if (mie.isTemp) tempDocs.set(n);
+		if (mie.hasPubReq) pubreqDocs.set(n);
+		for (String username : mie.users) set(userDocs, username, n);
+		for (String role : mie.roles) set(roleDocs, role, n);
+		if (mie.ptAges.length > 0) {
+			ages.put(id, mie.ptAges);
+			agesChanged = true;
+		}
+	}
+
+	/**
+	 * Remove a document from the index.
+	 * @param id the ID of the document
+	 */
+	public synchronized void remove(Integer id) {
+		int n = id.intValue();
+		if (!all.get(n)) return;
+		all.clear(n);
+		publicDocs.clear(n);
+		tempDocs.clear(n);
+		pubreqDocs.clear(n);
+		clear(userDocs, n);
+		clear(roleDocs, n);
+		if (ages.remove(id) != null) agesChanged = true;
+	}
+
+	/**
+	 * Get the set of all document IDs in the index.
+	 */
+	public synchronized BitSet getAll() {
+		return (BitSet)all.clone();
+	}
+
+	/**
+	 * Get the set of IDs of temp documents.
+	 */
+	public synchronized BitSet getTemp() {
+		return (BitSet)tempDocs.clone();
+	}
+
+	/**
+	 * Get the set of IDs of the documents which a user is allowed to read.
+	 * The result is the same as testing each document with IndexEntry.allows(user).
+	 * @param user the user, or null for a non-authenticated user.
+	 */
+	public synchronized BitSet getReadable(User user) {
+		if ((user != null) && user.hasRole("admin")) return (BitSet)all.clone();
+		BitSet set = (BitSet)publicDocs.clone();
+		if (user != null) {
+			if (user.hasRole("publisher")) set.or(pubreqDocs);
+			BitSet docs = userDocs.get(user.getUsername());
+			if (docs != null) set.or(docs);
+			for (String role : user.getRoleNames()) {
+				docs = roleDocs.get(role);
+				if (docs != null) set.or(docs);
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Get the set of IDs of documents which contain a patient
+	 * in a specified age range (inclusive).
+	 * @param minAge the minimum age in days.
+	 * @param maxAge the maximum age in days.
+	 */
+	public synchronized BitSet getInAgeRange(int minAge, int maxAge) {
+		if (agesChanged) buildAgeColumn();
+		BitSet set = new BitSet();
+		int k = Arrays.binarySearch(ageColumn, minAge);
+		if (k < 0) k = -k - 1;
+		//Back up to the first of a run of equal values
+		while ((k > 0) && (ageColumn[k-1] >= minAge)) k--;
+		for (; (k < ageColumn.length) && (ageColumn[k] <= maxAge); k++) {
+			set.set(ageIDs[k]);
+		}
+		return set;
+	}
+
+	//Rebuild the sorted age column from the table of ages.
+	private void buildAgeColumn() {
+		int count = 0;
+		for (int[] a : ages.values()) count += a.length;
+		long[] pairs = new long[count];
+		int i = 0;
+		for (Integer id : ages.keySet()) {
+			for (int age : ages.get(id)) {
+				pairs[i++] = (((long)age) << 32) | (id.intValue() & 0xffffffffL);
+			}
+		}
+		Arrays.sort(pairs);
+		ageColumn = new int[count];
+		ageIDs = new int[count];
+		for (i=0; i<count; i++) {
+			ageColumn[i] = (int)(pairs[i] >> 32);
+			ageIDs[i] = (int)pairs[i];
+		}
+		agesChanged = false;
+	}
+
+	/**
+	 * Make a BitSet from a set of document IDs.
+	 * @param ids the set of IDs, or null.
+	 * @return the BitSet, which is empty if the set is null.
+	 */
+	public static BitSet toBitSet(Set<Integer> ids) {
+		BitSet set = new BitSet();
+		if (ids != null) {
+			for (Integer id : ids) {
+				if ((id != null) && (id.intValue() >= 0)) set.set(id.intValue());
+			}
+		}
+		return set;
+	}
+
+	private static void set(HashMap<String,BitSet> map, String key, int n) {
+		BitSet set = map.get(key);
+		if (set == null) {
+			set = new BitSet();
+			map.put(key, set);
+		}
+		set.set(n);
+	}
+
+	private static void clear(HashMap<String,BitSet> map, int n) {
+		Iterator<BitSet> it = map.values().iterator();
+		while (it.hasNext()) {
+			BitSet set = it.next();
+			set.clear(n);
+			if (set.isEmpty()) it.remove();
+		}
+	}
+
+}
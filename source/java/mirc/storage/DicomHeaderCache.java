@@ -0,0 +1,314 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.storage;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jdbm.RecordManager;
+import jdbm.helper.FastIterator;
+import jdbm.htree.HTree;
+import mirc.MircConfig;
+import mirc.util.DaemonThreadFactory;
+import mirc.util.GzipUtil;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.util.JdbmUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A persistent cache of the DICOM headers of the images in a local library.
+ * <p>
+ * For each DICOM file, the cache holds the element listing pages (for admin
+ * and non-admin users, gzipped) and the key image parameters served by the
+ * StorageService, so those views do not parse the file. Entries are keyed
+ * by the path of the file relative to the library directory, and an entry
+ * is used only if the last-modified date and length of the file have not
+ * changed. The cache is populated in the background when documents are
+ * inserted into the index and when the index is rebuilt, and on demand
+ * when a view finds no current entry.
+ */
+public class DicomHeaderCache {
+
+	static final Logger logger = Logger.getLogger(DicomHeaderCache.class);
+
+	static final String tableName = "headers";
+	static final int commitInterval = 50;
+
+	static final Hashtable<String,DicomHeaderCache> caches = new Hashtable<String,DicomHeaderCache>();
+	static final ConcurrentHashMap<String,Boolean> pending = new ConcurrentHashMap<String,Boolean>();
+	static final ExecutorService populator = Executors.newSingleThreadExecutor(new DaemonThreadFactory("DicomHeaderCache", Thread.MIN_PRIORITY));
+
+	final File libraryDir;
+	final File databaseFile;
+	RecordManager recman = null;
+	HTree headers = null;
+	int uncommitted = 0;
+
+	/**
+	 * Protected constructor.
+	 * @param libraryDir the directory of the library (storage/{ssid}).
+	 * @param databaseFile the database file (without any extension).
+	 */
+	protected DicomHeaderCache(File libraryDir, File databaseFile) {
+		this.libraryDir = libraryDir;
+		this.databaseFile = databaseFile;
+		open();
+	}
+
+	/**
+	 * Get the cache for a local library, creating it if necessary.
+	 * @param ssid the ID of the local library.
+	 * @return the cache, or null if the library does not exist.
+	 */
+	public static synchronized DicomHeaderCache getInstance(String ssid) {
+		DicomHeaderCache cache = caches.get(ssid);
+		if (cache == null) {
+			MircConfig mc = MircConfig.getInstance();
+			if (mc.getLocalLibrary(ssid) == null) return null;
+			File root = mc.getRootDirectory();
+			File storage = new File(root, "storage");
+			cache = new DicomHeaderCache(new File(storage, ssid), new File(root, ssid + "_dicom"));
+			caches.put(ssid, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Commit and close all the caches. This method is intended
+	 * to be called only during the final shutdown of the MIRC system.
+	 */
+	public static void closeAll() {
+		populator.shutdownNow();
+		for (DicomHeaderCache cache : caches.values()) {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Get the gzipped element listing page of a DICOM file.
+	 * @param file the DICOM file.
+	 * @param admin true if the page is for an admin user.
+	 * @return the gzipped HTML page.
+	 * @throws Exception if the file cannot be parsed as a DicomObject.
+	 */
+	public byte[] getElementTablePage(File file, boolean admin) throws Exception {
+		Entry entry = getEntry(file);
+		return admin ? entry.adminPage : entry.page;
+	}
+
+	/**
+	 * Get the key image parameters of a DICOM file as a params element
+	 * (Modality, BitsAllocated, BitsStored, HighBit, PixelRepresentation,
+	 * RescaleSlope, RescaleIntercept, WindowCenter, WindowWidth).
+	 * @param file the DICOM file.
+	 * @return the XML string of the params element.
+	 * @throws Exception if the file cannot be parsed as a DicomObject.
+	 */
+	public String getParams(File file) throws Exception {
+		return getEntry(file).params;
+	}
+
+	/**
+	 * Get the key image parameters of a DicomObject as a params element,
+	 * in the form returned by getParams. This method is used when the
+	 * cache is not available.
+	 * @param dob the DicomObject.
+	 * @return the XML string of the params element.
+	 */
+	public static String getParamsXML(DicomObject dob) {
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element params = doc.createElement("params");
+			params.setAttribute("Modality", dob.getElementValue("Modality"));
+			params.setAttribute("BitsAllocated", dob.getElementValue("BitsAllocated"));
+			params.setAttribute("BitsStored", dob.getElementValue("BitsStored"));
+			params.setAttribute("HighBit", dob.getElementValue("HighBit"));
+			params.setAttribute("PixelRepresentation", dob.getElementValue("PixelRepresentation"));
+			params.setAttribute("RescaleSlope", Float.toString(dob.getFloat("RescaleSlope", 1.0f)));
+			params.setAttribute("RescaleIntercept", Float.toString(dob.getFloat("RescaleIntercept", 0.0f)));
+			params.setAttribute("WindowCenter", Float.toString(dob.getFloat("WindowCenter")));
+			params.setAttribute("WindowWidth", Float.toString(dob.getFloat("WindowWidth")));
+			return XmlUtil.toString(params);
+		}
+		catch (Exception ex) { return "<params/>"; }
+	}
+
+	/**
+	 * Queue a DICOM file to be added to the cache in the background.
+	 * The file is ignored if it is already waiting or if the cache
+	 * already contains a current entry for it.
+	 * @param file the DICOM file.
+	 */
+	public void queue(final File file) {
+		final String key = file.getAbsolutePath();
+		if (pending.putIfAbsent(key, Boolean.TRUE) != null) return;
+		try {
+			populator.execute(
+				new Runnable() {
+					public void run() {
+						pending.remove(key);
+						try {
+							if (file.exists() && (get(file) == null)) put(file, new Entry(file));
+						}
+						catch (Exception notDicom) { }
+						if (pending.isEmpty()) commit();
+					}
+				}
+			);
+		}
+		catch (Exception ex) { pending.remove(key); }
+	}
+
+	/**
+	 * Remove the entries for all the files in a directory and its
+	 * subdirectories. This method is intended to be called when a
+	 * document is removed from the index. The entries are removed
+	 * in the background, after any files already queued.
+	 * @param dir the directory.
+	 */
+	public void remove(File dir) {
+		final String prefix = getKey(dir) + "/";
+		try {
+			populator.execute(
+				new Runnable() {
+					public void run() {
+						removeKeys(prefix);
+					}
+				}
+			);
+		}
+		catch (Exception ex) { logger.debug("Unable to remove the cache entries for "+dir, ex); }
+	}
+
+	/**
+	 * Delete all the entries in the cache. This method is
+	 * intended to be called when the index is rebuilt.
+	 */
+	public synchronized void clear() {
+		close();
+		(new File(databaseFile.getPath() + ".db")).delete();
+		(new File(databaseFile.getPath() + ".lg")).delete();
+		open();
+	}
+
+	//Get the current entry for a file, creating it if necessary.
+	private Entry getEntry(File file) throws Exception {
+		Entry entry = get(file);
+		if (entry == null) {
+			//Parse the file outside the lock so other views are not delayed.
+			entry = new Entry(file);
+			put(file, entry);
+			commit();
+		}
+		return entry;
+	}
+
+	//Get the entry for a file if it is current.
+	private synchronized Entry get(File file) {
+		if (headers == null) return null;
+		try {
+			Entry entry = (Entry)headers.get(getKey(file));
+			if ((entry != null) && entry.isCurrent(file)) return entry;
+		}
+		catch (Exception ex) { logger.debug("Unable to read the cache entry for "+file, ex); }
+		return null;
+	}
+
+	//Store the entry for a file.
+	private synchronized void put(File file, Entry entry) {
+		if (headers == null) return;
+		try {
+			headers.put(getKey(file), entry);
+			if (++uncommitted >= commitInterval) commit();
+		}
+		catch (Exception ex) { logger.debug("Unable to store the cache entry for "+file, ex); }
+	}
+
+	//Remove the entries whose keys start with a prefix.
+	private synchronized void removeKeys(String prefix) {
+		if (headers == null) return;
+		try {
+			LinkedList<String> keys = new LinkedList<String>();
+			FastIterator fit = headers.keys();
+			String key;
+			while ((key = (String)fit.next()) != null) {
+				if (key.startsWith(prefix)) keys.add(key);
+			}
+			for (String k : keys) headers.remove(k);
+			if (keys.size() > 0) commit();
+		}
+		catch (Exception ex) { logger.debug("Unable to remove the cache entries for "+prefix, ex); }
+	}
+
+	//Get the key for a file: its path relative to the library directory.
+	private String getKey(File file) {
+		String path = file.getAbsolutePath();
+		String base = libraryDir.getAbsolutePath();
+		if (path.startsWith(base)) path = path.substring(base.length());
+		return path.replace(File.separatorChar, '/');
+	}
+
+	private synchronized void open() {
+		try {
+			recman = JdbmUtil.getRecordManager(databaseFile.getPath());
+			headers = JdbmUtil.getHTree(recman, tableName);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to open the DICOM header cache: "+databaseFile, ex);
+			recman = null;
+			headers = null;
+		}
+	}
+
+	private synchronized void commit() {
+		if (recman != null) {
+			try { recman.commit(); uncommitted = 0; }
+			catch (Exception ignore) { }
+		}
+	}
+
+	private synchronized void close() {
+		if (recman != null) {
+			try { recman.commit(); recman.close(); }
+			catch (Exception ignore) { }
+		}
+		recman = null;
+		headers = null;
+	}
+
+	//The cached header information for one DICOM file.
+	static class Entry implements Serializable {
+		static final long serialVersionUID = 1;
+
+		final long lastModified;
+		final long length;
+		final byte[] page;
+		final byte[] adminPage;
+		final String params;
+
+		Entry(File file) throws Exception {
+			lastModified = file.lastModified();
+			length = file.length();
+			DicomObject dob = new DicomObject(file);
+			page = GzipUtil.gzip( dob.getElementTablePage(false).getBytes("UTF-8") );
+			adminPage = GzipUtil.gzip( dob.getElementTablePage(true).getBytes("UTF-8") );
+			params = getParamsXML(dob);
+		}
+
+		boolean isCurrent(File file) {
+			return (file.lastModified() == lastModified) && (file.length() == length);
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.storage;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import mirc.util.DaemonThreadFactory;
+import mirc.util.MircDocument;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The background job engine for operations on all the images of a MIRCdocument.
+ * <p>
+ * A job (anonymizing the DICOM objects of a document, or saving new window
+ * level settings in the JPEG images of a DICOM image or series) runs on one
+ * of a small number of job threads, and the images of the job are processed
+ * in parallel on a shared, bounded pool of worker threads, so a large series
+ * does not hold a request thread. Only one job may run on a document at a
+ * time. Each job has an ID by which its progress can be obtained while it
+ * runs and for a while after it finishes. Files are written to temporary
+ * files and then renamed, so a file being viewed is never incomplete.
+ */
+public class DocumentJobs {
+
+	static final Logger logger = Logger.getLogger(DocumentJobs.class);
+
+	static final int maxJobs = 2;
+	static final int maxWorkers = 4;
+	static final int maxRetained = 100;
+
+	static final ConcurrentHashMap<String,Job> jobs = new ConcurrentHashMap<String,Job>();
+	static final ConcurrentHashMap<String,Job> active = new ConcurrentHashMap<String,Job>();
+	static final AtomicLong sequence = new AtomicLong();
+
+	static final ExecutorService jobPool =
+		Executors.newFixedThreadPool(maxJobs, new DaemonThreadFactory("DocumentJobs"));
+	static final ExecutorService workerPool =
+		Executors.newFixedThreadPool(
+			Math.max(1, Math.min(maxWorkers, Runtime.getRuntime().availableProcessors())),
+			new DaemonThreadFactory("DocumentJobs Worker"));
+
+	/**
+	 * Start a job, unless another job is running on the same document.
+	 * @param job the job.
+	 * @return the job, or null if the document already has an active job.
+	 */
+	public static Job submit(Job job) {
+		if (active.putIfAbsent(job.key, job) != null) return null;
+		trim();
+		jobs.put(job.id, job);
+		try { jobPool.execute(job); }
+		catch (Exception ex) {
+			job.finish("failed");
+			return null;
+		}
+		return job;
+	}
+
+	/**
+	 * Get a job by its ID.
+	 * @param id the ID of the job.
+	 * @return the job, or null if no job with the ID is known.
+	 */
+	public static Job getJob(String id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * Get the active job on a document.
+	 * @param docFile the MIRCdocument file.
+	 * @return the job, or null if no job is running on the document.
+	 */
+	public static Job getActiveJob(File docFile) {
+		return active.get(docFile.getAbsolutePath());
+	}
+
+	/**
+	 * Replace a file with a temporary file in the same directory. If the
+	 * rename fails (for example, on platforms that do not allow renaming
+	 * over an existing file), the target is renamed to a backup file, the
+	 * temporary file is renamed to the target, and the backup is deleted.
+	 * If the second rename fails, the backup is restored. No file is ever
+	 * deleted unless its contents are in place: on failure, the temporary
+	 * file is left in place, and if the target could not be restored, the
+	 * backup is left in place and its name is logged.
+	 * @param temp the temporary file.
+	 * @param target the file to replace.
+	 * @return true if the target was replaced; false otherwise.
+	 */
+	public static boolean replace(File temp, File target) {
+		if (temp.renameTo(target)) return true;
+		if (!target.exists()) return false;
+		File dir = target.getAbsoluteFile().getParentFile();
+		File backup = new File(dir, target.getName() + "." + System.currentTimeMillis() + ".bak");
+		if (!target.renameTo(backup)) return false;
+		if (temp.renameTo(target)) {
+			backup.delete();
+			return true;
+		}
+		if (!backup.renameTo(target)) {
+			logger.warn("Unable to restore "+target+" from "+backup+"; the new version is in "+temp);
+		}
+		return false;
+	}
+
+	//Remove the oldest finished jobs if too many are retained.
+	private static void trim() {
+		if (jobs.size() < maxRetained) return;
+		Job oldest = null;
+		for (Job job : jobs.values()) {
+			if (job.isDone() && ((oldest == null) || (job.seq < oldest.seq))) oldest = job;
+		}
+		if (oldest != null) jobs.remove(oldest.id);
+	}
+
+	/**
+	 * A job on the images of one document.
+	 */
+	public static abstract class Job implements Runnable {
+		final String id;
+		final long seq;
+		final String type;
+		final File docFile;
+		final String key;
+		final String username;
+		final AtomicInteger completed = new AtomicInteger(0);
+		final AtomicInteger failed = new AtomicInteger(0);
+		volatile int total = 0;
+		volatile String status = "queued";
+		volatile long startTime = 0;
+		volatile long endTime = 0;
+
+		/**
+		 * Create a job.
+		 * @param type the type of the job.
+		 * @param docFile the MIRCdocument file.
+		 * @param username the user who requested the job, or null.
+		 */
+		protected Job(String type, File docFile, String username) {
+			this.seq = sequence.incrementAndGet();
+			this.id = Long.toString(System.currentTimeMillis(), 36) + "-" + seq;
+			this.type = type;
+			this.docFile = docFile;
+			this.key = docFile.getAbsolutePath();
+			this.username = username;
+		}
+
+		/**
+		 * Get the tasks of the job, one per image. This method is called
+		 * on the job thread, so it may read the document; the tasks run
+		 * on the worker threads and must not use the document's DOM.
+		 */
+		protected abstract List<Runnable> getTasks() throws Exception;
+
+		/**
+		 * Run the job, processing the tasks in parallel and
+		 * waiting for them all to finish.
+		 */
+		public void run() {
+			startTime = System.currentTimeMillis();
+			status = "running";
+			String result = "done";
+			try {
+				List<Runnable> tasks = getTasks();
+				total = tasks.size();
+				LinkedList<Future<?>> futures = new LinkedList<Future<?>>();
+				for (Runnable task : tasks) futures.add( workerPool.submit( new Counted(task) ) );
+				for (Future<?> future : futures) {
+					try { future.get(); }
+					catch (Exception ex) { failed.incrementAndGet(); }
+				}
+				if (failed.get() > 0) result = "done with errors";
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to run the "+type+" job for "+docFile, ex);
+				result = "failed";
+			}
+			finish(result);
+			logger.debug(type+" job "+id+" "+result+": "+completed.get()+"/"+total+" images");
+		}
+
+		void finish(String result) {
+			endTime = System.currentTimeMillis();
+			status = result;
+			active.remove(key, this);
+		}
+
+		/**
+		 * Get the ID of the job.
+		 */
+		public String getID() {
+			return id;
+		}
+
+		/**
+		 * Get the username of the user who requested the job, or null.
+		 */
+		public String getUsername() {
+			return username;
+		}
+
+		/**
+		 * Determine whether the job has finished.
+		 */
+		public boolean isDone() {
+			return (endTime != 0);
+		}
+
+		/**
+		 * Get the status of the job as an XML element:
+		 * <pre>
+		 * &lt;job id="" type="" status="" total="" completed="" failed="" elapsed=""/&gt;
+		 * </pre>
+		 * where status is queued, running, done, done with errors, or failed,
+		 * and elapsed is the running time of the job in milliseconds.
+		 * @return the XML string.
+		 */
+		public String getStatusXML() {
+			try {
+				Document doc = XmlUtil.getDocument();
+				Element root = doc.createElement("job");
+				doc.appendChild(root);
+				root.setAttribute("id", id);
+				root.setAttribute("type", type);
+				root.setAttribute("status", status);
+				root.setAttribute("total", Integer.toString(total));
+				root.setAttribute("completed", Integer.toString(completed.get()));
+				root.setAttribute("failed", Integer.toString(failed.get()));
+				long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+				long elapsed = (startTime != 0) ? (end - startTime) : 0;
+				root.setAttribute("elapsed", Long.toString(elapsed));
+				return XmlUtil.toString(root);
+			}
+			catch (Exception ex) { return "<job/>"; }
+		}
+
+		//A task wrapper that counts the completed images.
+		//Failures propagate to the job so they are counted there.
+		class Counted implements Runnable {
+			final Runnable task;
+			Counted(Runnable task) {
+				this.task = task;
+			}
+			public void run() {
+				task.run();
+				completed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A job to anonymize all the DICOM objects referenced by a document
+	 * with the DicomServiceAnonymizer script.
+	 */
+	public static class AnonymizeJob extends Job {
+
+		/**
+		 * Create an anonymize job.
+		 * @param docFile the MIRCdocument file.
+		 * @param username the user who requested the job, or null.
+		 */
+		public AnonymizeJob(File docFile, String username) {
+			super("anonymize", docFile, username);
+		}
+
+		protected List<Runnable> getTasks() throws Exception {
+			File scriptFile = new File("scripts/DicomServiceAnonymizer.script");
+			DAScript dascript = DAScript.getInstance(scriptFile);
+			final Properties script = dascript.toProperties();
+			File dir = docFile.getParentFile();
+			Document doc = XmlUtil.getDocument(docFile);
+			LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+			NodeList nl = doc.getDocumentElement().getElementsByTagName("alternative-image");
+			for (int k=0; k<nl.getLength(); k++) {
+				Element alt = (Element)nl.item(k);
+				if (alt.getAttribute("role").equals("original-format")) {
+					String src = alt.getAttribute("src");
+					if (src.toLowerCase().endsWith(".dcm")) {
+						final File dobFile = new File(dir, src);
+						tasks.add(
+							new Runnable() {
+								public void run() {
+									anonymize(dobFile, script);
+								}
+							}
+						);
+					}
+				}
+			}
+			return tasks;
+		}
+
+		//Anonymize one file into a temporary file and replace the original.
+		private static void anonymize(File dobFile, Properties script) {
+			File temp = new File(dobFile.getParentFile(), dobFile.getName() + ".anon");
+			temp.delete();
+			DICOMAnonymizer.anonymize(dobFile, temp, script, null, null, false, false);
+			if (!temp.exists() || (temp.length() == 0) || !replace(temp, dobFile)) {
+				//Keep the anonymized copy if the original is not in place.
+				if (dobFile.exists()) temp.delete();
+				throw new RuntimeException("Unable to anonymize "+dobFile);
+			}
+		}
+	}
+
+	/**
+	 * A job to save new window level settings in the JPEG images of a
+	 * DICOM image, or of all the DICOM images in its series.
+	 */
+	public static class UpdateJob extends Job {
+		final File imageFile;
+		final boolean doSeries;
+		final int frame;
+		final int q;
+		final int wl;
+		final int ww;
+
+		/**
+		 * Create an update job.
+		 * @param docFile the MIRCdocument file.
+		 * @param imageFile the DICOM file whose settings are to be saved.
+		 * @param doSeries true if all the images in the series are to be updated.
+		 * @param frame the frame to use in creating JPEGs (-1 for the middle frame).
+		 * @param q the quality level to use in creating JPEGs.
+		 * @param wl the window level to use in creating JPEGs.
+		 * @param ww the window width to use in creating JPEGs.
+		 * @param username the user who requested the job, or null.
+		 */
+		public UpdateJob(File docFile, File imageFile, boolean doSeries,
+						 int frame, int q, int wl, int ww, String username) {
+			super((doSeries ? "update series" : "update image"), docFile, username);
+			this.imageFile = imageFile;
+			this.doSeries = doSeries;
+			this.frame = frame;
+			this.q = q;
+			this.wl = wl;
+			this.ww = ww;
+		}
+
+		protected List<Runnable> getTasks() throws Exception {
+			MircDocument md = new MircDocument(docFile);
+			List<MircDocument.WWWLUpdate> updates =
+				md.getWWWLUpdates(imageFile.getName(), doSeries, frame, q, wl, ww);
+			LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+			for (final MircDocument.WWWLUpdate update : updates) {
+				tasks.add(
+					new Runnable() {
+						public void run() {
+							try { update.save(); }
+							catch (Exception ex) {
+								throw new RuntimeException("Unable to update "+update.getDicomFile(), ex);
+							}
+						}
+					}
+				);
+			}
+			return tasks;
+		}
+	}
+}
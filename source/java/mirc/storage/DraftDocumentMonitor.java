@@ -74,7 +74,7 @@ public class DraftDocumentMonitor extends Thread {
 			int count = 0;
 			for (IndexEntry draftDoc : draftDocs) {
 				if (draftDoc.lmdate < earliestAllowed) {
-					String path = draftDoc.md.getAttribute("path");
+					String path = draftDoc.getPath();
 					StorageServiceAdmin.deleteDocument(ssid, path);
 					count++;
 				}
@@ -49,6 +49,11 @@ public class Index {
 	private IndexDatabase freetext;
 	private Hashtable<String,IndexDatabase> fields;
 	private Hashtable<Integer,IndexEntry> idToMIEShadow;
+	private AccessIndex accessIndex;
+	private SortOrder titleOrder;
+	private SortOrder lmdateOrder;
+	private SortOrder pubdateOrder;
+	private volatile int rebuildCount = 0;
 	private static Unfragmented unfragmented = new Unfragmented();
 	private static final String docs = "docs";
 
@@ -75,7 +80,7 @@ public class Index {
 
 				//create the index and save it in the table
 				try {
-					index = new Index(documentsDir, indexFile);
+					index = new Index(ssid, documentsDir, indexFile);
 					indexTable.put(ssid, index);
 					index.commit();
 				}
@@ -99,10 +104,12 @@ public class Index {
 	/**
 	 * Instantiate the index database, creating the database file
 	 * if it is missing, but not populating it.
+	 * @param ssid the ID of the local library.
 	 * @param documentsDir the path to the storage service's documents directory
 	 * @param indexFile the path to the index file (without any extension).
 	 */
-	protected Index(File documentsDir, File indexFile)  throws Exception {
+	protected Index(String ssid, File documentsDir, File indexFile)  throws Exception {
+		this.ssid = ssid;
 		this.documentsDir = documentsDir;
 		this.indexFile = indexFile;
 		this.fields = new Hashtable<String,IndexDatabase>();
@@ -119,12 +126,34 @@ public class Index {
 			idToMIE = JdbmUtil.getHTree(recman, "IDToMIE");
 			freetext = new IndexDatabase(recman, "freetext", null);
 
-			//build the shadow index
+			//build the shadow index and the access index,
+			//converting any entries in an older format
 			idToMIEShadow = new Hashtable<Integer,IndexEntry>();
+			accessIndex = new AccessIndex();
+			titleOrder = new SortOrder(new TitleComparator());
+			lmdateOrder = new SortOrder(new LMDateComparator());
+			pubdateOrder = new SortOrder(new PubDateComparator());
 			HashSet<Integer> allIDs = freetext.getAllIDs();
+			int migrated = 0;
+			int unconverted = 0;
 			for (Integer id : allIDs) {
 				IndexEntry mie = (IndexEntry)idToMIE.get(id);
+				if ((mie != null) && mie.needsMigration()) {
+					if (mie.migrate()) {
+						idToMIE.put(id, mie);
+						migrated++;
+					}
+					else unconverted++;
+				}
 				idToMIEShadow.put(id, mie);
+				if (mie != null) addToShadowIndexes(id, mie);
+			}
+			if (migrated > 0) {
+				recman.commit();
+				logger.info(indexFile.getName()+": "+migrated+" index entries converted to the current format");
+			}
+			if (unconverted > 0) {
+				logger.warn(indexFile.getName()+": "+unconverted+" index entries could not be converted; the index should be rebuilt");
 			}
 
 			//now open the query field databases
@@ -211,10 +240,15 @@ public class Index {
 	 */
 	public synchronized int rebuild(int interval) {
 		int count = 0;
+		rebuildCount = 0;
 		try {
 			close();
 			delete();
 			openIndex();
+			//Start the DICOM header cache over; it is
+			//repopulated as the documents are indexed.
+			DicomHeaderCache cache = DicomHeaderCache.getInstance(ssid);
+			if (cache != null) cache.clear();
 			count = indexDirectory(documentsDir, 0, interval);
 			recman.commit();
 			return count;
@@ -238,6 +272,7 @@ public class Index {
 						recman.commit();
 					}
 					count++;
+					rebuildCount = count;
 				}
 			}
 			else if (file.isDirectory()) count = indexDirectory(file, count, interval);
@@ -263,6 +298,15 @@ public class Index {
 		return false;
 	}
 
+	/**
+	 * Get the number of documents indexed so far by the current
+	 * rebuild, or by the last rebuild if none is in progress.
+	 * This method does not wait for a rebuild to finish.
+	 */
+	public int getRebuildCount() {
+		return rebuildCount;
+	}
+
 	/**
 	 * Get the documents directory for this index.
 	 */
@@ -333,63 +377,100 @@ public class Index {
 	 * query fields.
 	 */
 	public IndexEntry[] query(Query mq, boolean isOpen, User user) {
+		BitSet ids = getIDs(mq, isOpen, user);
+		return (ids != null) ? getMIEArray(ids) : new IndexEntry[0];
+	}
 
-		if (mq.isSpecialQuery) return query(mq, user);
+	/**
+	 * Get one page of the sorted IndexEntry objects for MIRCdocuments
+	 * that match a specified Query. The page is selected from the
+	 * precomputed sort order specified by the orderby field of the
+	 * Query (title, pubdate, or lmdate), so the full result set
+	 * is never sorted.
+	 * @param mq the query object containing all the query fields.
+	 * @param begin the zero-based index of the first result in the page.
+	 * @param count the maximum number of results in the page.
+	 * @return the page, including the total number of matches.
+	 */
+	public Page query(Query mq, boolean isOpen, User user, int begin, int count) {
+		BitSet ids = getIDs(mq, isOpen, user);
+		if (ids == null) return new Page(0, new IndexEntry[0]);
+		SortOrder order;
+		if (mq.orderby.equals("title")) order = titleOrder;
+		else if (mq.orderby.equals("pubdate")) order = pubdateOrder;
+		else order = lmdateOrder;
+		return new Page(ids.cardinality(), order.getPage(ids, begin, count));
+	}
 
-		if (mq.isBlankQuery && !mq.containsNonFreetextQueries) {
+	/**
+	 * One page of the results of a query.
+	 */
+	public static class Page {
+		public final int matches;
+		public final IndexEntry[] entries;
 
-			//Handle this case separately because it can be very fast.
-			HashSet<IndexEntry> set = new HashSet<IndexEntry>( idToMIEShadow.values() );
-			boolean isAdmin = (user != null) && user.hasRole("admin");
-			if (!isOpen && !isAdmin) set = filterOnAccess(set, user);
-			if (mq.containsAgeQuery) set = filterOnAge(set, mq);
-			if (!mq.isTempQuery) removeTempDocs(set);
-			return set.toArray(new IndexEntry[set.size()]);
+		public Page(int matches, IndexEntry[] entries) {
+			this.matches = matches;
+			this.entries = entries;
 		}
+	}
 
-		//Okay, it's not a simple query; do everything but the age
-		HashSet<Integer> ids = null;
-		if (!mq.isBlankQuery) ids = freetext.getIDsForQueryString(mq.get("freetext"));
-		for (String name : mq.keySet()) {
-			if (!name.equals("freetext")) {
-				IndexDatabase db = fields.get(name);
-
-				//If there is a field in the Query, then
-				//it must be non-blank, and if there is no
-				//corresponding IndexDatabase, then
-				//we must return zero results
-				if (db == null) return new IndexEntry[0];
-
-				//Okay, we have a query field and the corresponding
-				//IndexDatabase; do the query.
-				HashSet<Integer> temp = db.getIDsForQueryString(mq.get(name));
-
-				//If we got no matches on this field, then the final
-				//result will have no matches, so we can bail out now.
-				if (temp.size() == 0) return new IndexEntry[0];
-
-				//Okay, we got some responses; use them to filter
-				//what we have found so far.
-				if (ids == null) ids = temp;
-				else ids = IndexDatabase.intersection(ids, temp);
+	//Get the set of IDs of documents that match a query,
+	//or null if there can be no matches.
+	private BitSet getIDs(Query mq, boolean isOpen, User user) {
+
+		if (mq.isSpecialQuery) return getIDs(mq, user);
+
+		//Start with all the documents if this is a blank query;
+		//otherwise, do the freetext and field queries.
+		BitSet ids;
+		if (mq.isBlankQuery && !mq.containsNonFreetextQueries) ids = accessIndex.getAll();
+		else {
+			HashSet<Integer> idSet = null;
+			if (!mq.isBlankQuery) idSet = freetext.getIDsForQueryString(mq.get("freetext"));
+			for (String name : mq.keySet()) {
+				if (!name.equals("freetext")) {
+					IndexDatabase db = fields.get(name);
+
+					//If there is a field in the Query, then
+					//it must be non-blank, and if there is no
+					//corresponding IndexDatabase, then
+					//we must return zero results
+					if (db == null) return null;
+
+					//Okay, we have a query field and the corresponding
+					//IndexDatabase; do the query.
+					HashSet<Integer> temp = db.getIDsForQueryString(mq.get(name));
+
+					//If we got no matches on this field, then the final
+					//result will have no matches, so we can bail out now.
+					if (temp.size() == 0) return null;
+
+					//Okay, we got some responses; use them to filter
+					//what we have found so far.
+					if (idSet == null) idSet = temp;
+					else idSet = IndexDatabase.intersection(idSet, temp);
+				}
 			}
+			ids = AccessIndex.toBitSet(idSet);
 		}
-		//Now apply the access and age filters, if necessary.
-		HashSet<IndexEntry> set = getMIESet(ids);
-		boolean isAdmin = (user != null) && user.hasRole("admin");
-		if (!isOpen && !isAdmin) set = filterOnAccess(set, user);
-		if (mq.containsAgeQuery) set = filterOnAge(set, mq);
 
-		//Now remove temp documents if necessary
-		if (!mq.isTempQuery) removeTempDocs(set);
+		//Now apply the access and age filters, if necessary,
+		//and remove temp documents if necessary. All of these
+		//operate on the ID sets, so no IndexEntry is touched
+		//until the final result is known.
+		boolean isAdmin = (user != null) && user.hasRole("admin");
+		if (!isOpen && !isAdmin) ids.and( accessIndex.getReadable(user) );
+		if (mq.containsAgeQuery) ids.and( accessIndex.getInAgeRange(mq.minAge, mq.maxAge) );
+		if (!mq.isTempQuery) ids.andNot( accessIndex.getTemp() );
 
-		return set.toArray( new IndexEntry[ set.size() ] );
+		return ids;
 	}
 
 	//Do a special query to find all the non-public documents
 	//that do not have publication requests for users who are
 	//authors but not publishers.
-	private IndexEntry[] query(Query mq, User user) {
+	private BitSet getIDs(Query mq, User user) {
 		HashSet<Integer> ids = null;
 		Users users = Users.getInstance();
 		String[] usernames = users.getUsernames();
@@ -405,61 +486,23 @@ public class Index {
 				ids = IndexDatabase.union(ids, temp);
 			}
 		}
-		ids.removeAll(accessSet);
-		ids.removeAll(pubreqSet);
-		HashSet<IndexEntry> set = getMIESet(ids);
+		BitSet set = AccessIndex.toBitSet(ids);
+		set.andNot( AccessIndex.toBitSet(accessSet) );
+		set.andNot( AccessIndex.toBitSet(pubreqSet) );
 		boolean isAdmin = (user != null) && user.hasRole("admin");
-		if (!isAdmin) set = filterOnAccess(set, user);
-		return set.toArray( new IndexEntry[ set.size() ] );
-	}
-
-	private void removeTempDocs(HashSet<IndexEntry> set) {
-		HashSet<IndexEntry> temps = new HashSet<IndexEntry>();
-		for (IndexEntry ie : set) {
-			if (ie.isTemp) temps.add( ie );
-		}
-		for (IndexEntry ie : temps) set.remove( ie );
-	}
-
-	private HashSet<IndexEntry> filterOnAccess( HashSet<IndexEntry> mieSet, User user ) {
-		HashSet<IndexEntry> set = new HashSet<IndexEntry>();
-		for (IndexEntry mie : mieSet) {
-			if (mie.allows(user)) set.add(mie);
-		}
+		if (!isAdmin) set.and( accessIndex.getReadable(user) );
 		return set;
 	}
 
-	private HashSet<IndexEntry> filterOnAge( HashSet<IndexEntry> mieSet, Query mq ) {
-		HashSet<IndexEntry> set = new HashSet<IndexEntry>();
-		for (IndexEntry mie : mieSet) {
-			if (mie.hasPatientInAgeRange(mq.minAge, mq.maxAge)) set.add(mie);
+	//Get the IndexEntry objects for a set of document IDs,
+	//skipping any IDs which do not appear in the index.
+	private IndexEntry[] getMIEArray(BitSet ids) {
+		ArrayList<IndexEntry> list = new ArrayList<IndexEntry>(ids.cardinality());
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id+1)) {
+			IndexEntry mie = idToMIEShadow.get(new Integer(id));
+			if (mie != null) list.add(mie);
 		}
-		return set;
-	}
-
-	/**
-	 * Get an (unsorted) array of IndexEntry objects
-	 * from a HashSet of document ID objects. Document
-	 * IDs are Integer objects which are automatically assigned
-	 * when documents are indexed. They are reassigned when the
-	 * index is rebuilt, so they should not be used for permanent
-	 * identification of documents. (The path string is the
-	 * preferred identifier for permanent reference.) In the
-	 * returned array, any ID values from the HashSet which do
-	 * not appear in the index are skipped.
-	 */
-	private HashSet<IndexEntry> getMIESet(HashSet<Integer> ids) {
-		HashSet<IndexEntry> set = new HashSet<IndexEntry>();
-		if (ids != null) {
-			for (Integer id : ids) {
-				try {
-					IndexEntry mie = (IndexEntry)idToMIEShadow.get(id);
-					set.add( mie );
-				}
-				catch (Exception skipThisOne) { }
-			}
-		}
-		return set;
+		return list.toArray( new IndexEntry[ list.size() ] );
 	}
 
 	/**
@@ -495,17 +538,51 @@ public class Index {
 	 */
 	public synchronized boolean insertDocument(String path) {
 		try {
-			path = fixPath(path);
-			removeDocument(path);
-			File file = new File( documentsDir.getParentFile(), path.replace("/", File.separator) );
-			Document doc = XmlUtil.getDocument(file);
-			addDocument(file, path, doc);
+			insert(path);
 			recman.commit();
 			return true;
 		}
 		catch (Exception ex) { return false; }
 	}
 
+	/**
+	 * Insert a batch of MIRCdocuments in the index, committing
+	 * the changes once for the whole batch.
+	 * @param paths the paths to the documents in the form of the relative path
+	 * from the parent of the storage services' documents directory
+	 * to the MIRCdocument XML file.
+	 * @return the paths of the documents which were entered into the index.
+	 */
+	public synchronized List<String> insertDocuments(List<String> paths) {
+		LinkedList<String> inserted = new LinkedList<String>();
+		for (String path : paths) {
+			try { inserted.add( insert(path) ); }
+			catch (Exception ex) { logger.debug("Unable to index "+path, ex); }
+		}
+		commit();
+		return inserted;
+	}
+
+	//Insert a MIRCdocument in the index without committing the changes.
+	//The caller must hold the lock on the index.
+	//Return the fixed path by which the document was indexed.
+	private String insert(String path) throws Exception {
+		path = fixPath(path);
+		remove(path);
+		File file = new File( documentsDir.getParentFile(), path.replace("/", File.separator) );
+		Document doc = XmlUtil.getDocument(file);
+		addDocument(file, path, doc);
+		return path;
+	}
+
+	//Add a document to the in-memory access index and sort orders.
+	private void addToShadowIndexes(Integer id, IndexEntry mie) {
+		accessIndex.add(id, mie);
+		titleOrder.add(id, mie);
+		lmdateOrder.add(id, mie);
+		pubdateOrder.add(id, mie);
+	}
+
 	/**
 	 * Insert a MIRCdocument into the index.
 	 * @param file the file containing the MIRCdocument
@@ -528,6 +605,9 @@ public class Index {
 		FileUtil.setText(file, XmlUtil.toString(root));
 		file.setLastModified(lastModified);
 
+		//Queue the document's DICOM images for the header cache.
+		queueDicomHeaders(file.getParentFile(), root);
+
 		//Get the ID for the document
 		path = fixPath(path);
 		Integer id = getIDForPath(path);
@@ -540,6 +620,7 @@ public class Index {
 		//Put the index entry into the index by ID
 		idToMIE.put( id, mie );
 		idToMIEShadow.put( id, mie );
+		addToShadowIndexes( id, mie );
 
 		//Put everything in the freetext database
 		freetext.indexString(id, getText(root));
@@ -565,6 +646,31 @@ public class Index {
 		}
 	}
 
+	//Queue the DICOM files referenced by the image elements of a document
+	//so their headers are extracted into the library's DICOM header cache.
+	private void queueDicomHeaders(File dir, Element root) {
+		DicomHeaderCache cache = DicomHeaderCache.getInstance(ssid);
+		if (cache == null) return;
+		NodeList nl = root.getElementsByTagName("image");
+		for (int i=0; i<nl.getLength(); i++) {
+			Element image = (Element)nl.item(i);
+			queueDicomHeader(cache, dir, image);
+			NodeList altnl = image.getElementsByTagName("alternative-image");
+			for (int k=0; k<altnl.getLength(); k++) {
+				queueDicomHeader(cache, dir, (Element)altnl.item(k));
+			}
+		}
+	}
+
+	//Queue one image for the header cache if it is a local DICOM file.
+	private void queueDicomHeader(DicomHeaderCache cache, File dir, Element img) {
+		String src = img.getAttribute("src").trim();
+		String srclc = src.toLowerCase();
+		if (srclc.endsWith(".dcm") && !srclc.startsWith("http://") && !srclc.startsWith("/") && !srclc.startsWith("\\")) {
+			cache.queue(new File(dir, src));
+		}
+	}
+
 	//Check that all the image elements have w and h attributes.
 	//If the attributes are missing for an image, open it, get the size,
 	//and insert the attributes.
@@ -662,8 +768,24 @@ public class Index {
 	 * successfully removed; false otherwise.
 	 */
 	public synchronized boolean removeDocument(String path) {
-		boolean ok = false;
 		path = fixPath(path);
+		boolean ok = remove(path);
+		if (ok) commit();
+
+		//Remove the document's entries from the DICOM header cache.
+		DicomHeaderCache cache = DicomHeaderCache.getInstance(ssid);
+		if (cache != null) {
+			File file = new File( documentsDir.getParentFile(), path.replace("/", File.separator) );
+			cache.remove(file.getParentFile());
+		}
+		return ok;
+	}
+
+	//Remove a MIRCdocument from the index without committing the changes
+	//or removing its entries from the DICOM header cache. The caller must
+	//hold the lock on the index.
+	private boolean remove(String path) {
+		boolean ok = false;
 		try {
 			Integer id = (Integer)pathToID.get(path);
 			if (id != null) {
@@ -676,10 +798,13 @@ public class Index {
 				idToPath.remove(id);
 				idToMIE.remove(id);
 				idToMIEShadow.remove(id);
+				accessIndex.remove(id);
+				titleOrder.remove(id);
+				lmdateOrder.remove(id);
+				pubdateOrder.remove(id);
 			}
 		}
 		catch (Exception failed) { ok = false; }
-		if (ok) commit();
 		return ok;
 	}
 
@@ -827,7 +952,7 @@ public class Index {
 			Integer id;
 			while ((id = (Integer)fit.next()) != null) {
 				IndexEntry mie = (IndexEntry)idToMIE.get(id);
-				logger.warn("..."+id.toString()+": "+mie.md.getAttribute("path"));
+				logger.warn("..."+id.toString()+": "+((mie != null) ? mie.getPath() : "missing"));
 			}
 		}
 		catch (Exception ex) { logger.warn("!!!Exception caught in reading idToMIE", ex); }
@@ -99,16 +99,13 @@ public class IndexDatabase {
 	public HashSet<Integer> getIDsForQueryString(String s) {
 		HashSet<Integer> results = null;
 		HashSet<Integer> next;
-		s = s.replaceAll("\\s+", " ");
-		String[] words = s.split(" ");
-		for (String w : words) {
-			w = fixWord(w);
-			if (w.length() >= minWordSize) {
-				if (results == null) results = getIDsForFragment(w);
-				else {
-					next = getIDsForFragment(w);
-					results = intersection(results, next);
-				}
+		WordTokenizer tokenizer = new WordTokenizer(s);
+		while (tokenizer.next(minWordSize)) {
+			String w = tokenizer.getWord();
+			if (results == null) results = getIDsForFragment(w);
+			else {
+				next = getIDsForFragment(w);
+				results = intersection(results, next);
 			}
 		}
 		if (results == null) results = new HashSet<Integer>();
@@ -148,18 +145,15 @@ public class IndexDatabase {
 	public boolean indexString(Integer id, String s) {
 		try {
 			HashSet<String> fragments = new HashSet<String>();
-			s = s.trim();
-			s = s.replaceAll("\\s+", " ");
-			String[] words = s.split(" ");
-			for (String w : words) {
-				w = fixWord(w);
-				if (w.length() >= minWordSize) {
-					fragments.add(w);
-					if ((unfragmented == null) || !unfragmented.contains(w)) {
-						while (w.length() > minSegmentSize) {
-							w = w.substring(1);
-							fragments.add( fixWord(w) );
-						}
+			WordTokenizer tokenizer = new WordTokenizer(s.trim());
+			while (tokenizer.next(minWordSize)) {
+				String w = tokenizer.getWord();
+				fragments.add(w);
+				if ((unfragmented == null) || !unfragmented.contains(w)) {
+					//Add the suffixes down to the minimum segment size.
+					int n = tokenizer.length();
+					for (int k=1; (n - k) >= minSegmentSize; k++) {
+						fragments.add( tokenizer.getFragment(k) );
 					}
 				}
 			}
@@ -210,13 +204,12 @@ public class IndexDatabase {
 	 * <li>trimming
 	 * <li>converting to lower case
 	 * </ol>
+	 * This method uses the same rules as the WordTokenizer
+	 * that splits indexed text and query strings into words.
 	 * @return the modified string.
 	 */
 	public static String fixWord(String w) {
-		w = w.replaceAll("^['\"_*-,;:/+-\\.]+", "");
-		w = w.replaceAll("['\"_*-,;:/+-\\.]+$", "");
-		w = w.trim().toLowerCase();
-		return w;
+		return WordTokenizer.fixWord(w);
 	}
 
 	/**
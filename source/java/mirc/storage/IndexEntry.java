@@ -19,12 +19,19 @@ import org.rsna.util.XmlUtil;
 /**
  * The encapsulation of the information required for the index of a single MIRCdocument.
  * This object is stored in the IDToMIE table in the index of a storage service.
+ * <p>
+ * The query result element of the document is stored as a compact
+ * IndexSummary record rather than as a DOM element. Entries written
+ * before the IndexSummary was introduced contain the element in the
+ * md field; they are converted by the migrate method.
  */
 public class IndexEntry implements Serializable {
 
 	static final long serialVersionUID = 1;
 
-	public Element md		= null;
+	Element md				= null; //legacy entries only
+	byte[] summary			= null;
+	transient volatile IndexSummary decoded = null; //the cached summary
 	public boolean isTemp	= false;
 	public String title		= "";
 	public String pubdate	= "";
@@ -70,7 +77,8 @@ public class IndexEntry implements Serializable {
 			if (child instanceof Element) {
 				String name = child.getNodeName();
 				if (name.equals("MIRCdocument")) {
-					md = (Element)child;
+					Element result = (Element)child;
+					summary = IndexSummary.encode(result);
 					//Save the title so title sorts are faster.
 					Node xChild = child.getFirstChild();
 					while (xChild != null) {
@@ -83,7 +91,7 @@ public class IndexEntry implements Serializable {
 						}
 						xChild = xChild.getNextSibling();
 					}
-					isTemp = md.getAttribute("temp").equals("yes");
+					isTemp = result.getAttribute("temp").equals("yes");
 				}
 				if (name.equals("sm")) {
 					//Unpack the summary element
@@ -143,6 +151,55 @@ public class IndexEntry implements Serializable {
 		}
 	}
 
+	/**
+	 * Get the summary of the query result element of this document.
+	 * The summary is decoded only as far as its fields are used,
+	 * and it is cached, so its header is decoded only once.
+	 * @return the summary.
+	 */
+	public IndexSummary getSummary() {
+		IndexSummary s = decoded;
+		if ((s == null) || (s.bytes != summary)) {
+			s = new IndexSummary(summary);
+			decoded = s;
+		}
+		return s;
+	}
+
+	/**
+	 * Get the path by which this document is indexed.
+	 */
+	public String getPath() {
+		if ((summary == null) && (md != null)) return md.getAttribute("path");
+		return getSummary().getPath();
+	}
+
+	/**
+	 * Determine whether this entry must be converted to the
+	 * current IndexSummary format.
+	 */
+	public boolean needsMigration() {
+		return !IndexSummary.isCurrent(summary);
+	}
+
+	/**
+	 * Convert a legacy entry to the current IndexSummary format,
+	 * discarding the DOM element it contains.
+	 * @return true if the entry was converted; false if it contains
+	 * no element from which to create the summary. In that case, the
+	 * index must be rebuilt.
+	 */
+	public boolean migrate() {
+		if (md == null) return false;
+		try {
+			summary = IndexSummary.encode(md);
+			decoded = null;
+			md = null;
+			return true;
+		}
+		catch (Exception ex) { return false; }
+	}
+
 	/**
 	 * Determine whether this document contains a patient
 	 * age in a specified range. Note: all ages are in days,
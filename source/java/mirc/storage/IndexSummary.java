@@ -0,0 +1,334 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The compact binary summary of a MIRCdocument, stored in an IndexEntry
+ * in place of the MIRCdocument element of the query result.
+ * <p>
+ * The record starts with a version number and a fixed header containing
+ * the path, temp flag, title, author names, category, access, and dates
+ * of the document. The header is decoded only when one of its fields is
+ * requested. The header is followed by a compact encoding of the children
+ * of the MIRCdocument element (title, authors, abstracts, access, category,
+ * level, and images), which may contain markup. The toElement method
+ * writes the element directly into a result document without building
+ * an intermediate DOM.
+ * <pre>
+ * record  = version header content
+ * header  = path temp title alt-title n(author-name) category access lmdate pubdate
+ * content = node* END
+ * node    = ELEMENT name n(attr-name attr-value) node* END | TEXT text
+ * </pre>
+ */
+public class IndexSummary {
+
+	/** The version of the record format. */
+	public static final int VERSION = 1;
+
+	static final int END = 0;
+	static final int ELEMENT = 1;
+	static final int TEXT = 2;
+
+	final byte[] bytes;
+
+	boolean decoded = false;
+	int contentOffset = 0;
+	String path = "";
+	boolean temp = false;
+	String title = "";
+	String altTitle = "";
+	String[] authors = new String[0];
+	String category = "";
+	String access = "";
+	String lmdate = "";
+	String pubdate = "";
+
+	/**
+	 * Create an IndexSummary from an encoded record.
+	 * The record is not decoded until it is used.
+	 * @param bytes the record.
+	 */
+	public IndexSummary(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Determine whether a record is in the current format.
+	 * @param bytes the record.
+	 * @return true if the record exists and has the current version.
+	 */
+	public static boolean isCurrent(byte[] bytes) {
+		return (bytes != null) && (bytes.length > 0) && (bytes[0] == VERSION);
+	}
+
+	/**
+	 * Encode the MIRCdocument element of a query result.
+	 * @param md the MIRCdocument element produced by IndexDocument.xsl.
+	 * @return the record.
+	 */
+	public static byte[] encode(Element md) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(VERSION);
+
+		//Write the header
+		writeString(out, md.getAttribute("path"));
+		out.writeBoolean(md.getAttribute("temp").equals("yes"));
+		writeString(out, getChildText(md, "title"));
+		writeString(out, getChildText(md, "alternative-title"));
+		LinkedList<String> names = new LinkedList<String>();
+		Node child = md.getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && child.getNodeName().equals("author")) {
+				Node name = child.getFirstChild();
+				while (name != null) {
+					if ((name instanceof Element) && name.getNodeName().equals("name")) {
+						names.add(name.getTextContent().trim());
+					}
+					name = name.getNextSibling();
+				}
+			}
+			child = child.getNextSibling();
+		}
+		out.writeInt(names.size());
+		for (String name : names) writeString(out, name);
+		writeString(out, getChildText(md, "category"));
+		writeString(out, getLastChildText(md, "access"));
+		writeString(out, getChildText(md, "lmdate"));
+		writeString(out, getChildText(md, "pubdate"));
+
+		//Write the content
+		child = md.getFirstChild();
+		while (child != null) {
+			writeNode(out, child);
+			child = child.getNextSibling();
+		}
+		out.writeByte(END);
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Get the path by which the document is indexed.
+	 */
+	public String getPath() {
+		decode();
+		return path;
+	}
+
+	/**
+	 * Determine whether the document is a draft.
+	 */
+	public boolean isTemp() {
+		decode();
+		return temp;
+	}
+
+	/**
+	 * Get the text of the title of the document.
+	 */
+	public String getTitle() {
+		decode();
+		return title;
+	}
+
+	/**
+	 * Get the text of the alternative title of the document.
+	 */
+	public String getAlternativeTitle() {
+		decode();
+		return altTitle;
+	}
+
+	/**
+	 * Get the names of the authors of the document.
+	 */
+	public String[] getAuthorNames() {
+		decode();
+		return authors;
+	}
+
+	/**
+	 * Get the text of the category of the document.
+	 */
+	public String getCategory() {
+		decode();
+		return category;
+	}
+
+	/**
+	 * Get the access of the document (public, owner, or restricted).
+	 */
+	public String getAccess() {
+		decode();
+		return access;
+	}
+
+	/**
+	 * Get the last modified date of the document (yyyy.mm.dd).
+	 */
+	public String getLMDate() {
+		decode();
+		return lmdate;
+	}
+
+	/**
+	 * Get the publication date of the document (yyyy.mm.dd).
+	 */
+	public String getPubDate() {
+		decode();
+		return pubdate;
+	}
+
+	/**
+	 * Create the MIRCdocument element of the query result in a document.
+	 * The element is created in the document but not appended to it.
+	 * @param doc the document in which to create the element.
+	 * @return the MIRCdocument element.
+	 */
+	public Element toElement(Document doc) throws IOException {
+		decode();
+		if (contentOffset < 0) throw new IOException("Unreadable IndexSummary");
+		Element md = doc.createElement("MIRCdocument");
+		if (!path.equals("")) md.setAttribute("path", path);
+		if (temp) md.setAttribute("temp", "yes");
+		DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(bytes, contentOffset, bytes.length - contentOffset));
+		readNodes(in, md);
+		return md;
+	}
+
+	//Decode the header, if it has not already been decoded.
+	private synchronized void decode() {
+		if (decoded) return;
+		try {
+			if (!isCurrent(bytes)) throw new IOException("Unsupported IndexSummary version");
+			ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+			DataInputStream in = new DataInputStream(bais);
+			in.readByte();
+			path = readString(in);
+			temp = in.readBoolean();
+			title = readString(in);
+			altTitle = readString(in);
+			authors = new String[in.readInt()];
+			for (int i=0; i<authors.length; i++) authors[i] = readString(in);
+			category = readString(in);
+			access = readString(in);
+			lmdate = readString(in);
+			pubdate = readString(in);
+			contentOffset = bytes.length - bais.available();
+		}
+		catch (IOException ex) {
+			//Leave the defaults and an empty content section.
+			contentOffset = -1;
+		}
+		decoded = true;
+	}
+
+	//Read a sequence of nodes up to an END code, appending them to a parent.
+	private static void readNodes(DataInputStream in, Node parent) throws IOException {
+		Document doc = parent.getOwnerDocument();
+		int code;
+		while ((code = in.readByte()) != END) {
+			if (code == ELEMENT) {
+				Element el = doc.createElement(readString(in));
+				int nAttrs = in.readInt();
+				for (int i=0; i<nAttrs; i++) {
+					String name = readString(in);
+					el.setAttribute(name, readString(in));
+				}
+				readNodes(in, el);
+				parent.appendChild(el);
+			}
+			else if (code == TEXT) {
+				parent.appendChild( doc.createTextNode(readString(in)) );
+			}
+			else throw new IOException("Invalid IndexSummary node code: "+code);
+		}
+	}
+
+	//Write one node and its descendants. Comments and
+	//processing instructions are not needed in query results.
+	private static void writeNode(DataOutputStream out, Node node) throws IOException {
+		short type = node.getNodeType();
+		if (type == Node.ELEMENT_NODE) {
+			out.writeByte(ELEMENT);
+			writeString(out, node.getNodeName());
+			NamedNodeMap attrs = node.getAttributes();
+			int nAttrs = attrs.getLength();
+			out.writeInt(nAttrs);
+			for (int i=0; i<nAttrs; i++) {
+				Node attr = attrs.item(i);
+				writeString(out, attr.getNodeName());
+				writeString(out, attr.getNodeValue());
+			}
+			Node child = node.getFirstChild();
+			while (child != null) {
+				writeNode(out, child);
+				child = child.getNextSibling();
+			}
+			out.writeByte(END);
+		}
+		else if ((type == Node.TEXT_NODE) || (type == Node.CDATA_SECTION_NODE)) {
+			out.writeByte(TEXT);
+			writeString(out, node.getNodeValue());
+		}
+	}
+
+	//Write a string of any length as a length and UTF-8 bytes.
+	//(DataOutputStream.writeUTF is limited to 64K bytes.)
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	//Get the trimmed text of the first child element with a name.
+	private static String getChildText(Element parent, String name) {
+		Node child = parent.getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && child.getNodeName().equals(name)) {
+				return child.getTextContent().trim();
+			}
+			child = child.getNextSibling();
+		}
+		return "";
+	}
+
+	//Get the trimmed text of the last child element with a name.
+	//(The computed access element follows any copied from the document.)
+	private static String getLastChildText(Element parent, String name) {
+		String text = "";
+		Node child = parent.getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && child.getNodeName().equals(name)) {
+				text = child.getTextContent().trim();
+			}
+			child = child.getNextSibling();
+		}
+		return text;
+	}
+}
@@ -0,0 +1,130 @@
+/*---------------------------------------------------------------
+*  Copyright 2010 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.storage;
+
+import java.util.*;
+
+/**
+ * A precomputed sort order of the documents in a local library.
+ * The order is maintained incrementally as documents are inserted
+ * and removed, and it is used to select a page of sorted query
+ * results without sorting the entire result set.
+ */
+public class SortOrder {
+
+	//The ratio of the index size to the result size above
+	//which a page is selected with a heap rather than by
+	//walking the ordered array.
+	static final int sparseRatio = 16;
+
+	final Comparator comparator;
+	final HashMap<Integer,IndexEntry> entries = new HashMap<Integer,IndexEntry>();
+	final TreeSet<Integer> order;
+	int[] orderArray = null;
+
+	/**
+	 * Create an empty SortOrder.
+	 * @param comparator the IndexEntry comparator defining the order.
+	 */
+	public SortOrder(Comparator comparator) {
+		this.comparator = comparator;
+		this.order = new TreeSet<Integer>(new IDComparator());
+	}
+
+	/**
+	 * Add a document, replacing any existing entry for its ID.
+	 * @param id the ID of the document.
+	 * @param mie the IndexEntry of the document.
+	 */
+	public synchronized void add(Integer id, IndexEntry mie) {
+		remove(id);
+		entries.put(id, mie);
+		order.add(id);
+		orderArray = null;
+	}
+
+	/**
+	 * Remove a document.
+	 * @param id the ID of the document.
+	 */
+	public synchronized void remove(Integer id) {
+		if (entries.containsKey(id)) {
+			order.remove(id);
+			entries.remove(id);
+			orderArray = null;
+		}
+	}
+
+	/**
+	 * Get a page of the documents in a set, in this order.
+	 * @param ids the set of document IDs.
+	 * @param begin the index of the first document of the page in the sorted set.
+	 * @param count the maximum number of documents in the page.
+	 * @return the IndexEntry objects of the documents in the page.
+	 */
+	public synchronized IndexEntry[] getPage(BitSet ids, int begin, int count) {
+		int matches = ids.cardinality();
+		if (begin < 0) begin = 0;
+		int end = Math.min(begin + Math.max(count, 0), matches);
+		if (begin >= end) return new IndexEntry[0];
+		if (matches * sparseRatio < entries.size()) return getPageFromHeap(ids, begin, end);
+		return getPageFromOrder(ids, begin, end);
+	}
+
+	//Select a page by walking the ordered array, stopping
+	//at the end of the page.
+	private IndexEntry[] getPageFromOrder(BitSet ids, int begin, int end) {
+		if (orderArray == null) {
+			orderArray = new int[order.size()];
+			int i = 0;
+			for (Integer id : order) orderArray[i++] = id.intValue();
+		}
+		ArrayList<IndexEntry> page = new ArrayList<IndexEntry>(end - begin);
+		int k = 0;
+		for (int i=0; (i<orderArray.length) && (k<end); i++) {
+			int id = orderArray[i];
+			if (ids.get(id)) {
+				if (k >= begin) page.add(entries.get(new Integer(id)));
+				k++;
+			}
+		}
+		return page.toArray(new IndexEntry[page.size()]);
+	}
+
+	//Select a page from a small result set by keeping
+	//the top end documents in a bounded heap.
+	private IndexEntry[] getPageFromHeap(BitSet ids, int begin, int end) {
+		IDComparator idComparator = new IDComparator();
+		PriorityQueue<Integer> heap =
+			new PriorityQueue<Integer>(end + 1, Collections.reverseOrder(idComparator));
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id+1)) {
+			Integer key = new Integer(id);
+			if (!entries.containsKey(key)) continue;
+			if (heap.size() < end) heap.add(key);
+			else if (idComparator.compare(key, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(key);
+			}
+		}
+		Integer[] top = heap.toArray(new Integer[heap.size()]);
+		Arrays.sort(top, idComparator);
+		ArrayList<IndexEntry> page = new ArrayList<IndexEntry>(end - begin);
+		for (int i=begin; i<top.length; i++) page.add(entries.get(top[i]));
+		return page.toArray(new IndexEntry[page.size()]);
+	}
+
+	//Order document IDs by their IndexEntry objects, using the
+	//ID to break ties so the order is total.
+	class IDComparator implements Comparator<Integer> {
+		public int compare(Integer id1, Integer id2) {
+			int c = comparator.compare(entries.get(id1), entries.get(id2));
+			return (c != 0) ? c : id1.compareTo(id2);
+		}
+	}
+
+}
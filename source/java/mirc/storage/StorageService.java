@@ -12,7 +12,6 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.HashSet;
-import java.util.Properties;
 import java.util.Set;
 
 import mirc.activity.ActivityDB;
@@ -20,14 +19,14 @@ import mirc.MircConfig;
 import mirc.prefs.Preferences;
 import mirc.ssadmin.StorageServiceAdmin;
 
+import mirc.util.GzipUtil;
 import mirc.util.MircDocument;
 import mirc.util.MyRsnaSession;
 import mirc.util.MyRsnaSessions;
+import mirc.util.ZipExporter;
 
 import org.apache.log4j.Logger;
 
-import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
 
 import org.rsna.servlets.Servlet;
 import org.rsna.server.HttpRequest;
@@ -115,6 +114,26 @@ public class StorageService extends Servlet {
 			res.send();
 			return;
 		}
+		else if (function.equals("jobs")) {
+
+			//Return the status of a background job on a document
+			//to the user who started it or to an admin user.
+			DocumentJobs.Job job = DocumentJobs.getJob(path.element(2));
+			res.disableCaching();
+			res.setContentType("xml");
+			if ((job != null)
+					&& ((job.getUsername() == null)
+						|| job.getUsername().equals(username)
+							|| req.userHasRole("admin"))) {
+				res.write( job.getStatusXML() );
+			}
+			else {
+				res.write( "<notok/>" );
+				res.setResponseCode( res.notfound );
+			}
+			res.send();
+			return;
+		}
 
 		//Okay, it wasn't a function call; service the file request.
 		//Pass non-XML and non-DCM files to the superclass.
@@ -135,31 +154,33 @@ public class StorageService extends Servlet {
 		if (reqpathLC.endsWith(".dcm")) {
 			if (req.getParameter("dicom") != null) {
 				//This is a request for an element listing page.
+				//The page is served from the library's DICOM header cache,
+				//gzipped if the client accepts it.
 				res.disableCaching();
 				try {
-					DicomObject dob = new DicomObject(file);
-					res.write( dob.getElementTablePage( req.userHasRole("admin") ) );
+					boolean admin = req.userHasRole("admin");
+					DicomHeaderCache cache = DicomHeaderCache.getInstance(path.element(1));
+					if (cache != null) {
+						byte[] page = cache.getElementTablePage(file, admin);
+						if (hasGzip(req.getHeader("accept-encoding"))) {
+							res.setHeader("Content-Encoding", "gzip");
+							res.write(page);
+						}
+						else res.write(GzipUtil.gunzip(page));
+					}
+					else res.write( new DicomObject(file).getElementTablePage(admin) );
 					res.setContentType("html");
 				}
 				catch (Exception ex) { res.setResponseCode( res.notfound ); }
 				res.send();
 			}
 			else if (req.getParameter("params") != null) {
-				//This is a request for the key image parameters from the DICOM dataset
+				//This is a request for the key image parameters from the DICOM dataset.
+				//The parameters are served from the library's DICOM header cache.
 				try {
-					DicomObject dob = new DicomObject(file);
-					Document doc = XmlUtil.getDocument();
-					Element params = doc.createElement("params");
-					params.setAttribute("Modality", dob.getElementValue("Modality"));
-					params.setAttribute("BitsAllocated", dob.getElementValue("BitsAllocated"));
-					params.setAttribute("BitsStored", dob.getElementValue("BitsStored"));
-					params.setAttribute("HighBit", dob.getElementValue("HighBit"));
-					params.setAttribute("PixelRepresentation", dob.getElementValue("PixelRepresentation"));
-					params.setAttribute("RescaleSlope", Float.toString(dob.getFloat("RescaleSlope", 1.0f)));
-					params.setAttribute("RescaleIntercept", Float.toString(dob.getFloat("RescaleIntercept", 0.0f)));
-					params.setAttribute("WindowCenter", Float.toString(dob.getFloat("WindowCenter")));
-					params.setAttribute("WindowWidth", Float.toString(dob.getFloat("WindowWidth")));
-					res.write(XmlUtil.toString(params));
+					DicomHeaderCache cache = DicomHeaderCache.getInstance(path.element(1));
+					if (cache != null) res.write( cache.getParams(file) );
+					else res.write( DicomHeaderCache.getParamsXML( new DicomObject(file) ) );
 				}
 				catch (Exception ex) {
 					res.write("<params/>");
@@ -190,8 +211,10 @@ public class StorageService extends Servlet {
 			}
 			else if (req.getParameter("update") != null) {
 				//This is a request to resave an image with window leveling.
-				//This is done in a background thread because it could take
+				//This is done in a background job because it could take
 				//time to update all the images if it's a series request.
+				//If another job is running on the document, the response
+				//is BUSY; otherwise, it is OK with the ID of the job.
 				try {
 					int frame = StringUtil.getInt( req.getParameter("frame"), -1);
 					int q = StringUtil.getInt( req.getParameter("q"), -1 );
@@ -199,10 +222,12 @@ public class StorageService extends Servlet {
 					int wl = StringUtil.getInt( req.getParameter("wl") );
 					File dir = file.getParentFile();
 					File docFile = new File(dir, req.getParameter("doc"));
+					if (!docFile.exists()) throw new Exception("Missing document: "+docFile);
 					boolean doSeries = (req.getParameter("series") != null);
-					Updater updater = new Updater(docFile, file, frame, q, wl, ww, doSeries);
-					updater.start();
-					res.write("<OK/>");
+					DocumentJobs.Job job = DocumentJobs.submit(
+						new DocumentJobs.UpdateJob(docFile, file, doSeries, frame, q, wl, ww, username) );
+					if (job != null) res.write("<OK job=\""+job.getID()+"\"/>");
+					else res.write("<BUSY/>");
 				}
 				catch (Exception ex) {
 					res.write("<NOTOK/>");
@@ -311,22 +336,27 @@ public class StorageService extends Servlet {
 				//Check whether export is authorized.
 				if (userIsAuthorizedTo("export", doc, req)) {
 
-					//Export is authorized; make the file for the zip file
+					//Export is authorized; make the file for the zip file.
+					//Put it in a temp directory so the case directory is not touched.
 					String extParameter = req.getParameter("ext", "").trim();
-					File zipFile = MircDocument.getFileForZip(doc, file, extParameter);
+					File zipName = MircDocument.getFileForZip(doc, file, extParameter);
+					File temp = MircConfig.getInstance().createTempDirectory();
+					File zipFile = new File(temp, zipName.getName());
 
 					//Insert the path attribute (if necessary) for third party author tools.
 					//The path attribute starts with the ssid, as in: "ss1/docs/...".
+					//The attribute is set only in the exported copy of the document.
+					String[] filenames = getFilenames(doc, file);
 					String newPathAttr = req.getParsedPath().subpath(1).substring(1);
 					String oldPathAttr = rootElement.getAttribute("path");
+					Document exportDoc = null;
 					if (!newPathAttr.equals(oldPathAttr)) {
 						rootElement.setAttribute("path", newPathAttr);
-						FileUtil.setText(file, XmlUtil.toString(doc));
+						exportDoc = doc;
 					}
 
 					//Now zip the case.
-					String[] filenames = getFilenames(doc, file);
-					boolean ok = FileUtil.zipFiles(filenames, file.getParentFile(), zipFile);
+					boolean ok = new ZipExporter(file, exportDoc, filenames).write(zipFile);
 
 					String myrsnaParameter = req.getParameter("myrsna");
 					String destParameter = req.getParameter("dest");
@@ -363,7 +393,7 @@ public class StorageService extends Servlet {
 					//NOTE: Do not disable caching; otherwise, the download will
 					//fail because the browser won't be able to store the file;
 					res.send();
-					zipFile.delete();
+					FileUtil.deleteAll(temp);
 					AccessLog.logAccess(req, doc);
 					return;
 				}
@@ -386,16 +416,16 @@ public class StorageService extends Servlet {
 					String extParameter = req.getParameter("ext", "").trim();
 					File zipFile = MircDocument.getFileForZip(doc, file, extParameter);
 
-					//Make a directory to hold the copied DICOM files
+					//Make a temp directory to hold the zip file.
+					//Note: the DICOM and JPEG files are not copied; the zip
+					//entries are written directly from the files in the
+					//MIRCdocument's directory.
 					MircConfig mc = MircConfig.getInstance();
 					File temp = mc.createTempDirectory();
 					String name = zipFile.getName();
 					name = name.substring(0, name.lastIndexOf(".zip"));
-					File zipDir = new File(temp, name);
-					File dcmDir = new File(zipDir, "DCM");
-					File jpgDir = new File(zipDir, "JPG");
-					dcmDir.mkdirs();
-					jpgDir.mkdirs();
+					String dcmDir = name + "/DCM/";
+					String jpgDir = name + "/JPG/";
 
 					//The getFileForZip method puts the file in the MIRCdocument's
 					//directory. In this case, it would be better to put it in the
@@ -405,6 +435,7 @@ public class StorageService extends Servlet {
 					zipFile = new File(temp, name+"_DICOM.zip");
 
 					//Get all the DICOM files referenced by the document.
+					ZipExporter exporter = new ZipExporter();
 					NodeList nl = rootElement.getElementsByTagName("alternative-image");
 					for (int k=0; k<nl.getLength(); k++) {
 						Element alt = (Element)nl.item(k);
@@ -418,7 +449,7 @@ public class StorageService extends Servlet {
 								String acquisition = orderBy.getAttribute("acquisition");
 								String instance = orderBy.getAttribute("instance");
 								String newName = study + "_" + series + "_" + acquisition + "_" + instance;
-								FileUtil.copy(dobFile, new File(dcmDir, newName + ".dcm"));
+								exporter.add(dcmDir + newName + ".dcm", dobFile);
 
 								//Now get the corresponding JPEG image
 								Element parent = (Element)alt.getParentNode();
@@ -432,16 +463,22 @@ public class StorageService extends Servlet {
 									}
 								}
 								File jpegFile = new File( file.getParentFile(), jpeg.getAttribute("src") );
-								FileUtil.copy( jpegFile, new File(jpgDir, newName + ".jpg"));
+								exporter.add(jpgDir + newName + ".jpg", jpegFile);
 							}
 						}
 					}
 
 					//Now zip it, return the zip file, and clean up
-					FileUtil.zipDirectory(zipDir, zipFile);
-					res.write(zipFile);
-					res.setContentType("zip");
-					res.setContentDisposition(zipFile);
+					if (exporter.write(zipFile)) {
+						res.write(zipFile);
+						res.setContentType("zip");
+						res.setContentDisposition(zipFile);
+					}
+					else {
+						res.write( "<html><head><title>ZipException</title></head>" );
+						res.write( "<body><h3>Server Exception</h3><p>Unable to create the DICOM zip file.</p></body></html>" );
+						res.setContentType("html");
+					}
 					res.send();
 					FileUtil.deleteAll(temp);
 					return;
@@ -490,23 +527,17 @@ public class StorageService extends Servlet {
 				return;
 			}
 
-			//See if the user wants to anonymize all the DicomObjects
+			//See if the user wants to anonymize all the DicomObjects.
+			//This is done in a background job; the response is the status
+			//of the job, which the client polls at /storage/jobs/{id}, or
+			//BUSY if another job is running on the document.
 			if (req.hasParameter("anonymize") && userIsAuthorizedTo("update", doc, req))  {
-				File scriptFile = new File("scripts/DicomServiceAnonymizer.script");
-				DAScript dascript = DAScript.getInstance(scriptFile);
-				Properties script = dascript.toProperties();
-				NodeList nl = rootElement.getElementsByTagName("alternative-image");
-				for (int k=0; k<nl.getLength(); k++) {
-					Element alt = (Element)nl.item(k);
-					if (alt.getAttribute("role").equals("original-format")) {
-						String src = alt.getAttribute("src");
-						if (src.toLowerCase().endsWith(".dcm")) {
-							File dobFile = new File( file.getParentFile(), src);
-							DICOMAnonymizer.anonymize(dobFile, dobFile, script, null, null, false, false);
-						}
-					}
-				}
-				//When we're done, just go ahead and display the document
+				DocumentJobs.Job job = DocumentJobs.submit( new DocumentJobs.AnonymizeJob(file, username) );
+				res.disableCaching();
+				res.setContentType("xml");
+				res.write( (job != null) ? job.getStatusXML() : "<BUSY/>" );
+				res.send();
+				return;
 			}
 
 			//OK, transform the document and return the result
@@ -537,6 +568,10 @@ public class StorageService extends Servlet {
 	 * The servlet method that responds to an HTTP POST.
 	 * This method interprets the parameters as a query generated by the
 	 * Query Service, uses it to search the index, and returns a MIRCqueryresult.
+	 * If the query is gzip-encoded (Content-Encoding: gzip), it is decoded.
+	 * If the client accepts gzip (Accept-Encoding: gzip), the result is
+	 * gzip-encoded. The response always includes Accept-Encoding: gzip
+	 * to tell clients that they may gzip their queries.
 	 * @param req The HttpRequest provided by the servlet container.
 	 * @param res The HttpResponse provided by the servlet container.
 	 */
@@ -559,12 +594,21 @@ public class StorageService extends Servlet {
 			//Get the query
 			byte[] bytes = FileUtil.getBytes( req.getInputStream(), req.getContentLength() );
 			String mircQueryString = "";
-			try { mircQueryString = new String(bytes, "UTF-8"); }
+			try {
+				if (hasGzip(req.getHeader("content-encoding"))) bytes = GzipUtil.gunzip(bytes);
+				mircQueryString = new String(bytes, "UTF-8");
+			}
 			catch (Exception leaveEmpty) { }
 
 			//Do the query
 			//Note: queries received from the network are not authenticated
-			res.write(doQuery(ssid, mircQueryString, null));
+			String result = doQuery(ssid, mircQueryString, null);
+			res.setHeader("Accept-Encoding", "gzip");
+			if (hasGzip(req.getHeader("accept-encoding"))) {
+				res.setHeader("Content-Encoding", "gzip");
+				res.write( GzipUtil.gzip( result.getBytes("UTF-8") ) );
+			}
+			else res.write(result);
 		}
 		else {
 			//Unknown content type
@@ -576,6 +620,11 @@ public class StorageService extends Servlet {
 		logger.debug(Thread.currentThread().getName()+": Response returned for "+req.path+" ("+(System.currentTimeMillis() - currentTime)+"ms)");
 	}
 
+	//Determine whether an encoding header includes gzip.
+	private static boolean hasGzip(String header) {
+		return (header != null) && header.toLowerCase().contains("gzip");
+	}
+
 	public static String doQuery(String ssid, String mircQueryString, User user) {
 		MircConfig mc = MircConfig.getInstance();
 
@@ -604,17 +653,11 @@ public class StorageService extends Servlet {
 		Index index = Index.getInstance(ssid);
 
 		//Do the query
+		//Select the requested page from the sorted results
+		if (query.firstresult <= 0) query.firstresult = 1;
+		if (query.maxresults <= 0) query.maxresults = 1;
 		boolean isOpen = lib.getAttribute("mode").equals("open");
-		IndexEntry[] mies = index.query( query, isOpen, user );
-
-		//Sort the results
-		String orderBy = query.orderby;
-		if (orderBy.equals("title"))
-			index.sortByTitle(mies);
-		else if (orderBy.equals("pubdate"))
-			index.sortByPubDate(mies);
-		else
-			index.sortByLMDate(mies);
+		Index.Page page = index.query( query, isOpen, user, query.firstresult - 1, query.maxresults );
 
 		//Get a document for the MIRCqueryresult
 		Document doc = null;
@@ -625,23 +668,17 @@ public class StorageService extends Servlet {
 			return makeMQRString(message);
 		}
 
-		//Select the requested page
-		if (query.firstresult < 0) query.firstresult = 0;
-		if (query.maxresults <= 0) query.maxresults = 1;
 		Element root = doc.createElement("MIRCqueryresult");
 		doc.appendChild(root);
 		String tagline = XmlUtil.getTextContent(lib, "Library/tagline");
-		setPreamble(root, mies.length, tagline);
+		setPreamble(root, page.matches, tagline);
 
-		//Important note: The imported node must be passed to fixResult.
-		//Do not pass the node from the mies array (mies[i].md) and then
-		//import the returned node. This would cause fixResult to modify
-		//the object in the JDBM's cache, causing problems in the next query.
+		//Create each result element directly in the result document from the
+		//summary in the index entry; fixResult then modifies the new element.
 		String docbase = mc.getLocalAddress() + "/storage/" + ssid + "/";
-		int begin = query.firstresult - 1;
-		int end = begin + query.maxresults;
-		for (int i=begin; ((i<end) && (i<mies.length)); i++) {
-			root.appendChild( fixResult(docbase, (Element)doc.importNode(mies[i].md, true), query) );
+		for (IndexEntry mie : page.entries) {
+			try { root.appendChild( fixResult(docbase, mie.getSummary().toElement(doc), query) ); }
+			catch (Exception ex) { logger.warn("Unable to create the query result for an index entry", ex); }
 		}
 		//Return the result.
 		return XmlUtil.toString(root);
@@ -1159,37 +1196,4 @@ public class StorageService extends Servlet {
 		return "Unable to export the zip file";
 	}
 
-	class Updater extends Thread {
-		MircDocument md;
-		DicomObject dicomObject;
-		int frame;
-		int ww;
-		int wl;
-		int q;
-		boolean doSeries;
-
-		public Updater(File docFile, File imageFile, int frame, int q, int ww, int wl, boolean doSeries) throws Exception {
-			this.md = new MircDocument(docFile);
-			this.dicomObject = new DicomObject(imageFile);
-			this.frame = frame;
-			this.q = q;
-			this.ww = ww;
-			this.wl = wl;
-			this.doSeries = doSeries;
-		}
-		public void run() {
-			try {
-				if (doSeries) {
-					md.updateSeries(dicomObject, frame, q, ww, wl);
-				}
-				else {
-					md.updateImage(dicomObject, frame, q, ww, wl);
-				}
-			}
-			catch (Exception unable) {
-				logger.warn("Unable to update "+(doSeries ? "series" : "image")+" for "+dicomObject.getFile());
-			}
-		}
-	}
-
 }
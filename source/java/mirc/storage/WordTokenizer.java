@@ -0,0 +1,193 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.storage;
+
+import java.util.Locale;
+
+/**
+ * A single-pass tokenizer for the words indexed and queried in an IndexDatabase.
+ * <p>
+ * The tokenizer splits text at the whitespace characters matched by the
+ * regex <code>\s</code> (space, tab, newline, vertical tab, form feed, and
+ * carriage return), so the words are the same as those produced by
+ * splitting the text with that regex. Each word is then prepared for
+ * indexing by the same steps as the fixWord method: the leading and
+ * trailing characters in the set <code>'"_*+,;:/-.</code> are removed, the
+ * word is trimmed, and it is converted to lower case with
+ * String.toLowerCase, so case folding (including locale-specific and
+ * context-sensitive rules) is identical to that of the existing indexes.
+ * Words shorter than a minimum length after preparation are skipped.
+ * <p>
+ * The text is scanned once, and a string is created only for each word
+ * that is returned. A word of ASCII characters is trimmed and converted
+ * to lower case in a buffer that is reused for every word; other words,
+ * and words whose case conversion depends on the locale (the letter I
+ * in Turkish and Azerbaijani), are converted with String.toLowerCase.
+ * A tokenizer is used by one caller; it is not shared.
+ */
+public class WordTokenizer {
+
+	final CharSequence text;
+	final int end;
+	final boolean dotlessI;
+	int pos = 0;
+	String word = "";
+	char[] buffer = new char[32];
+
+	/**
+	 * Create a tokenizer positioned at the start of a text.
+	 * @param text the text to tokenize, or null if there is no text.
+	 */
+	public WordTokenizer(CharSequence text) {
+		this.text = text;
+		this.end = (text != null) ? text.length() : 0;
+		String language = Locale.getDefault().getLanguage();
+		this.dotlessI = language.equals("tr") || language.equals("az");
+	}
+
+	/**
+	 * Advance to the next word.
+	 * @param minLength the minimum length of the words to return.
+	 * Shorter words are skipped.
+	 * @return true if a word was found; false if the end of the
+	 * text has been reached.
+	 */
+	public boolean next(int minLength) {
+		while (pos < end) {
+			//Find the next run of non-whitespace characters
+			while ((pos < end) && isSeparator(text.charAt(pos))) pos++;
+			int start = pos;
+			while ((pos < end) && !isSeparator(text.charAt(pos))) pos++;
+			if (pos > start) {
+				String w = fix(text, start, pos);
+				if ((w.length() > 0) && (w.length() >= minLength)) {
+					word = w;
+					return true;
+				}
+			}
+		}
+		word = "";
+		return false;
+	}
+
+	/**
+	 * Get the length of the current word.
+	 */
+	public int length() {
+		return word.length();
+	}
+
+	/**
+	 * Get the current word.
+	 */
+	public String getWord() {
+		return word;
+	}
+
+	/**
+	 * Get a fragment of the current word, consisting of the characters
+	 * from an offset to the end of the word, prepared for indexing by
+	 * the same steps as the fixWord method.
+	 * @param offset the index of the first character of the fragment.
+	 * @return the fragment.
+	 */
+	public String getFragment(int offset) {
+		return fix(word, offset, word.length());
+	}
+
+	/**
+	 * Modify a single word to prepare it for indexing, removing the
+	 * leading and trailing punctuation, trimming it, and converting
+	 * it to lower case. The word is not split at whitespace.
+	 * @param w the word.
+	 * @return the modified word, or the empty string if nothing is left.
+	 */
+	public static String fixWord(String w) {
+		return new WordTokenizer(null).fix(w, 0, w.length());
+	}
+
+	//Prepare the characters of a text from start (inclusive) to stop
+	//(exclusive) for indexing: remove the leading and trailing punctuation,
+	//trim, and convert to lower case, in that order. As with the regex "$",
+	//the trailing punctuation is removed from before a final line terminator.
+	String fix(CharSequence s, int start, int stop) {
+		while ((start < stop) && isEdge(s.charAt(start))) start++;
+		int t = stop;
+		if (((t - start) >= 2) && (s.charAt(t - 2) == '\r') && (s.charAt(t - 1) == '\n')) t -= 2;
+		else if ((t > start) && isLineTerminator(s.charAt(t - 1))) t--;
+		int e = t;
+		while ((e > start) && isEdge(s.charAt(e - 1))) e--;
+		if (t == stop) {
+			String w = fixASCII(s, start, e);
+			if (w != null) return w;
+		}
+		String w = s.subSequence(start, e).toString();
+		if (t < stop) w += s.subSequence(t, stop).toString();
+		return w.trim().toLowerCase();
+	}
+
+	//Trim the characters of a text from start (inclusive) to stop (exclusive)
+	//and convert them to lower case in the buffer. Return null if any of the
+	//characters is not ASCII, or if its case conversion depends on the locale.
+	private String fixASCII(CharSequence s, int start, int stop) {
+		while ((start < stop) && (s.charAt(start) <= ' ')) start++;
+		while ((stop > start) && (s.charAt(stop - 1) <= ' ')) stop--;
+		int len = stop - start;
+		if (buffer.length < len) buffer = new char[Math.max(len, 2 * buffer.length)];
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(start + i);
+			if (c >= 0x80) return null;
+			if ((c >= 'A') && (c <= 'Z')) {
+				if ((c == 'I') && dotlessI) return null;
+				c += 'a' - 'A';
+			}
+			buffer[i] = c;
+		}
+		return new String(buffer, 0, len);
+	}
+
+	//Determine whether a character is a line terminator (for the regex "$").
+	static boolean isLineTerminator(char c) {
+		return (c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029');
+	}
+
+	//Determine whether a character separates words (the \s regex class).
+	static boolean isSeparator(char c) {
+		switch (c) {
+			case ' ':
+			case '\t':
+			case '\n':
+			case '\u000B':
+			case '\f':
+			case '\r':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	//Determine whether a character is removed from the ends of words.
+	static boolean isEdge(char c) {
+		switch (c) {
+			case '\'':
+			case '"':
+			case '_':
+			case '*':
+			case '+':
+			case ',':
+			case ';':
+			case ':':
+			case '/':
+			case '-':
+			case '.':
+				return true;
+			default:
+				return false;
+		}
+	}
+}
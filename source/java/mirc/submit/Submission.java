@@ -0,0 +1,270 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.submit;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mirc.activity.ActivityDB;
+import mirc.storage.Index;
+import mirc.ssadmin.StorageServiceAdmin;
+import mirc.util.DaemonThreadFactory;
+import mirc.util.MircDocument;
+
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * The processing of an unpacked submission: the replacement of the
+ * document being updated (if any), the setting of the authorization,
+ * and the indexing of the MIRCdocument.
+ * <p>
+ * A Submission can be run on the request thread, or it can be queued
+ * to run on a background thread, in which case its status can be
+ * obtained by its ID until an hour after it finishes.
+ */
+public class Submission implements Runnable {
+
+	static final Logger logger = Logger.getLogger(Submission.class);
+
+	static final long retention = 60L * 60L * 1000L; //1 hour
+
+	static final ConcurrentHashMap<String,Submission> jobs = new ConcurrentHashMap<String,Submission>();
+	static final AtomicLong lastID = new AtomicLong(System.currentTimeMillis());
+	static final ExecutorService queue = Executors.newSingleThreadExecutor(new DaemonThreadFactory("SubmissionProcessor", Thread.NORM_PRIORITY - 1));
+
+	final String id;
+	final String ssid;
+	final Index index;
+	final File dir;
+	final String docref;
+	final boolean isDocumentUpdate;
+	final boolean canUpdate;
+	final boolean preserveOwners;
+	final boolean isAutoindex;
+	final boolean isPublisher;
+	final String username;
+
+	File mainFile;
+	final StringBuffer result = new StringBuffer();
+	volatile String status = "queued";
+	volatile long finishTime = 0;
+
+	/**
+	 * Construct a Submission.
+	 * @param ssid the ID of the library.
+	 * @param index the index of the library.
+	 * @param dir the directory into which the submission was unpacked.
+	 * @param mainFile the MIRCdocument file in the directory.
+	 * @param docref the path of the document being updated, relative to
+	 * the documents directory, or the empty string for a new document.
+	 * @param canUpdate true if the user is authorized to update the document.
+	 * @param preserveOwners true if the owners in the document are to be preserved.
+	 * @param isAutoindex true if the library automatically publishes documents.
+	 * @param isPublisher true if the user has the publisher role.
+	 * @param username the username of the submitting user.
+	 */
+	public Submission(String ssid,
+					  Index index,
+					  File dir,
+					  File mainFile,
+					  String docref,
+					  boolean canUpdate,
+					  boolean preserveOwners,
+					  boolean isAutoindex,
+					  boolean isPublisher,
+					  String username) {
+		this.id = Long.toString( lastID.incrementAndGet() );
+		this.ssid = ssid;
+		this.index = index;
+		this.dir = dir;
+		this.mainFile = mainFile;
+		this.docref = docref;
+		this.isDocumentUpdate = !docref.equals("");
+		this.canUpdate = canUpdate;
+		this.preserveOwners = preserveOwners;
+		this.isAutoindex = isAutoindex;
+		this.isPublisher = isPublisher;
+		this.username = username;
+	}
+
+	/**
+	 * Queue this Submission for processing on the background thread.
+	 * @return the ID by which the status of the Submission can be obtained.
+	 */
+	public String queue() {
+		removeExpiredJobs();
+		jobs.put(id, this);
+		queue.execute(this);
+		return id;
+	}
+
+	/**
+	 * Get a queued Submission.
+	 * @param id the ID of the Submission.
+	 * @return the Submission, or null if no Submission with the ID exists.
+	 */
+	public static Submission getSubmission(String id) {
+		return (id != null) ? jobs.get(id) : null;
+	}
+
+	/**
+	 * Get the username of the user who made this Submission.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Get the processing status of this Submission
+	 * ("queued", "running", or "done").
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Get the result of processing this Submission, in the
+	 * format of the submission results page (lines separated
+	 * by vertical bars).
+	 */
+	public String getResult() {
+		synchronized (result) {
+			return result.toString();
+		}
+	}
+
+	/**
+	 * Process the submission.
+	 */
+	public void run() {
+		status = "running";
+		try { process(); }
+		catch (Exception ex) {
+			logger.warn("Unable to process the submission in "+dir, ex);
+			append("The submission could not be processed.|");
+		}
+		finishTime = System.currentTimeMillis();
+		status = "done";
+	}
+
+	private void process() throws Exception {
+		File documentsDir = index.getDocumentsDir();
+		if (isDocumentUpdate && canUpdate) {
+			//This is an update of an existing MIRCdocument.
+			//Remove the old version and put the new one in its place.
+			try {
+				logger.debug("...updating the document");
+				File oldFile = new File(documentsDir, docref);
+				boolean ok = StorageServiceAdmin.deleteDocument(ssid, documentsDir.getName()+docref);
+				logger.debug("...remove old document: result = "+ok);
+
+				//Now rename the new directory to the old name so the URL
+				//has a chance of staying the same
+				File oldDirFile = oldFile.getParentFile();
+				if (dir.renameTo(oldDirFile)) {
+					//Okay, everything is ready, change mainFile to point
+					//to the new file in the old directory.
+					mainFile = new File( oldDirFile, mainFile.getName() );
+					append("The document has been updated.|");
+					logger.debug("...document update succeeded");
+				}
+				else logger.debug("...document update failed");
+			}
+			catch (Exception processAsANewSubmission) {
+				logger.debug("...update failed, processing as a new submission", processAsANewSubmission);
+			}
+		}
+
+		String docpath = mainFile.getAbsolutePath();
+		docpath = docpath.substring( docpath.indexOf( documentsDir.getName() ) ).replace('\\', '/');
+		append("The zip file was received and unpacked successfully:|");
+		append("@/storage/" + ssid + "/" + docpath + "|");
+
+		setAuthorization(mainFile, username, isAutoindex, isPublisher, (isDocumentUpdate || preserveOwners));
+
+		//Now index the document.
+		if (index.insertDocument(docpath)) {
+			append("The site index has been updated.|");
+			logger.debug("...site index updated");
+		}
+		else {
+			append("The attempt to update the site index failed.|");
+			logger.debug("...unable to update the site index");
+		}
+		//Record the activity
+		if (!isDocumentUpdate) ActivityDB.getInstance().increment(ssid, "sub", username);
+	}
+
+	private void append(String s) {
+		synchronized (result) {
+			result.append(s);
+		}
+	}
+
+	private void setAuthorization(
+						File docFile,
+						String owner,
+						boolean isAutoindex,
+						boolean isPublisher,
+						boolean preserveOwners) {
+		try {
+			MircDocument md = new MircDocument(docFile);
+			Document doc = md.getXML();;
+
+			//Remove the filename and path attributes of the root element
+			Element root = doc.getDocumentElement();
+			root.removeAttribute("filename");
+			root.removeAttribute("path");
+
+			Element authElement = XmlUtil.getFirstNamedChild(doc, "authorization");
+			if (authElement == null) {
+				//The document does not have an authorization element; insert it.
+				authElement = (Element)root.appendChild(doc.createElement("authorization"));
+			}
+			//Remove any existing owner element and add one containing only
+			//the username of the submitting user. NOTE: this is ONLY done if
+			//the submission is NOT an update to an existing document.
+			if (!preserveOwners) {
+				Element ownerElement = XmlUtil.getFirstNamedChild(authElement, "owner");
+				if (ownerElement != null) authElement.removeChild(ownerElement);
+				ownerElement = doc.createElement("owner");
+				ownerElement.appendChild(doc.createTextNode(owner));
+				authElement.appendChild(ownerElement);
+			}
+			//Set up the read element and set the publication request, if necessary.
+			Element readElement = XmlUtil.getFirstNamedChild(authElement, "read");
+			if (readElement == null) {
+				//The element is missing, add an empty one so that the document will be private by default.
+				readElement = (Element)authElement.appendChild(doc.createElement("read"));
+			}
+			else {
+				//There is an element, set it correctly.
+				md.setPublicationRequest(isAutoindex || isPublisher);
+			}
+			//Finally, save the document to the original file.
+			FileUtil.setText(docFile, XmlUtil.toString(doc));
+		}
+		catch (Exception ex) { return; }
+	}
+
+	//Remove the jobs which finished more than the retention time ago.
+	private static void removeExpiredJobs() {
+		long limit = System.currentTimeMillis() - retention;
+		for (Submission job : jobs.values()) {
+			if ((job.finishTime != 0) && (job.finishTime < limit)) jobs.remove(job.id);
+		}
+	}
+}
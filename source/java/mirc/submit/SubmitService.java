@@ -15,13 +15,11 @@ import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
-import mirc.activity.ActivityDB;
 import mirc.MircConfig;
 import mirc.storage.Index;
 import mirc.storage.StorageService;
-import mirc.ssadmin.StorageServiceAdmin;
-import mirc.util.MircDocument;
 
 import org.rsna.servlets.Servlet;
 import org.rsna.server.HttpRequest;
@@ -80,6 +78,22 @@ public class SubmitService extends Servlet {
 
 		if (req.userHasRole("author")) {
 
+			//See if this is a request for the status of a queued submission.
+			String jobParameter = req.getParameter("job");
+			if (jobParameter != null) {
+				Submission job = Submission.getSubmission(jobParameter);
+				if ((job != null)
+						&& (job.getUsername().equals(req.getUser().getUsername())
+								|| req.userHasRole("admin"))) {
+					res.write( job.getStatus() + "|" + job.getResult() );
+					res.setContentType("txt");
+				}
+				else res.setResponseCode( res.notfound );
+				res.disableCaching();
+				res.send();
+				return;
+			}
+
 			Path path = req.getParsedPath();
 			MircConfig mc = MircConfig.getInstance();
 			String ssid = path.element(1).trim();
@@ -172,8 +186,14 @@ public class SubmitService extends Servlet {
 		File dir = new File(documentsDir, StringUtil.makeNameFromDate());
 		dir.mkdirs();
 
-		//Get the posted file
+		//Get the posted file. Submissions from third party client-side author
+		//tools are unpacked as the zip stream arrives, without storing the
+		//zip file. Submissions from web pages are stored by the multipart
+		//parser and then unpacked.
 		File file = null;
+		File mainFile = null;
+		boolean unpacked = false;
+		Exception unpackException = null;
 		if (ct.contains("multipart/form-data")) {
 			//This is a post from a web page
 			int maxsize = StringUtil.getInt( lib.getAttribute("maxsize"), 0 );
@@ -184,12 +204,14 @@ public class SubmitService extends Servlet {
 		}
 		else {
 			//This is a post from a third party client-side author tool
-			File x = new File(dir, "submission.zip");
-			InputStream is = req.getInputStream();
-			FileOutputStream fos = new FileOutputStream(x);
-			if (FileUtil.copy( is, fos, req.getContentLength() )) file = x;
+			long length = req.getContentLength();
+			BoundedInputStream bis = new BoundedInputStream(req.getInputStream(), length);
+			try { mainFile = unpackZipStream(bis, dir); }
+			catch (Exception ex) { unpackException = ex; }
+			bis.discard();
+			unpacked = true;
 		}
-		logger.debug("...received file:    "+file);
+		logger.debug("...received file:    "+((file != null) ? file : mainFile));
 
 		//Note: It is important not to get the query parameters until
 		//after the multipart form has been parsed. The parsing process
@@ -222,12 +244,15 @@ public class SubmitService extends Servlet {
 		logger.debug("...ui:               "+ui);
 
 		//If we didn't get a file, just go back to the query page.
-		if (file == null) { res.redirect("/query"); return; }
+		if ((file == null) && !unpacked) { res.redirect("/query"); return; }
 
-		//We have a file; unpack it into the same directory.
-		File mainFile = null;
-		try { mainFile = unpackZipFile(file); }
-		catch (Exception ex) {
+		//If we have a file, unpack it into the same directory.
+		if (file != null) {
+			try { mainFile = unpackZipFile(file); }
+			catch (Exception ex) { unpackException = ex; }
+		}
+		if (unpackException != null) {
+			logger.debug("...unable to unpack the submission", unpackException);
 			result.append("There was a problem unpacking the posted file.|");
 			result.append( deleteResponse( FileUtil.deleteAll(dir) ) );
 			finish(res, ui, ssid, result, suppress);
@@ -244,120 +269,46 @@ public class SubmitService extends Servlet {
 		}
 		else {
 			//Okay, we have an acceptable submission and it is in
-			//the dir directory. The path query parameter, if any, is
-			//in pathParam; this is the path to the XML file of the
-			//MIRCdocument to be updated.
-			file.delete(); //delete the zip file
+			//the dir directory. The docref, if any, is the path
+			//to the XML file of the MIRCdocument to be updated.
+			if (file != null) file.delete(); //delete the zip file
 
+			//If this is an update, see if the user is authorized to change the document.
+			boolean canUpdate = false;
 			if (isDocumentUpdate) {
-				//This is an update of an existing MIRCdocument.
-				//Remove the old version and put the new one in its place.
 				try {
-					logger.debug("...updating the document");
-					//First parse the old document and see if the user is authorized to change it.
-					File oldFile = new File(documentsDir, docref);
-					Document docXML = XmlUtil.getDocument(oldFile);
-					boolean canUpdate = StorageService.userIsAuthorizedTo("update", docXML, req);
-					if (canUpdate) {
-						logger.debug("...document update is authorized");
-						//Okay, remove the old document.
-						boolean ok = StorageServiceAdmin.deleteDocument(ssid, documentsDir.getName()+docref);
-						logger.debug("...remove old document: result = "+ok);
-
-						//Now rename the new directory to the old name so the URL
-						//has a chance of staying the same
-						File oldDirFile = oldFile.getParentFile();
-						if (dir.renameTo(oldDirFile)) {
-							//Okay, everything is ready, change mainFile to point
-							//to the new file in the old directory.
-							mainFile = new File( oldDirFile, mainFile.getName() );
-							result.append("The document has been updated.|");
-							logger.debug("...document update succeeded");
-						}
-						else logger.debug("...document update failed");
-					}
-					else {
-						logger.debug("...document update is not authorized - processing as a new submission");
-					}
-
+					Document docXML = XmlUtil.getDocument( new File(documentsDir, docref) );
+					canUpdate = StorageService.userIsAuthorizedTo("update", docXML, req);
+					if (!canUpdate) logger.debug("...document update is not authorized - processing as a new submission");
 				}
 				catch (Exception processAsANewSubmission) {
 					logger.debug("...update failed, processing as a new submission", processAsANewSubmission);
 				}
 			}
 
-			String docpath = mainFile.getAbsolutePath();
-			docpath = docpath.substring( docpath.indexOf( documentsDir.getName() ) ).replace('\\', '/');
-			result.append("The zip file was received and unpacked successfully:|");
-			result.append("@/storage/" + ssid + "/" + docpath + "|");
-
-			String username = req.getUser().getUsername();
-			boolean isAutoindex = lib.getAttribute("autoindex").equals("yes");
-			boolean isPublisher = req.userHasRole("publisher");
-			setAuthorization(mainFile, username, isAutoindex, isPublisher, (isDocumentUpdate || preserveOwners));
-
-			//Now index the document.
-			if (index.insertDocument(docpath)) {
-				result.append("The site index has been updated.|");
-				logger.debug("...site index updated");
+			Submission submission = new Submission(
+						ssid, index, dir, mainFile, docref, canUpdate, preserveOwners,
+						lib.getAttribute("autoindex").equals("yes"),
+						req.userHasRole("publisher"),
+						req.getUser().getUsername() );
+
+			//If the client asked for asynchronous processing, queue the
+			//submission and return the URL at which its status can be obtained;
+			//otherwise, process the submission now.
+			if (req.hasParameter("async")) {
+				String id = submission.queue();
+				result.append("The zip file was received and unpacked successfully.|");
+				result.append("The submission has been queued for processing:|");
+				result.append("@/submit/" + ssid + "?job=" + id + "|");
 			}
 			else {
-				result.append("The attempt to update the site index failed.|");
-				logger.debug("...unable to update the site index");
+				submission.run();
+				result.append( submission.getResult() );
 			}
-			//Record the activity
-			if (!isDocumentUpdate) ActivityDB.getInstance().increment(ssid, "sub", username);
-
 		}
 		finish(res, ui, ssid, result, suppress);
 	}
 
-	private void setAuthorization(
-						File docFile,
-						String owner,
-						boolean isAutoindex,
-						boolean isPublisher,
-						boolean preserveOwners) {
-		try {
-			MircDocument md = new MircDocument(docFile);
-			Document doc = md.getXML();;
-
-			//Remove the filename and path attributes of the root element
-			Element root = doc.getDocumentElement();
-			root.removeAttribute("filename");
-			root.removeAttribute("path");
-
-			Element authElement = XmlUtil.getFirstNamedChild(doc, "authorization");
-			if (authElement == null) {
-				//The document does not have an authorization element; insert it.
-				authElement = (Element)root.appendChild(doc.createElement("authorization"));
-			}
-			//Remove any existing owner element and add one containing only
-			//the username of the submitting user. NOTE: this is ONLY done if
-			//the submission is NOT an update to an existing document.
-			if (!preserveOwners) {
-				Element ownerElement = XmlUtil.getFirstNamedChild(authElement, "owner");
-				if (ownerElement != null) authElement.removeChild(ownerElement);
-				ownerElement = doc.createElement("owner");
-				ownerElement.appendChild(doc.createTextNode(owner));
-				authElement.appendChild(ownerElement);
-			}
-			//Set up the read element and set the publication request, if necessary.
-			Element readElement = XmlUtil.getFirstNamedChild(authElement, "read");
-			if (readElement == null) {
-				//The element is missing, add an empty one so that the document will be private by default.
-				readElement = (Element)authElement.appendChild(doc.createElement("read"));
-			}
-			else {
-				//There is an element, set it correctly.
-				md.setPublicationRequest(isAutoindex || isPublisher);
-			}
-			//Finally, save the document to the original file.
-			FileUtil.setText(docFile, XmlUtil.toString(doc));
-		}
-		catch (Exception ex) { return; }
-	}
-
 	//Produce a string for the submission result page indicating whether the
 	//submission could be deleted after processing.
 	private String deleteResponse(boolean b) {
@@ -379,41 +330,122 @@ public class SubmitService extends Servlet {
 		File parent = file.getParentFile();
 		File xmlFile = null;
 		ZipFile zipFile = new ZipFile(file);
-		Enumeration zipEntries = zipFile.entries();
-		while (zipEntries.hasMoreElements()) {
-			ZipEntry entry = (ZipEntry)zipEntries.nextElement();
-			if (!entry.isDirectory()) {
-				//Eliminate the path.
-				String name = entry.getName().replace("\\", "/");
-				name = name.substring(name.lastIndexOf("/")+1);
-				//Store the entry;
-				File outFile = new File(parent, name);
-				FileUtil.copy( zipFile.getInputStream(entry), new FileOutputStream(outFile), -1 );
-				//Capture the MIRCdocument xml file
-				if (name.toLowerCase().endsWith(".xml")) {
+		try {
+			Enumeration zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements()) {
+				ZipEntry entry = (ZipEntry)zipEntries.nextElement();
+				if (!entry.isDirectory()) {
+					InputStream in = zipFile.getInputStream(entry);
 					try {
-						Document doc = XmlUtil.getDocument(outFile);
-						Element root = doc.getDocumentElement();
-						if (root.getTagName().equals("MIRCdocument")) {
-							xmlFile = checkFilename(outFile);
-							if (!root.getAttribute("temp").equals("")
-									|| !root.getAttribute("draftpath").equals("")) {
-								root.removeAttribute("temp");
-								root.removeAttribute("draftpath");
-								FileUtil.setText(xmlFile, XmlUtil.toString(doc));
-							}
-						}
-					}
-					catch (Exception doesNotParse) {
-						outFile.delete();
+						File mainFile = storeEntry(in, entry, parent);
+						if (mainFile != null) xmlFile = mainFile;
 					}
+					finally { FileUtil.close(in); }
 				}
 			}
 		}
-		zipFile.close();
+		finally { zipFile.close(); }
 		return xmlFile;
 	}
 
+	//Unpack a zip stream into a directory, ignoring all path information.
+	//The entries are stored as they are read, so the stream can be the
+	//body of the request while it is still arriving. This is used only
+	//for the raw request body; a file on disk is unpacked with ZipFile,
+	//which reads the central directory and handles every entry layout.
+	private File unpackZipStream(InputStream in, File parent) throws Exception {
+		File xmlFile = null;
+		ZipInputStream zin = new ZipInputStream(in);
+		ZipEntry entry;
+		while ((entry = zin.getNextEntry()) != null) {
+			if (!entry.isDirectory()) {
+				File mainFile = storeEntry(zin, entry, parent);
+				if (mainFile != null) xmlFile = mainFile;
+			}
+			zin.closeEntry();
+		}
+		return xmlFile;
+	}
+
+	//Store a zip entry in a directory, ignoring its path, and return
+	//the file if it is a MIRCdocument; otherwise, return null. The
+	//stream is read to the end of the entry but not closed.
+	private File storeEntry(InputStream in, ZipEntry entry, File parent) throws Exception {
+		//Eliminate the path.
+		String name = entry.getName().replace("\\", "/");
+		name = name.substring(name.lastIndexOf("/")+1);
+		//Store the entry;
+		File outFile = new File(parent, name);
+		OutputStream out = new BufferedOutputStream( new FileOutputStream(outFile) );
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		}
+		finally { FileUtil.close(out); }
+		//Capture the MIRCdocument xml file
+		if (name.toLowerCase().endsWith(".xml")) {
+			try {
+				Document doc = XmlUtil.getDocument(outFile);
+				Element root = doc.getDocumentElement();
+				if (root.getTagName().equals("MIRCdocument")) {
+					File xmlFile = checkFilename(outFile);
+					if (!root.getAttribute("temp").equals("")
+							|| !root.getAttribute("draftpath").equals("")) {
+						root.removeAttribute("temp");
+						root.removeAttribute("draftpath");
+						FileUtil.setText(xmlFile, XmlUtil.toString(doc));
+					}
+					return xmlFile;
+				}
+			}
+			catch (Exception doesNotParse) {
+				outFile.delete();
+			}
+		}
+		return null;
+	}
+
+	//An InputStream which reads no more than a fixed number of bytes from
+	//the request, so the zip stream cannot read past the end of the body.
+	static class BoundedInputStream extends FilterInputStream {
+		long remaining;
+		public BoundedInputStream(InputStream in, long length) {
+			super(in);
+			remaining = (length >= 0) ? length : Long.MAX_VALUE;
+		}
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = super.read();
+			if (b != -1) remaining--;
+			return b;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int n = super.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+		public long skip(long n) throws IOException {
+			long k = super.skip(Math.min(n, remaining));
+			if (k > 0) remaining -= k;
+			return k;
+		}
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), remaining);
+		}
+		public void close() { }
+		//Read and discard the rest of the body
+		//(the central directory of the zip file).
+		public void discard() {
+			try {
+				byte[] buffer = new byte[8192];
+				while (read(buffer, 0, buffer.length) != -1) ;
+			}
+			catch (Exception ignore) { }
+		}
+	}
+
 	//Check a filename to see if it contains characters that would
 	//cause problems when they appear in the docref attribute and
 	//rename the file to an acceptable name if necessary.
@@ -236,7 +236,7 @@ public class AuthorSummary extends Servlet {
 			Element docEl = parent.getOwnerDocument().createElement("doc");
 			parent.appendChild(docEl);
 			addElement(docEl, "title", mie.title);
-			addElement(docEl, "path", mie.md.getAttribute("path"));
+			addElement(docEl, "path", mie.getPath());
 			addAuthorNames(docEl, mie);
 			addElement(docEl, "pubdate", mie.pubdate);
 			addElement(docEl, "access", mie.access);
@@ -245,10 +245,10 @@ public class AuthorSummary extends Servlet {
 
 	private void addAuthorNames(Element parent, IndexEntry mie) {
 		Document doc = parent.getOwnerDocument();
-		NodeList nl = mie.md.getElementsByTagName("name");
-		for (int i=0; i<nl.getLength(); i++) {
+		String[] names = mie.getSummary().getAuthorNames();
+		for (String n : names) {
 			Element name = doc.createElement("name");
-			name.setTextContent( nl.item(i).getTextContent() );
+			name.setTextContent( n );
 			parent.appendChild(name);
 		}
 	}
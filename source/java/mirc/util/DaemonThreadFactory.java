@@ -0,0 +1,53 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ThreadFactory for the thread pools of the MIRC services. The threads
+ * are daemons, so they do not prevent the server from shutting down, and
+ * they are named {name}-{n}, where n counts the threads of the factory.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	final String name;
+	final int priority;
+	final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Create a factory for threads of normal priority.
+	 * @param name the base name of the threads.
+	 */
+	public DaemonThreadFactory(String name) {
+		this(name, Thread.NORM_PRIORITY);
+	}
+
+	/**
+	 * Create a factory.
+	 * @param name the base name of the threads.
+	 * @param priority the priority of the threads.
+	 */
+	public DaemonThreadFactory(String name, int priority) {
+		this.name = name;
+		this.priority = priority;
+	}
+
+	/**
+	 * Create a daemon thread.
+	 * @param r the Runnable to be run by the thread.
+	 * @return the thread.
+	 */
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+		t.setDaemon(true);
+		t.setPriority(priority);
+		return t;
+	}
+}
@@ -0,0 +1,49 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static methods for compressing and decompressing byte arrays with gzip.
+ */
+public class GzipUtil {
+
+	/**
+	 * Compress a byte array with gzip.
+	 * @param bytes the uncompressed bytes.
+	 * @return the gzip-encoded bytes.
+	 * @throws Exception if the bytes cannot be compressed.
+	 */
+	public static byte[] gzip(byte[] bytes) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		GZIPOutputStream gz = new GZIPOutputStream(baos);
+		gz.write(bytes);
+		gz.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decompress a gzip-encoded byte array.
+	 * @param bytes the gzip-encoded bytes.
+	 * @return the uncompressed bytes.
+	 * @throws Exception if the bytes are not gzip-encoded.
+	 */
+	public static byte[] gunzip(byte[] bytes) throws Exception {
+		GZIPInputStream gz = new GZIPInputStream( new ByteArrayInputStream(bytes) );
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 4);
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = gz.read(buffer)) != -1) baos.write(buffer, 0, n);
+		gz.close();
+		return baos.toByteArray();
+	}
+}
@@ -37,6 +37,7 @@ public class ImageObject {
 	boolean isDicom = false;
 	int numberOfFrames = 0;
 	int frame = 0;
+	int targetSize = 0;
 
 	/**
 	 * Class constructor; creates a new MircImage from a File.
@@ -47,6 +48,23 @@ public class ImageObject {
 		getBufferedImage(0);
 	}
 
+	/**
+	 * Class constructor; creates a new MircImage from a File, decoding only
+	 * enough of the raster to produce an image of a specified width.
+	 * The image is subsampled as it is read, so the full raster is not
+	 * created. Subsampling is not applied to DICOM images.
+	 * @param file the file containing the image.
+	 * @param targetSize the width of the largest image to be created
+	 * from this object. The decoded image is at least twice this width
+	 * (or the full width of the image, if that is smaller), so it can be
+	 * scaled to the target size with good quality.
+	 */
+	public ImageObject(File file, int targetSize) throws Exception {
+		this.file = file;
+		this.targetSize = targetSize;
+		getBufferedImage(0);
+	}
+
 	/**
 	 * Class constructor; creates a new MircImage from a resource path.
 	 * @param resource the path to the resource containing the image.
@@ -83,7 +101,7 @@ public class ImageObject {
 		if (reader != null) {
 			try {
 				reader.setInput(iis);
-				bufferedImage = reader.read(frame);
+				bufferedImage = reader.read(frame, getReadParam(reader, frame));
 				formatName = reader.getFormatName();
 				numberOfFrames = reader.getNumImages(false);
 			}
@@ -95,6 +113,21 @@ public class ImageObject {
 		return bufferedImage;
 	}
 
+	//Get the ImageReadParam for reading a frame, setting the source
+	//subsampling if a target size was specified. Return null (the
+	//reader's default) if the frame is to be read at full resolution.
+	private ImageReadParam getReadParam(ImageReader reader, int frame) {
+		if ((targetSize <= 0) || reader.toString().contains("dcm4che")) return null;
+		try {
+			int period = reader.getWidth(frame) / (2 * targetSize);
+			if (period < 2) return null;
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(period, period, 0, 0);
+			return param;
+		}
+		catch (Exception useDefault) { return null; }
+	}
+
 	//Get an ImageReader for an ImagerInputStream.
 	private ImageReader getImageReader(ImageInputStream iis) {
 
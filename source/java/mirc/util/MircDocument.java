@@ -15,6 +15,7 @@ import java.util.Enumeration;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.Properties;
@@ -30,6 +31,7 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
 
 import mirc.MircConfig;
+import mirc.storage.DocumentJobs;
 import mirc.storage.Index;
 import mirc.util.MircImage;
 import mirc.util.RadLexIndex;
@@ -223,19 +225,12 @@ public class MircDocument {
 	 * @throws Exception if any error occurs..
 	 */
 	public File getPresentation(boolean userIsOwner) throws Exception {
-		//Make a directory in which to play
-		File dir = FileUtil.createTempDirectory(docDir);
-
 		//Get a file for the presentation (in the root directory of the MIRCdocument)
 		File odpFile = getFileForZip(doc, docFile, "odp");
 
-		//Find all the images, put them into the pictures directory,
+		//Find all the images, add them to the package,
 		//and create the XML document that lists them
-		File pictures = new File(dir, "Pictures");
-		pictures.mkdirs();
-		Document imagesDoc = XmlUtil.getDocument();
-		Element images = imagesDoc.createElement("images");
-		imagesDoc.appendChild(images);
+		PresentationPackage pkg = new PresentationPackage();
 		NodeList nl = doc.getDocumentElement().getElementsByTagName("image");
 		for (int i=0; i<nl.getLength(); i++) {
 			Element img = (Element)nl.item(i);
@@ -254,7 +249,7 @@ public class MircDocument {
 						}
 					}
 				}
-				appendImg(images, img, name, pictures);
+				appendImg(pkg, img, name);
 
 				//Check whether there is an annotated image.
 				for (int k=0; k<alt.getLength(); k++) {
@@ -263,7 +258,7 @@ public class MircDocument {
 						String altsrc = altimg.getAttribute("src").toLowerCase();
 						if (altsrc.endsWith(".jpg") || altsrc.endsWith("jpeg")) {
 							String altname = altimg.getAttribute("src");
-							appendImg(images, altimg, altname, pictures);
+							appendImg(pkg, altimg, altname);
 							break;
 						}
 					}
@@ -271,94 +266,29 @@ public class MircDocument {
 			}
 		}
 
-		//Add in the little png that OO needs for one of its styles
-		String pngName = "10000000000000200000002000309F1C.png";
-		File png = new File(pictures, pngName);
-		FileUtil.getFile(png, "/odp/"+pngName);
-
-		//Copy in the styles
-		FileUtil.getFile(new File(dir, "styles.xml"), "/odp/styles.xml");
-
-		//Make the META-INF directory and create the manifest.xml file
-		File metaInf = new File(dir, "META-INF");
-		metaInf.mkdirs();
-		File manifestFile = new File(metaInf, "manifest.xml");
-		Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/manifest.xsl" ) );
-		Document manifest = XmlUtil.getTransformedDocument( imagesDoc, xsl, null );
-		FileUtil.setText(manifestFile, XmlUtil.toString(manifest));
-
-		//Process the Document and create the slides file
-		File contentFile = new File(dir, "content.xml");
-		xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/content.xsl" ) );
+		//Process the Document and create the slides
+		Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/content.xsl" ) );
 		Object[] params = {
-			"images", imagesDoc,
+			"images", pkg.getImagesDocument(),
 			"userIsOwner", (userIsOwner ? "yes" : "no")
 		};
 		Document content = XmlUtil.getTransformedDocument( doc, xsl, params );
-		FileUtil.setText(contentFile, XmlUtil.toString(content));
 
-		//Now zip it all up. Note that we suppress the name of the dir.
-		//If we didn't, neither OO nor PPT would open the file.
-		FileUtil.zipDirectory(dir, odpFile, true);
-
-		//Delete the temp directory and return the file.
-		FileUtil.deleteAll(dir);
+		//Now write the package. The pictures are written
+		//directly from the files in the document directory.
+		if (!pkg.write(odpFile, content)) throw new Exception("Unable to create "+odpFile);
 		return odpFile;
 	}
 
-	//Append an image. Constructing the parameters that allow it
-	//to be scaled to the slide. Copy the image to the pictures directory.
-	private void appendImg(Element images, Element img, String name, File pictures) {
+	//Append an image to the package if its dimensions are known.
+	private void appendImg(PresentationPackage pkg, Element img, String name) {
 		String src = img.getAttribute("src");
 		int w = StringUtil.getInt(img.getAttribute("w"));
 		int h = StringUtil.getInt(img.getAttribute("h"));
 
 		if ((w != 0) && (h != 0)) {
-
-			//Now figure out how to place and scale the image on the slide.
-			//This has to be a lot easier done in Java than in XSL.
-			float slideWidth = 28;
-			float slideHeight = 21;
-			float marginX = 1;
-			float marginY = 1;
-			float areaWidth = slideWidth - 2*marginX;
-			float areaHeight = slideHeight - 2*marginY;
-			float areaAspectRatio = areaHeight / areaWidth;;
-			float imageAspectRatio = (float)h / (float)w;
-
-			float xcm, ycm, wcm, hcm;
-
-			if (areaAspectRatio < imageAspectRatio) {
-				//fit the image to the height of the area
-				float scale = areaHeight / (float)h;
-				ycm = marginY;
-				hcm = areaHeight;
-				wcm = (float)w * scale;
-				xcm = marginX + (areaWidth - wcm)/2;
-			}
-			else {
-				//fit the image to the width of the area
-				xcm = marginX;
-				wcm = areaWidth;
-				float scale = areaWidth / (float)w;
-				hcm = (float)h * scale;
-				ycm = marginY + (areaHeight - hcm)/2;
-			}
-
-			//Okay, now create the element
-			Element image = images.getOwnerDocument().createElement("image");
-			images.appendChild(image);
+			Element image = pkg.addImage(src, new File(docDir, src), w, h);
 			image.setAttribute("name", name); //this is the value that indexes the image
-			image.setAttribute("src", src); //this is the value that points to the version to use
-			image.setAttribute("x", String.format(Locale.US, "%.3fcm", xcm));
-			image.setAttribute("y", String.format(Locale.US, "%.3fcm", ycm));
-			image.setAttribute("w", String.format(Locale.US, "%.3fcm", wcm));
-			image.setAttribute("h", String.format(Locale.US, "%.3fcm", hcm));
-
-			//Now copy the selected image to the Pictures directory
-			File inFile = new File(docDir, src);
-			File outFile = new File(pictures, src);
-			FileUtil.copy(inFile, outFile);
 		}
 	}
 
@@ -1360,120 +1290,190 @@ public class MircDocument {
 	 * @param q the quality level to use in creating JPEGs.
 	 */
 	public void updateImage(DicomObject dicomObject, int frame, int q, int wl, int ww) throws Exception {
+		update(dicomObject, false, frame, q, wl, ww);
+	}
+
+	/**
+	 * Update all the images in the series of an image, saving them with
+	 * the specified parameters. If the series of the image cannot be
+	 * determined, only the image itself is updated.
+	 * @param dicomObject the object identifying the series.
+	 * @param frame the frame to use in creating JPEGs.
+	 * @param wl the window level to use in creating JPEGs.
+	 * @param ww the window width to use in creating JPEGs.
+	 * @param q the quality level to use in creating JPEGs.
+	 */
+	public void updateSeries(DicomObject dicomObject, int frame, int q, int wl, int ww) throws Exception {
+		update(dicomObject, true, frame, q, wl, ww);
+	}
+
+	//Update an image or series on the calling thread, using the supplied
+	//DicomObject for its own image rather than parsing the file again.
+	private void update(DicomObject dicomObject, boolean series, int frame, int q, int wl, int ww) throws Exception {
 		File imageFile = dicomObject.getFile();
-		String name = imageFile.getName();
-		Element root = getXML().getDocumentElement();
-		NodeList imageSections = root.getElementsByTagName("image-section");
-		for (int i=0; i<imageSections.getLength(); i++) {
-			Element imageSection = (Element)imageSections.item(i);
-			NodeList alts = root.getElementsByTagName("alternative-image");
-			for (int k=0; k<alts.getLength(); k++) {
-				Element alt = (Element)alts.item(k);
-				if (alt.getAttribute("role").equals("original-format") && alt.getAttribute("src").equals(name)) {
-					Element baseImage = (Element)alt.getParentNode();
-					saveWWWLImages(dicomObject, baseImage, frame, q, wl, ww);
-				}
+		for (WWWLUpdate update : getWWWLUpdates(imageFile.getName(), series, frame, q, wl, ww)) {
+			if (update.getDicomFile().equals(imageFile)) update.save(dicomObject);
+			else {
+				try { update.save(); }
+				catch (Exception skip) { }
 			}
 		}
 	}
 
-	public void updateSeries(DicomObject dicomObject, int frame, int q, int wl, int ww) throws Exception {
-		//First, find the study and series information as stored in the order-by element for the DicomObject in the MircDocument.
-		String study = null;
-		String series = null;
-		File imageFile = dicomObject.getFile();
-		String name = imageFile.getName();
+	/**
+	 * Get the updates required to save new window level settings in the
+	 * JPEG images of a DICOM image, or of all the DICOM images in its series.
+	 * The document is read only by this method, so the updates can be saved
+	 * on any thread. Each base image appears in the list only once.
+	 * @param name the name of the DICOM file (the src attribute of
+	 * its original-format alternative-image element).
+	 * @param series true if all the images in the series of the image are
+	 * to be updated. If the image has no order-by element identifying its
+	 * series, only the image itself is updated.
+	 * @param frame the frame to use in creating JPEGs (-1 for the middle frame).
+	 * @param q the quality level to use in creating JPEGs.
+	 * @param wl the window level to use in creating JPEGs.
+	 * @param ww the window width to use in creating JPEGs.
+	 * @return the list of updates, one per DICOM image.
+	 */
+	public LinkedList<WWWLUpdate> getWWWLUpdates(String name, boolean series, int frame, int q, int wl, int ww) {
 		Element root = getXML().getDocumentElement();
-		NodeList imageSections = root.getElementsByTagName("image-section");
-		for (int i=0; i<imageSections.getLength(); i++) {
-			Element imageSection = (Element)imageSections.item(i);
-			NodeList alts = root.getElementsByTagName("alternative-image");
-			for (int k=0; k<alts.getLength(); k++) {
-				Element alt = (Element)alts.item(k);
-				if (alt.getAttribute("role").equals("original-format") && alt.getAttribute("src").equals(name)) {
-					//Okay, we found the DicomObject in the MircDocument, see if it has an order-by element.
-					Element baseImage = (Element)alt.getParentNode();
-					NodeList obs = baseImage.getElementsByTagName("order-by");
+		LinkedList<Element> baseImages = new LinkedList<Element>();
+
+		//Find the base image of the DicomObject and, if requested,
+		//the study and series as stored in its order-by element.
+		Element target = null;
+		String study = null;
+		String seriesID = null;
+		NodeList alts = root.getElementsByTagName("alternative-image");
+		for (int k=0; k<alts.getLength(); k++) {
+			Element alt = (Element)alts.item(k);
+			if (alt.getAttribute("role").equals("original-format") && alt.getAttribute("src").equals(name)) {
+				target = (Element)alt.getParentNode();
+				if (series) {
+					NodeList obs = target.getElementsByTagName("order-by");
 					if (obs.getLength() > 0) {
 						Element ob = (Element)obs.item(0);
 						study = ob.getAttribute("study");
-						series = ob.getAttribute("series");
-						break;
+						seriesID = ob.getAttribute("series");
 					}
 				}
+				break;
 			}
-			if (series !=  null) break;
-		}
-		if (series == null) {
-			//We didn't find an order-by element to use to identify the series.
-			//The best we can do is try to update the image itself.
-			updateImage(dicomObject, frame, q, wl, ww);
-			return;
 		}
+		if (target == null) return new LinkedList<WWWLUpdate>();
 
-		//Okay, if we get here, we know the study and series information.
-		//Look for all images that match the study and series and update them.
-		//Note that this will also pick up the identified image.
-		//Note also that we still have the nodelist of image-sections.
-		for (int i=0; i<imageSections.getLength(); i++) {
-			Element imageSection = (Element)imageSections.item(i);
+		if (seriesID == null) baseImages.add(target);
+		else {
+			//Find all the images that match the study and series.
+			//Note that this will also pick up the identified image.
 			NodeList obs = root.getElementsByTagName("order-by");
 			for (int k=0; k<obs.getLength(); k++) {
 				Element ob = (Element)obs.item(k);
-				if (ob.getAttribute("study").equals(study) && ob.getAttribute("series").equals(series)) {
-					//Okay, we found an object in the study and series; now get the DicomObject for it
+				if (ob.getAttribute("study").equals(study) && ob.getAttribute("series").equals(seriesID)) {
 					Element baseImage = (Element)ob.getParentNode();
-					NodeList alts = baseImage.getElementsByTagName("alternative-image");
-					for (int x=0; x<alts.getLength(); x++) {
-						Element alt = (Element)alts.item(x);
-						if (alt.getAttribute("role").equals("original-format")) {
-							try {
-								DicomObject dob = new DicomObject(new File(docDir, alt.getAttribute("src")));
-								saveWWWLImages(dob, baseImage, frame, q, wl, ww);
-							}
-							catch (Exception skip) { }
-						}
-					}
+					if (!baseImages.contains(baseImage)) baseImages.add(baseImage);
 				}
 			}
 		}
+
+		LinkedList<WWWLUpdate> updates = new LinkedList<WWWLUpdate>();
+		for (Element baseImage : baseImages) {
+			WWWLUpdate update = getWWWLUpdate(baseImage, frame, q, wl, ww);
+			if (update != null) updates.add(update);
+		}
+		return updates;
 	}
 
-	private void saveWWWLImages(DicomObject dicomObject, Element baseImage, int frame, int q, int wl, int ww) throws Exception {
-		if (baseImage == null) return;
-		saveWWWLImage(dicomObject, baseImage, frame, q, wl, ww);
+	//Get the update for one base image, or null if it has no DICOM original.
+	private WWWLUpdate getWWWLUpdate(Element baseImage, int frame, int q, int wl, int ww) {
+		File dicomFile = null;
+		LinkedList<Element> images = new LinkedList<Element>();
+		images.add(baseImage);
 		Node child = baseImage.getFirstChild();
 		while (child != null) {
 			if (child instanceof Element) {
-				saveWWWLImage(dicomObject, (Element)child, frame, q, wl, ww);
+				Element el = (Element)child;
+				String role = el.getAttribute("role");
+				if (el.getTagName().equals("alternative-image")) {
+					if (role.equals("original-format")) dicomFile = new File(docDir, el.getAttribute("src"));
+					else if (role.equals("icon") || role.equals("original-dimensions")) images.add(el);
+				}
 			}
 			child = child.getNextSibling();
 		}
+		if (dicomFile == null) return null;
+		WWWLUpdate update = new WWWLUpdate(dicomFile, frame, q, wl, ww);
+		for (Element el : images) {
+			update.add(
+				new File(docDir, el.getAttribute("src")),
+				StringUtil.getInt(el.getAttribute("w"), -1),
+				StringUtil.getInt(el.getAttribute("h"), -1));
+		}
+		return update;
 	}
 
-	private void saveWWWLImage(DicomObject dob, Element el, int frame, int q, int wl, int ww) throws Exception {
-		if (el == null) return;
-		if (frame == -1) frame = dob.getNumberOfFrames() / 2;
-		String tag = el.getTagName();
-		String attr = el.getAttribute("role");
-		if (tag.equals("image") || (tag.equals("alternative-image") && (attr.equals("icon") || attr.equals("original-dimensions")))) {
-			String src = el.getAttribute("src");
-			int w = StringUtil.getInt(el.getAttribute("w"), -1);
-			int h = StringUtil.getInt(el.getAttribute("h"), -1);
-			File file = new File (docDir, src);
-			if (!file.delete()) logger.info("Unable to delete "+file+" before saving");
-			//logger.info("Saving window-leveled JPEG: "+file.getAbsoluteFile()+" ("+wl+","+ww+") ("+w+","+h+")");
-			dob.saveAsWindowLeveledJPEG(file, w, h, frame, q, wl, ww);
-
-			/*
-			//This code was used for testing, to find the problem where it worked only if the image was not scaled.
-			int x = src.lastIndexOf(".jpeg");
-			if (x > 0) {
-				String xsrc = src.substring(0, x) +"["+wl+","+ww+"].jpeg";
-				File xfile = new File(docDir, xsrc);
-				dob.saveAsWindowLeveledJPEG(xfile, -1, -1, frame, q, wl, ww);
+	/**
+	 * The JPEG images to be saved from one DICOM image with new window level settings.
+	 */
+	public static class WWWLUpdate {
+		final File dicomFile;
+		final int frame;
+		final int q;
+		final int wl;
+		final int ww;
+		final LinkedList<File> files = new LinkedList<File>();
+		final LinkedList<int[]> sizes = new LinkedList<int[]>();
+
+		WWWLUpdate(File dicomFile, int frame, int q, int wl, int ww) {
+			this.dicomFile = dicomFile;
+			this.frame = frame;
+			this.q = q;
+			this.wl = wl;
+			this.ww = ww;
+		}
+
+		void add(File file, int w, int h) {
+			files.add(file);
+			sizes.add(new int[] { w, h });
+		}
+
+		/**
+		 * Get the DICOM file from which the images are created.
+		 */
+		public File getDicomFile() {
+			return dicomFile;
+		}
+
+		/**
+		 * Parse the DICOM file and save the images.
+		 */
+		public void save() throws Exception {
+			save(new DicomObject(dicomFile));
+		}
+
+		/**
+		 * Save the images from a parsed DICOM file. Each image is written
+		 * to a temporary file which then replaces the image, so a viewer
+		 * never sees a missing or partial image.
+		 * @param dob the DicomObject of the DICOM file.
+		 */
+		public void save(DicomObject dob) throws Exception {
+			int f = (frame == -1) ? dob.getNumberOfFrames() / 2 : frame;
+			Iterator<int[]> sit = sizes.iterator();
+			int failures = 0;
+			for (File file : files) {
+				int[] size = sit.next();
+				File temp = new File(file.getParentFile(), file.getName() + ".wwwl.jpeg");
+				dob.saveAsWindowLeveledJPEG(temp, size[0], size[1], f, q, wl, ww);
+				if (!DocumentJobs.replace(temp, file)) {
+					logger.warn("Unable to replace "+file);
+					//Keep the new image if the old one is not in place.
+					if (file.exists()) temp.delete();
+					failures++;
+				}
 			}
-			*/
+			if (failures > 0) throw new Exception("Unable to replace "+failures+" image(s) for "+dicomFile);
 		}
 	}
 
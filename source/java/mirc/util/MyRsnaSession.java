@@ -12,10 +12,11 @@ import java.util.*;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.net.HttpURLConnection;
+import java.util.concurrent.Semaphore;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.apache.log4j.Logger;
-import org.rsna.util.ClientHttpRequest;
+import org.rsna.util.FileUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -24,6 +25,15 @@ import org.xml.sax.InputSource;
 
 /**
  * Encapsulates a collection of methods for accessing a user's MyRSNA account.
+ * <p>
+ * All myRSNA traffic shares a limited number of connections, which is
+ * the size of the JDK's keep-alive cache, so connections are reused
+ * rather than opened and discarded. Every response is read to the end
+ * and closed to return its connection to the cache. Responses are
+ * parsed directly from the connection, and uploads are streamed from
+ * the file, so the memory used by a call does not depend on the size
+ * of the file. Calls that do not change the account are retried
+ * with increasing delays if they fail.
  */
 public class MyRsnaSession {
 
@@ -31,15 +41,24 @@ public class MyRsnaSession {
 
 	String username = null;
 	String password = null;
-	String rsnatoken = null;
-	String firstname = "";
-	String lastname = "";
-	boolean isLoggedIn = false;
+	volatile String rsnatoken = null;
+	volatile String firstname = "";
+	volatile String lastname = "";
+	volatile boolean isLoggedIn = false;
 
 	static final String urlString = "http://myrsna.rsna.org/API/cfc/myRSNA.cfc";
 	static final String rsnakey = "d68cf020-91b1-42a9-8969-b89641910c73";
 	static final String downloadURLString = "http://media.rsna.org/myfile.cfm";
 
+	static final int maxConnections = Integer.getInteger("http.maxConnections", 5).intValue();
+	static final Semaphore permits = new Semaphore(maxConnections, true);
+	static final int connectTimeout = 15 * 1000;
+	static final int readTimeout = 60 * 1000;
+	static final int uploadReadTimeout = 10 * 60 * 1000;
+	static final int maxAttempts = 3;
+	static final long retryDelay = 500; //doubled after each failed attempt
+	static final int bufferSize = 64 * 1024;
+
 	/**
 	 * Creator using names.
 	 * @param username the MyRsna account username
@@ -66,8 +85,7 @@ public class MyRsnaSession {
 	public boolean login() {
 		try {
 			String args = "<RSNA_UN>" + username + "</RSNA_UN><RSNA_PW>" + password + "</RSNA_PW>";
-			String result = get("authenticateRSNAuser", args);
-			Document resultDoc = getDocument(result);
+			Document resultDoc = call("authenticateRSNAuser", args);
 			setSessionParams(resultDoc);
 		}
 		catch (Exception ex) { clearTokens(); }
@@ -81,8 +99,7 @@ public class MyRsnaSession {
 	public boolean logout() {
 		try {
 			if (rsnatoken == null) return false;
-			String result = get("logoutRSNAuser");
-			Document resultDoc = getDocument(result);
+			Document resultDoc = call("logoutRSNAuser", "");
 			setSessionParams(resultDoc);
 		}
 		catch (Exception ex) { clearTokens(); }
@@ -96,8 +113,7 @@ public class MyRsnaSession {
 	public boolean isOpen() {
 		try {
 			if (rsnatoken == null) return false;
-			String result = get("checkRSNALogin");
-			Document resultDoc = getDocument(result);
+			Document resultDoc = call("checkRSNALogin", "");
 			setSessionParams(resultDoc);
 		}
 		catch (Exception ex) { clearTokens(); }
@@ -111,8 +127,7 @@ public class MyRsnaSession {
 	public Element getMyRSNAFolders() {
 		try {
 			if (rsnatoken == null) return null;
-			String result = get("getmyFilesFolders");
-			Document resultDoc = getDocument(result);
+			Document resultDoc = call("getmyFilesFolders", "");
 			if (resultDoc != null) {
 				boolean success = getValue(resultDoc, "success").equals("true");
 				if (success) {
@@ -134,8 +149,7 @@ public class MyRsnaSession {
 			if (rsnatoken == null) return null;
 			folderID = (folderID != null) ? folderID.trim() : "";
 			String args = (!folderID.equals("")) ? "<folderid>"+folderID+"</folderid>" : "";
-			String result = get("getmyFilesMirc", args);
-			Document resultDoc = getDocument(result);
+			Document resultDoc = call("getmyFilesMirc", args);
 			if (resultDoc != null) {
 				boolean success = getValue(resultDoc, "success").equals("true");
 				if (success) {
@@ -156,36 +170,27 @@ public class MyRsnaSession {
 	 * @param id the id of the file to download.
 	 * @return true if the transfer succeeded; false if it failed.
 	 */
-	public static boolean getFile(File file, String id) {
-		boolean ok = true;
-		HttpURLConnection conn = null;
-		BufferedOutputStream bos = null;
-		BufferedInputStream bis = null;
-		URL url = null;
+	public static boolean getFile(final File file, String id) {
 		try {
-			url = new URL(downloadURLString + "?q="+id+"&t=ORIGINAL");
-			bos = new BufferedOutputStream( new FileOutputStream(file) );
-			conn = getConnection(url);
-			conn.connect();
-			int responseCode = conn.getResponseCode();
-			if (responseCode != 200) throw new Exception("Error downloading from "+url);
-			bis = new BufferedInputStream( conn.getInputStream() );
-			byte[] buffer = new byte[4096];
-			int n;
-			while ((n=bis.read(buffer, 0, buffer.length)) != -1) bos.write(buffer, 0, n);
-			bos.flush();
+			URL url = new URL(downloadURLString + "?q="+id+"&t=ORIGINAL");
+			return execute(url,
+				new ResponseHandler<Boolean>() {
+					public Boolean handle(InputStream in) throws Exception {
+						OutputStream out = null;
+						try {
+							out = new FileOutputStream(file);
+							copy(in, out);
+							return Boolean.TRUE;
+						}
+						finally { FileUtil.close(out); }
+					}
+				}
+			).booleanValue();
 		}
 		catch (Exception ex) {
 			logger.warn(ex.getMessage(), ex);
-			ok = false;
-		}
-		finally {
-			try { if (bis != null) bis.close(); }
-			catch (Exception ignore) { }
-			try { if (bos != null) bos.close(); }
-			catch (Exception ignore) { }
+			return false;
 		}
-		return ok;
 	}
 
 	/**
@@ -206,37 +211,83 @@ public class MyRsnaSession {
 	public boolean postFile(File file, String title) {
 		if (rsnatoken == null) return false;
 		if (title == null) title = file.getName();
+
+		//create the full set of args
+		String xmlargs = "<args>"
+					   +	"<rsnakey>"+rsnakey+"</rsnakey>"
+					   +	"<rsnatoken>"+rsnatoken+"</rsnatoken>"
+					   +	"<returntype>XML</returntype>"
+					   +	"<filename>" + title + "</filename>"
+					   + "</args>";
+
+		HttpURLConnection conn = null;
+		InputStream in = null;
+		InputStream fis = null;
+		boolean acquired = false;
 		try {
-			URL url = new URL(urlString);
-			ClientHttpRequest req = new ClientHttpRequest(url);
-
-			//create the full set of args
-			String xmlargs = "<args>"
-						   +	"<rsnakey>"+rsnakey+"</rsnakey>"
-						   +	"<rsnatoken>"+rsnatoken+"</rsnatoken>"
-						   +	"<returntype>XML</returntype>"
-						   +	"<filename>" + title + "</filename>"
-						   + "</args>";
-
-			//set the parameters
-			req.setParameter("wsdl", "");
-			req.setParameter("method", "uploadmyFiles");
-			req.setParameter("xmlargs", xmlargs);
-			req.setParameter("Filedata", file);
-
-			//post the request and get the response
-			String result = getResponse(req.post());
-			logger.debug("MyRsnaRiles response:\n"+result);
-
-			Document resultDoc = getDocument(result);
-
-			if (resultDoc != null) return getValue(resultDoc, "success").equals("true");
-			return false;
+			//Construct the parts of the multipart form that precede and follow the file
+			String boundary = "---------------------------" + Long.toString(System.nanoTime(), 36);
+			String contentType = HttpURLConnection.guessContentTypeFromName(file.getName());
+			if (contentType == null) contentType = "application/octet-stream";
+			StringBuffer sb = new StringBuffer();
+			appendField(sb, boundary, "wsdl", "");
+			appendField(sb, boundary, "method", "uploadmyFiles");
+			appendField(sb, boundary, "xmlargs", xmlargs);
+			sb.append("--" + boundary + "\r\n");
+			sb.append("Content-Disposition: form-data; name=\"Filedata\"; filename=\"" + file.getName() + "\"\r\n");
+			sb.append("Content-Type: " + contentType + "\r\n\r\n");
+			byte[] head = sb.toString().getBytes("UTF-8");
+			byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes("UTF-8");
+			long length = head.length + file.length() + tail.length;
+
+			//Stream the request
+			permits.acquire();
+			acquired = true;
+			conn = (HttpURLConnection)new URL(urlString).openConnection();
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(uploadReadTimeout);
+			conn.setDoOutput(true);
+			conn.setDoInput(true);
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+			if (length <= Integer.MAX_VALUE) conn.setFixedLengthStreamingMode((int)length);
+			else conn.setChunkedStreamingMode(bufferSize);
+			setProxy(conn);
+			OutputStream out = conn.getOutputStream();
+			out.write(head);
+			fis = new FileInputStream(file);
+			copy(fis, out);
+			out.write(tail);
+			out.close();
+
+			//Get the response
+			int responseCode = conn.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				logger.warn("myRSNA upload of "+file+" failed: HTTP "+responseCode);
+				return false;
+			}
+			in = conn.getInputStream();
+			Document resultDoc = getDocument(in);
+			boolean success = "true".equals(getValue(resultDoc, "success"));
+			logger.debug("MyRsnaFiles upload of "+file+": success = "+success);
+			return success;
 		}
 		catch (Exception ex) {
-			ex.printStackTrace();
+			logger.warn("Unable to post "+file+" to myRSNA", ex);
 			return false;
 		}
+		finally {
+			FileUtil.close(fis);
+			release(conn, in);
+			if (acquired) permits.release();
+		}
+	}
+
+	//Append a text field to a multipart form.
+	private static void appendField(StringBuffer sb, String boundary, String name, String value) {
+		sb.append("--" + boundary + "\r\n");
+		sb.append("Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+		sb.append(value + "\r\n");
 	}
 
 	/**
@@ -255,54 +306,114 @@ public class MyRsnaSession {
 	 * @return the text returned by the myRSNA method.
 	 */
 	public String get(String method, String args) {
-		HttpURLConnection conn;
 		try {
-			//create the full set of args
-			String allArgs = "<args>"
-							+ "<rsnakey>"+rsnakey+"</rsnakey>"
-							+ ((rsnatoken != null) ? "<rsnatoken>"+rsnatoken+"</rsnatoken>" : "")
-							+ args
-							+ "<returntype>XML</returntype>"
-							+"</args>";
-
-			//Construct the URL
-			String query = "wsdl"
-							+ "&method=" + URLEncoder.encode(method, "UTF-8")
-							+ "&xmlargs=" + URLEncoder.encode(allArgs, "UTF-8");
-			URL url = new URL(urlString + "?" + query);
-
-			//Establish the connection
-			conn = getConnection(url);
-			conn.connect();
-/*
-			//log the headers on an authenticate method, just for testing
-			if (method.equals("authenticateRSNAuser")) {
-				Map<String, List<String>> headers = conn.getHeaderFields();
-				String[] keys = headers.keySet().toArray(new String[headers.size()]);
-				for (int i=0; i<keys.length; i++) {
-					List header = headers.get(keys[i]);
-					Iterator<String> it = header.iterator();
-					while (it.hasNext()) {
-						logger.warn("Header: "+keys[i]+" = "+it.next());
+			return execute(getMethodURL(method, args),
+				new ResponseHandler<String>() {
+					public String handle(InputStream in) throws Exception {
+						return getResponse(in);
 					}
 				}
-			}
-*/
-			//Get the response
-			return getResponse(conn.getInputStream());
+			);
 		}
 		catch (Exception e) { return null; }
 	}
 
-	private String getResponse(InputStream is) throws Exception {
+	//Call a myRSNA method and parse the response.
+	private Document call(String method, String args) throws Exception {
+		return execute(getMethodURL(method, args),
+			new ResponseHandler<Document>() {
+				public Document handle(InputStream in) throws Exception {
+					return getDocument(in);
+				}
+			}
+		);
+	}
+
+	//Construct the URL for a myRSNA method call.
+	private URL getMethodURL(String method, String args) throws Exception {
+		//create the full set of args
+		String allArgs = "<args>"
+						+ "<rsnakey>"+rsnakey+"</rsnakey>"
+						+ ((rsnatoken != null) ? "<rsnatoken>"+rsnatoken+"</rsnatoken>" : "")
+						+ args
+						+ "<returntype>XML</returntype>"
+						+"</args>";
+
+		//Construct the URL
+		String query = "wsdl"
+						+ "&method=" + URLEncoder.encode(method, "UTF-8")
+						+ "&xmlargs=" + URLEncoder.encode(allArgs, "UTF-8");
+		return new URL(urlString + "?" + query);
+	}
+
+	//The processing of the body of a successful response.
+	interface ResponseHandler<T> {
+		public T handle(InputStream in) throws Exception;
+	}
+
+	//Make a GET request and process the response, retrying with increasing
+	//delays if the connection fails or the server reports an error.
+	private static <T> T execute(URL url, ResponseHandler<T> handler) throws Exception {
+		Exception failure = null;
+		long delay = retryDelay;
+		for (int attempt=1; attempt<=maxAttempts; attempt++) {
+			HttpURLConnection conn = null;
+			InputStream in = null;
+			permits.acquire();
+			try {
+				conn = getConnection(url);
+				conn.connect();
+				int responseCode = conn.getResponseCode();
+				if (responseCode == HttpURLConnection.HTTP_OK) {
+					in = conn.getInputStream();
+					return handler.handle(in);
+				}
+				failure = new IOException("HTTP "+responseCode+" from "+url.getHost());
+				//Client errors will not be cured by retrying.
+				if (responseCode < 500) break;
+			}
+			catch (Exception ex) { failure = ex; }
+			finally {
+				release(conn, in);
+				permits.release();
+			}
+			if (attempt < maxAttempts) {
+				logger.debug("myRSNA request failed (attempt "+attempt+"); retrying", failure);
+				Thread.sleep(delay);
+				delay *= 2;
+			}
+		}
+		throw failure;
+	}
+
+	//Read the rest of a response and close it, so the connection
+	//can be reused. If there is no response stream, read the error
+	//stream, if any, for the same reason.
+	private static void release(HttpURLConnection conn, InputStream in) {
+		if ((in == null) && (conn != null)) in = conn.getErrorStream();
+		if (in != null) {
+			try {
+				byte[] buffer = new byte[4096];
+				while (in.read(buffer) != -1) ;
+			}
+			catch (Exception ignore) { }
+			FileUtil.close(in);
+		}
+	}
+
+	//Copy a stream to another stream.
+	private static void copy(InputStream in, OutputStream out) throws Exception {
+		byte[] buffer = new byte[bufferSize];
+		int n;
+		while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+	}
+
+	private static String getResponse(InputStream is) throws Exception {
 		int n;
-		BufferedReader svrrdr;
 		InputStreamReader isr = new InputStreamReader(is, "UTF-8");
-		svrrdr = new BufferedReader(isr);
 		StringWriter svrsw = new StringWriter();
 		char[] cbuf = new char[1024];
-		while ((n = svrrdr.read(cbuf,0,cbuf.length)) != -1) svrsw.write(cbuf,0,n);
-		svrrdr.close();
+		while ((n = isr.read(cbuf,0,cbuf.length)) != -1) svrsw.write(cbuf,0,n);
 		//return the result
 		return svrsw.toString();
 	}
@@ -310,6 +421,8 @@ public class MyRsnaSession {
 
 	private static HttpURLConnection getConnection(URL url) throws Exception {
 		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
 		conn.setDoOutput(false);
 		conn.setDoInput(true);
 		conn.setRequestMethod("GET");
@@ -329,12 +442,11 @@ public class MyRsnaSession {
 */
 	}
 
-	private static Document getDocument(String xmlString) throws Exception {
-		StringReader sr = new StringReader(xmlString);
+	private static Document getDocument(InputStream in) throws Exception {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		dbf.setNamespaceAware(true);
 		DocumentBuilder db = dbf.newDocumentBuilder();
-		return db.parse(new InputSource(sr));
+		return db.parse(new InputSource(in));
 	}
 
 	private boolean setSessionParams(Document resultDoc) throws Exception {
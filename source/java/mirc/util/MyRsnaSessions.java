@@ -7,27 +7,43 @@
 
 package mirc.util;
 
-import java.io.File;
-import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import mirc.prefs.Preferences;
 import org.apache.log4j.Logger;
 
 /**
- * A class to encapsulate a Hashtable of MyRsnaSessions.
+ * A class to encapsulate a table of MyRsnaSessions.
+ * <p>
+ * Sessions are looked up without locking. A session is returned
+ * without contacting the myRSNA site if it was validated within the
+ * last minute; otherwise it is returned and revalidated (and reopened
+ * if necessary) in the background. When a user has no session, one
+ * is opened on the calling thread; other requests for the same user
+ * wait for it, but requests for other users are not delayed.
  */
 public class MyRsnaSessions {
 
 	static final Logger logger = Logger.getLogger(MyRsnaSessions.class);
 
+	static final long ttl = 60 * 1000; //1 minute
+	static final int maxValidators = 2;
+
 	private static MyRsnaSessions myRsnaSessions = null;
 
-	private Hashtable<String, MyRsnaSession> sessions;
+	private final ConcurrentHashMap<String, SessionEntry> sessions;
+	private final ExecutorService validator;
 
 	/**
 	 * Protected constructor.
 	 */
 	protected MyRsnaSessions() {
-		sessions = new Hashtable<String, MyRsnaSession>();
+		sessions = new ConcurrentHashMap<String, SessionEntry>();
+		validator = Executors.newFixedThreadPool(maxValidators, new DaemonThreadFactory("MyRsnaSessions Validator"));
 	}
 
 	/**
@@ -49,28 +65,108 @@ public class MyRsnaSessions {
 	 * or if the MyRsnaUser contains credentials which are rejected by the
 	 * MyRSNA site.
 	 */
-	public synchronized MyRsnaSession getMyRsnaSession(String mircUsername) {
-		MyRsnaSession mrs = sessions.get(mircUsername);
-		if (mrs != null) {
-			//Verify that the session is still active.
-			if (mrs.isOpen()) return mrs;
-			//It's closed, remove the session.
-			sessions.remove(mircUsername);
-			mrs = null;
+	public MyRsnaSession getMyRsnaSession(String mircUsername) {
+		SessionEntry entry = sessions.get(mircUsername);
+		if ((entry != null) && entry.isClosed()) {
+			//The background validation found the session closed; remove it.
+			sessions.remove(mircUsername, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			//Okay, we don't have a session in the table; create a new one.
+			SessionEntry newEntry = new SessionEntry(mircUsername);
+			entry = sessions.putIfAbsent(mircUsername, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+				entry.open.run();
+			}
 		}
+		MyRsnaSession mrs = entry.getSession();
 		if (mrs == null) {
-			//Okay, we don't have an open session in the cache; create a new one.
-			MyRsnaUser mru = Preferences.getInstance().getMyRsnaUser(mircUsername);
-			if (mru != null) {
-				mrs = new MyRsnaSession(mru);
-				if (mrs.login()) {
-					sessions.put(mircUsername, mrs);
-					return mrs;
+			sessions.remove(mircUsername, entry);
+			return null;
+		}
+		if (entry.needsValidation()) entry.validate();
+		return mrs;
+	}
+
+	//Open a new session for a user.
+	private static MyRsnaSession openSession(String mircUsername) {
+		MyRsnaUser mru = Preferences.getInstance().getMyRsnaUser(mircUsername);
+		if (mru != null) {
+			MyRsnaSession mrs = new MyRsnaSession(mru);
+			if (mrs.login()) return mrs;
+			logger.warn("Unable to login to myRSNA ("+mircUsername+";"+mrs.username+")");
+		}
+		return null;
+	}
+
+	//The table entry for one user. The session is opened by a FutureTask
+	//so that concurrent requests for the same user share one login.
+	class SessionEntry {
+		final String mircUsername;
+		final FutureTask<MyRsnaSession> open;
+		final AtomicBoolean validating = new AtomicBoolean(false);
+		volatile long validated;
+		volatile boolean closed = false;
+
+		SessionEntry(final String mircUsername) {
+			this.mircUsername = mircUsername;
+			this.validated = System.currentTimeMillis();
+			open = new FutureTask<MyRsnaSession>(
+				new Callable<MyRsnaSession>() {
+					public MyRsnaSession call() {
+						return openSession(mircUsername);
+					}
 				}
-				else logger.warn("Unable to login to myRSNA ("+mircUsername+";"+mrs.username+")");
+			);
+		}
+
+		//Get the session, waiting for it to be opened if necessary.
+		MyRsnaSession getSession() {
+			try { return open.get(); }
+			catch (Exception ex) { return null; }
+		}
+
+		boolean isClosed() {
+			return closed;
+		}
+
+		boolean needsValidation() {
+			return (System.currentTimeMillis() - validated) > ttl;
+		}
+
+		//Queue the validation of the session, unless it is already queued.
+		void validate() {
+			if (validating.compareAndSet(false, true)) {
+				try {
+					validator.execute(
+						new Runnable() {
+							public void run() {
+								try { revalidate(); }
+								finally { validating.set(false); }
+							}
+						}
+					);
+				}
+				catch (Exception ex) { validating.set(false); }
+			}
+		}
+
+		//Check the session with the myRSNA site, and
+		//reopen it if it has expired.
+		void revalidate() {
+			MyRsnaSession mrs = getSession();
+			if (mrs == null) return;
+			if (mrs.isOpen() || mrs.login()) {
+				validated = System.currentTimeMillis();
+			}
+			else {
+				logger.debug("myRSNA session closed for "+mircUsername);
+				closed = true;
+				sessions.remove(mircUsername, this);
 			}
 		}
-		return null;
 	}
 
-}
\ No newline at end of file
+}
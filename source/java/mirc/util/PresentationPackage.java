@@ -0,0 +1,143 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.util;
+
+import java.io.*;
+import java.util.Locale;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A class to assemble an OpenOffice presentation (ODP) package.
+ * <p>
+ * The pictures are written into the package directly from the files
+ * in the MIRCdocument directories, and the styles, manifest, and
+ * content parts are written from memory, so no temporary directory
+ * tree is created for the package.
+ */
+public class PresentationPackage {
+
+	static final String pngName = "10000000000000200000002000309F1C.png";
+
+	final ZipExporter exporter;
+	final Document imagesDoc;
+	final Element images;
+
+	/**
+	 * Construct an empty PresentationPackage, including
+	 * the styles and the image required by the styles.
+	 * @throws Exception if the package resources cannot be loaded.
+	 */
+	public PresentationPackage() throws Exception {
+		exporter = new ZipExporter();
+		imagesDoc = XmlUtil.getDocument();
+		images = imagesDoc.createElement("images");
+		imagesDoc.appendChild(images);
+
+		//Add in the little png that OO needs for one of its styles
+		exporter.add("Pictures/"+pngName, getResource("/odp/"+pngName));
+
+		//Add the styles
+		exporter.add("styles.xml", getResource("/odp/styles.xml"));
+	}
+
+	/**
+	 * Get the Document listing the images in the package. This
+	 * Document is supplied to the content transform to obtain
+	 * the placement of the images on the slides.
+	 */
+	public Document getImagesDocument() {
+		return imagesDoc;
+	}
+
+	/**
+	 * Add an image to the package, computing the parameters
+	 * that scale it to fit the slide. The caller must set the
+	 * attribute by which the content transform finds the element.
+	 * @param src the name of the image in the Pictures directory of the package.
+	 * @param file the file containing the image.
+	 * @param w the width of the image in pixels.
+	 * @param h the height of the image in pixels.
+	 * @return the image element.
+	 */
+	public Element addImage(String src, File file, int w, int h) {
+		exporter.add("Pictures/"+src, file);
+
+		//Now figure out how to place and scale the image on the slide.
+		//This has to be a lot easier done in Java than in XSL.
+		float slideWidth = 28;
+		float slideHeight = 21;
+		float marginX = 1;
+		float marginY = 1;
+		float areaWidth = slideWidth - 2*marginX;
+		float areaHeight = slideHeight - 2*marginY;
+		float areaAspectRatio = areaHeight / areaWidth;;
+		float imageAspectRatio = (float)h / (float)w;
+
+		float xcm, ycm, wcm, hcm;
+
+		if (areaAspectRatio < imageAspectRatio) {
+			//fit the image to the height of the area
+			float scale = areaHeight / (float)h;
+			ycm = marginY;
+			hcm = areaHeight;
+			wcm = (float)w * scale;
+			xcm = marginX + (areaWidth - wcm)/2;
+		}
+		else {
+			//fit the image to the width of the area
+			xcm = marginX;
+			wcm = areaWidth;
+			float scale = areaWidth / (float)w;
+			hcm = (float)h * scale;
+			ycm = marginY + (areaHeight - hcm)/2;
+		}
+
+		//Okay, now create the element
+		Element image = imagesDoc.createElement("image");
+		images.appendChild(image);
+		image.setAttribute("src", src); //this is the value that points to the version to use
+		image.setAttribute("x", String.format(Locale.US, "%.3fcm", xcm));
+		image.setAttribute("y", String.format(Locale.US, "%.3fcm", ycm));
+		image.setAttribute("w", String.format(Locale.US, "%.3fcm", wcm));
+		image.setAttribute("h", String.format(Locale.US, "%.3fcm", hcm));
+		return image;
+	}
+
+	/**
+	 * Create the manifest, add the content, and write the package.
+	 * @param odpFile the file to receive the package.
+	 * @param content the content Document, obtained by transforming the
+	 * MIRCdocument(s) with the images Document as a parameter.
+	 * @return true if the package was written; false otherwise.
+	 * @throws Exception if the manifest cannot be created.
+	 */
+	public boolean write(File odpFile, Document content) throws Exception {
+		Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/odp/manifest.xsl" ) );
+		Document manifest = XmlUtil.getTransformedDocument( imagesDoc, xsl, null );
+		exporter.add("META-INF/manifest.xml", XmlUtil.toString(manifest).getBytes(FileUtil.utf8));
+		exporter.add("content.xml", XmlUtil.toString(content).getBytes(FileUtil.utf8));
+		return exporter.write(odpFile);
+	}
+
+	//Get the bytes of a resource.
+	private static byte[] getResource(String resource) throws Exception {
+		InputStream in = null;
+		try {
+			in = FileUtil.getStream(resource);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+		finally { FileUtil.close(in); }
+	}
+}
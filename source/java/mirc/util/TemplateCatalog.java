@@ -0,0 +1,191 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.util;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * A catalog of the MIRCdocument templates in a directory.
+ * <p>
+ * Each template is parsed once, when it first appears or when its
+ * last-modified date or size changes, and its title, display mode,
+ * and parsed Document are held in memory. The directory is checked
+ * for changes at most once every ten seconds, so the author services
+ * can build their template selection pages without reading the disk.
+ */
+public class TemplateCatalog {
+
+	static final Logger logger = Logger.getLogger(TemplateCatalog.class);
+
+	static final long checkInterval = 10 * 1000; //10 seconds
+
+	static final ConcurrentHashMap<String,TemplateCatalog> catalogs = new ConcurrentHashMap<String,TemplateCatalog>();
+
+	final File dir;
+	Map<String,Template> templates = new TreeMap<String,Template>();
+	long lastCheck = 0;
+
+	/**
+	 * Protected constructor.
+	 * @param dir the directory containing the templates.
+	 */
+	protected TemplateCatalog(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the catalog of the templates in a directory,
+	 * creating it if it does not exist.
+	 * @param dir the directory containing the templates.
+	 * @return the catalog of the directory.
+	 */
+	public static TemplateCatalog getInstance(File dir) {
+		String key = dir.getAbsolutePath();
+		TemplateCatalog catalog = catalogs.get(key);
+		if (catalog == null) {
+			catalog = new TemplateCatalog(dir);
+			TemplateCatalog existing = catalogs.putIfAbsent(key, catalog);
+			if (existing != null) catalog = existing;
+		}
+		return catalog;
+	}
+
+	/**
+	 * Get an XML document listing the templates in name order, in the form
+	 * supplied to the author service transforms:
+	 * <pre>
+	 * &lt;templates&gt;
+	 *   &lt;template&gt;
+	 *     &lt;file&gt;name&lt;/file&gt;
+	 *     &lt;title&gt;title&lt;/title&gt;
+	 *     &lt;token&gt;display.jpg&lt;/token&gt;
+	 *   &lt;/template&gt;
+	 * &lt;/templates&gt;
+	 * </pre>
+	 * @param includeTokens true if the token elements are to be included.
+	 * @return the document, or null if it could not be created.
+	 */
+	public Document getTemplatesDocument(boolean includeTokens) {
+		Map<String,Template> map = getTemplates();
+		try {
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("templates");
+			doc.appendChild(root);
+			for (Template template : map.values()) {
+				if (template.doc != null) {
+					Element child = doc.createElement("template");
+					root.appendChild(child);
+					Element childFile = doc.createElement("file");
+					child.appendChild(childFile);
+					childFile.setTextContent(template.name);
+					Element childTitle = doc.createElement("title");
+					child.appendChild(childTitle);
+					childTitle.setTextContent(template.title);
+					if (includeTokens) {
+						Element childToken = doc.createElement("token");
+						child.appendChild(childToken);
+						childToken.setTextContent(template.display+".jpg");
+					}
+				}
+			}
+			return doc;
+		}
+		catch (Exception failure) { return null; }
+	}
+
+	/**
+	 * Get a copy of the parsed Document of a template.
+	 * The copy belongs to the caller and may be modified.
+	 * @param name the name of the template file.
+	 * @return the Document, or null if the directory does not
+	 * contain a MIRCdocument template with the name.
+	 */
+	public Document getTemplate(String name) {
+		Template template = getTemplates().get(name);
+		if ((template == null) || (template.doc == null)) return null;
+		synchronized (template) {
+			return (Document)template.doc.cloneNode(true);
+		}
+	}
+
+	//Get the current map of templates, rescanning the directory
+	//if it has not been checked in the last check interval. The
+	//map is replaced rather than modified, so callers can use it
+	//without synchronization.
+	private synchronized Map<String,Template> getTemplates() {
+		long now = System.currentTimeMillis();
+		if ((now - lastCheck) < checkInterval) return templates;
+		lastCheck = now;
+		File[] files = dir.listFiles();
+		if (files == null) files = new File[0];
+		Map<String,Template> map = new TreeMap<String,Template>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.toLowerCase().endsWith(".xml")) {
+				Template template = templates.get(name);
+				if ((template == null) || template.isStale(file)) {
+					template = new Template(file);
+				}
+				map.put(name, template);
+			}
+		}
+		templates = map;
+		return map;
+	}
+
+	//The summary of one template file. If the file does not
+	//contain a MIRCdocument, the doc field is null.
+	static class Template {
+		final String name;
+		final long lastModified;
+		final long length;
+		final String title;
+		final String display;
+		final Document doc;
+
+		Template(File file) {
+			name = file.getName();
+			lastModified = file.lastModified();
+			length = file.length();
+			String t = "Untitled";
+			String d = "page";
+			Document md = null;
+			try {
+				md = XmlUtil.getDocument(file);
+				Element mdRoot = md.getDocumentElement();
+				if (mdRoot.getTagName().equals("MIRCdocument")) {
+					NodeList nl = mdRoot.getElementsByTagName("title");
+					if (nl.getLength() > 0) t = nl.item(0).getTextContent().replaceAll("\\s+", " ");
+					String display = mdRoot.getAttribute("display").trim().toLowerCase();
+					if (!display.equals("")) d = display;
+				}
+				else md = null;
+			}
+			catch (Exception ex) {
+				logger.debug("Unable to parse the template "+file, ex);
+				md = null;
+			}
+			title = t;
+			display = d;
+			doc = md;
+		}
+
+		//Determine whether the file has changed since this entry was created.
+		boolean isStale(File file) {
+			return (file.lastModified() != lastModified) || (file.length() != length);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package mirc.util;
+
+import java.io.*;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+
+/**
+ * A class to write the files of a MIRCdocument, or any other
+ * set of files, to a zip stream.
+ * <p>
+ * The entries are written directly from their files to the output
+ * stream; no copy of the case is made on disk. Files whose contents
+ * are already compressed (images, video, and archives) are STORED
+ * rather than deflated. If a Document is supplied, its text is
+ * written in place of the MIRCdocument file, so the file in the document
+ * directory is not modified. The entries are written in name order with
+ * the last-modified dates of their files, so the same case produces the
+ * same archive each time it is exported.
+ */
+public class ZipExporter {
+
+	static final Logger logger = Logger.getLogger(ZipExporter.class);
+
+	static final String[] storedExtensions = {
+		".jpg", ".jpeg", ".png", ".gif",
+		".mp4", ".avi", ".mov", ".mpg", ".mpeg", ".wmv",
+		".zip", ".gz", ".jar", ".pptx", ".odp" };
+
+	static final int bufferSize = 64 * 1024;
+
+	final TreeMap<String,Object> entries = new TreeMap<String,Object>();
+	File docFile = null;
+	Document doc = null;
+
+	/**
+	 * Construct an empty ZipExporter. Entries are
+	 * added to it with the add method.
+	 */
+	public ZipExporter() { }
+
+	/**
+	 * Construct a ZipExporter for a MIRCdocument.
+	 * @param docFile the MIRCdocument file.
+	 * @param doc the Document to write in place of the MIRCdocument file,
+	 * or null if the file is to be written as it is stored.
+	 * @param filenames the names of the files in the MIRCdocument's
+	 * directory to include in the zip stream.
+	 */
+	public ZipExporter(File docFile, Document doc, String[] filenames) {
+		this.docFile = docFile;
+		this.doc = doc;
+		File dir = docFile.getParentFile();
+		for (String name : filenames) add(name, new File(dir, name));
+	}
+
+	/**
+	 * Add an entry to the zip stream. If an entry with
+	 * the same name has already been added, it is replaced.
+	 * @param name the name of the entry in the zip stream.
+	 * @param file the file containing the contents of the entry.
+	 */
+	public void add(String name, File file) {
+		entries.put(name, file);
+	}
+
+	/**
+	 * Add an entry whose contents are held in memory. If an entry
+	 * with the same name has already been added, it is replaced.
+	 * @param name the name of the entry in the zip stream.
+	 * @param bytes the contents of the entry.
+	 */
+	public void add(String name, byte[] bytes) {
+		entries.put(name, bytes);
+	}
+
+	/**
+	 * Write the zip stream to a file.
+	 * @param zipFile the file to receive the zip stream.
+	 * @return true if the file was written; false otherwise.
+	 */
+	public boolean write(File zipFile) {
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream( new FileOutputStream(zipFile), bufferSize );
+			write(out);
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to export "+zipFile, ex);
+			return false;
+		}
+		finally { FileUtil.close(out); }
+	}
+
+	/**
+	 * Write the zip stream to an OutputStream. The OutputStream
+	 * is finished but not closed.
+	 * @param out the stream to receive the zip stream.
+	 * @throws Exception if the stream cannot be written.
+	 */
+	public void write(OutputStream out) throws Exception {
+		ZipOutputStream zout = new ZipOutputStream(out);
+		byte[] buffer = new byte[bufferSize];
+		for (String name : entries.keySet()) {
+			Object value = entries.get(name);
+			if (value instanceof byte[]) {
+				ZipEntry entry = new ZipEntry(name);
+				zout.putNextEntry(entry);
+				zout.write((byte[])value);
+				zout.closeEntry();
+				continue;
+			}
+			File file = (File)value;
+			if ((doc != null) && file.equals(docFile)) {
+				byte[] bytes = XmlUtil.toString(doc).getBytes(FileUtil.utf8);
+				ZipEntry entry = new ZipEntry(name);
+				entry.setTime(file.lastModified());
+				zout.putNextEntry(entry);
+				zout.write(bytes);
+				zout.closeEntry();
+			}
+			else if (file.isFile()) {
+				ZipEntry entry = new ZipEntry(name);
+				entry.setTime(file.lastModified());
+				if (isStored(name)) {
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(file.length());
+					entry.setCompressedSize(file.length());
+					entry.setCrc(getCRC(file, buffer));
+				}
+				zout.putNextEntry(entry);
+				copy(file, zout, buffer);
+				zout.closeEntry();
+			}
+		}
+		zout.finish();
+	}
+
+	//Determine whether a file is already compressed.
+	private static boolean isStored(String name) {
+		String nameLC = name.toLowerCase();
+		for (String ext : storedExtensions) {
+			if (nameLC.endsWith(ext)) return true;
+		}
+		return false;
+	}
+
+	//Compute the CRC of a file, as required for a STORED entry.
+	private static long getCRC(File file, byte[] buffer) throws Exception {
+		CRC32 crc = new CRC32();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int n;
+			while ((n = in.read(buffer)) != -1) crc.update(buffer, 0, n);
+			return crc.getValue();
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	//Copy a file to the zip stream.
+	private static void copy(File file, OutputStream out, byte[] buffer) throws Exception {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int n;
+			while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		}
+		finally { FileUtil.close(in); }
+	}
+}
@@ -73,6 +73,22 @@ public class ZipService extends Servlet {
 		//Only accept connections from authors
 		if (!req.userHasRole("author")) { res.redirect("/query"); return; }
 
+		//See if this is a request for the status of a submission.
+		String statusParameter = req.getParameter("status");
+		if (statusParameter != null) {
+			ZipThread zipThread = ZipThread.getThread(statusParameter);
+			if ((zipThread != null)
+					&& (zipThread.getUsername().equals(req.getUser().getUsername())
+							|| req.userHasRole("admin"))) {
+				res.write( zipThread.getStatus() );
+				res.setContentType("txt");
+			}
+			else res.setResponseCode( res.notfound );
+			res.disableCaching();
+			res.send();
+			return;
+		}
+
 		Path path = req.getParsedPath();
 		String ssid = path.element(1);
 		if (ssid.startsWith("ss")) {
@@ -239,7 +255,9 @@ public class ZipService extends Servlet {
 							overwriteTemplate,
 							anonymize);
 				zipThread.start();
-				result += "The file was received and queued for processing.";
+				result += "The file was received and queued for processing.|";
+				result += "The progress of the submission is available at /zip/"
+							+ ssid + "?status=" + zipThread.getID();
 			}
 			catch (Exception ex) {
 				logger.warn("Exception while creating the ZipThread.",ex);
@@ -15,7 +15,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -26,6 +34,7 @@ import org.rsna.ctp.objects.FileObject;
 import org.rsna.util.FileUtil;
 import mirc.activity.ActivityDB;
 import mirc.storage.Index;
+import mirc.util.DaemonThreadFactory;
 import mirc.util.MircDocument;
 import mirc.util.MircImage;
 import org.rsna.util.StringUtil;
@@ -33,11 +42,26 @@ import org.rsna.util.XmlUtil;
 
 /**
  * The Thread that processes files submitted to the Zip Service.
+ * <p>
+ * The thread walks the submitted directory tree, assigning the document
+ * numbers in the order of the walk, and then creates the MIRCdocuments
+ * for the directories concurrently on a bounded pool of worker threads.
+ * The documents are indexed in the order of their numbers, in batches
+ * that are committed together. The progress of the submission can be
+ * obtained from the getStatus method while the thread runs and for an
+ * hour after it finishes.
  */
 public class ZipThread extends Thread {
 
 	static final Logger logger = Logger.getLogger(ZipThread.class);
 
+	static final int batchSize = 20;
+	static final int poolSize = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	static final long retention = 60L * 60L * 1000L; //1 hour
+
+	static final ConcurrentHashMap<String,ZipThread> threads = new ConcurrentHashMap<String,ZipThread>();
+	static final AtomicLong lastID = new AtomicLong(System.currentTimeMillis());
+
 	String ssid;
 	File submission;
 	File template;
@@ -68,6 +92,14 @@ public class ZipThread extends Thread {
 
 	Index index;
 
+	final String id;
+	volatile String state = "queued";
+	volatile int docsFound = 0;
+	volatile int docsCreated = 0;
+	volatile int docsIndexed = 0;
+	volatile long startTime = 0;
+	volatile long endTime = 0;
+
 	/**
 	 * Create a new ZipThread.
 	 * @param name the author's name.
@@ -106,6 +138,7 @@ public class ZipThread extends Thread {
 				boolean anonymize) throws Exception {
 
 		super("Zip Service ZipThread");
+		this.id = Long.toString( lastID.incrementAndGet() );
 		this.ssid = ssid;
 		this.submission = submission;
 		this.template = template;
@@ -158,12 +191,114 @@ public class ZipThread extends Thread {
 		return s;
 	}
 
+	/**
+	 * Get the ID by which the status of this thread can be obtained.
+	 */
+	public String getID() {
+		return id;
+	}
+
+	/**
+	 * Register this thread so its status can be
+	 * obtained by its ID, and start it.
+	 */
+	public void start() {
+		removeExpiredThreads();
+		threads.put(id, this);
+		super.start();
+	}
+
+	/**
+	 * Get a registered ZipThread.
+	 * @param id the ID of the thread.
+	 * @return the thread, or null if no thread with the ID is registered.
+	 */
+	public static ZipThread getThread(String id) {
+		return (id != null) ? threads.get(id) : null;
+	}
+
+	/**
+	 * Get the username of the user who made the submission.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Get a text description of the progress of the submission.
+	 */
+	public String getStatus() {
+		long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+		long elapsed = (startTime != 0) ? end - startTime : 0;
+		double minutes = elapsed / 60000.0;
+		String rate = (minutes > 0) ? String.format("%.1f", docsCreated / minutes) : "0";
+		return "Status: " + state + "|"
+				+ "MIRCdocuments found: " + docsFound + "|"
+				+ "MIRCdocuments created: " + docsCreated + "|"
+				+ "MIRCdocuments indexed: " + docsIndexed + "|"
+				+ "Elapsed time: " + (elapsed / 1000) + " seconds|"
+				+ "Throughput: " + rate + " MIRCdocuments per minute|";
+	}
+
 	public void run() {
-		processDirectory(root, template, "", "");
-		FileUtil.deleteAll(submissionDir);
+		startTime = System.currentTimeMillis();
+		state = "running";
+		ExecutorService pool = null;
+		try {
+			//Walk the tree and make the list of documents to create.
+			LinkedList<DocumentCreator> creators = new LinkedList<DocumentCreator>();
+			processDirectory(root, template, "", "", creators);
+			docsFound = creators.size();
+
+			//Create the documents on the pool.
+			pool = Executors.newFixedThreadPool(poolSize, new DaemonThreadFactory("Zip Service Worker " + id, Thread.NORM_PRIORITY - 1));
+			LinkedList<Future<String>> futures = new LinkedList<Future<String>>();
+			for (DocumentCreator creator : creators) futures.add( pool.submit(creator) );
+
+			//Index the documents in order, in batches.
+			LinkedList<String> batch = new LinkedList<String>();
+			for (Future<String> future : futures) {
+				String indexEntry = null;
+				try { indexEntry = future.get(); }
+				catch (Exception ex) { logger.debug("Unable to create a MIRCdocument", ex); }
+				if (indexEntry != null) {
+					docsCreated++;
+					batch.add(indexEntry);
+					if (batch.size() >= batchSize) indexBatch(batch);
+				}
+			}
+			indexBatch(batch);
+		}
+		finally {
+			if (pool != null) pool.shutdown();
+			FileUtil.deleteAll(submissionDir);
+			endTime = System.currentTimeMillis();
+			state = "done";
+			logger.info("Zip Service submission "+id+" complete: "+getStatus().replace("|", "; "));
+		}
+	}
+
+	//Index a batch of documents and record the activity.
+	private void indexBatch(LinkedList<String> batch) {
+		if (batch.size() == 0) return;
+		List<String> indexed = index.insertDocuments(batch);
+		docsIndexed += indexed.size();
+		for (String indexEntry : indexed) {
+			ActivityDB.getInstance().increment(ssid, "zip", username);
+			logger.debug("...MIRCdocument created: "+indexEntry);
+		}
+		batch.clear();
+	}
+
+	//Remove the threads which finished more than the retention time ago.
+	private static void removeExpiredThreads() {
+		long limit = System.currentTimeMillis() - retention;
+		for (ZipThread thread : threads.values()) {
+			if ((thread.endTime != 0) && (thread.endTime < limit)) threads.remove(thread.id);
+		}
 	}
 
-	private void processDirectory(File dir, File template, String title, String keywords) {
+	private void processDirectory(File dir, File template, String title, String keywords, LinkedList<DocumentCreator> creators) {
 
 		logger.debug("Processing "+dir);
 
@@ -181,16 +316,21 @@ public class ZipThread extends Thread {
 			template = newTemplate;
 
 		//Make a MIRCdocument out of any other files in this directory.
+		//The document number is assigned now, so the numbering follows
+		//the order of the walk, no matter when the document is created.
 		File[] files = dir.listFiles(filesOnly);
 		Arrays.sort(files);
 
-		if (files.length > 0) createMircDocument(files, template, title, keywords);
+		if (files.length > 0) {
+			docCount++;
+			creators.add( new DocumentCreator(docCount, files, template, title, keywords) );
+		}
 
 		//Process any child directories
 		keywords += " " + title;
 		files = dir.listFiles(dirsOnly);
 		for (int i=0; i<files.length; i++) {
-			processDirectory(files[i], template, files[i].getName(), keywords);
+			processDirectory(files[i], template, files[i].getName(), keywords, creators);
 		}
 	}
 
@@ -205,16 +345,37 @@ public class ZipThread extends Thread {
 		return false;
 	}
 
-	private void createMircDocument(File[] files, File template, String title, String keywords) {
+	//A Callable to create one MIRCdocument. It returns the
+	//index entry of the document, or null if it could not be created.
+	class DocumentCreator implements Callable<String> {
+		int number;
+		File[] files;
+		File template;
+		String title;
+		String keywords;
+
+		public DocumentCreator(int number, File[] files, File template, String title, String keywords) {
+			this.number = number;
+			this.files = files;
+			this.template = template;
+			this.title = title;
+			this.keywords = keywords;
+		}
+
+		public String call() {
+			return createMircDocument(number, files, template, title, keywords);
+		}
+	}
+
+	private String createMircDocument(int number, File[] files, File template, String title, String keywords) {
 
 		logger.debug("...creating MIRCdocument ("+files.length+" files)");
 
 		//Don't create MIRCdocuments for empty file lists.
-		if (files.length == 0) return;
+		if (files.length == 0) return null;
 
 		//Create a subdirectory in the storage service's documents tree for this MIRCdocument.
-		docCount++;
-		File mdDir = new File( baseDir, Integer.toString(docCount) );
+		File mdDir = new File( baseDir, Integer.toString(number) );
 		mdDir.mkdirs();
 
 		//Make the File that points to the MIRCdocument.xml file to be created.
@@ -229,7 +390,7 @@ public class ZipThread extends Thread {
 		//Instantiate the MircDocument so we can add objects into it.
 		MircDocument md;
 		try { md = new MircDocument(mdFile); }
-		catch (Exception crash) { return; }
+		catch (Exception crash) { return null; }
 
 		//Set the title, author, abstract, and keywords.
 		//Use the keywords as the abstract since there is
@@ -263,14 +424,9 @@ public class ZipThread extends Thread {
 		//Change the read permission and set the publication request, if necessary.
 		md.setPublicationRequest(canPublish);
 
-		//Save and index the document
+		//Save the document. It is indexed by the ZipThread in a batch.
 		md.save();
-		index.insertDocument(indexEntry);
-
-		//Record the activity
-		ActivityDB.getInstance().increment(ssid, "zip", username);
-
-		logger.debug("...MIRCdocument created: "+indexEntry);
+		return indexEntry;
 	}
 
 	class Filter implements FileFilter {